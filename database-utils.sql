@@ -8,6 +8,23 @@
 -- Le tabelle verranno create automaticamente da Hibernate/JPA
 -- Questo script contiene query utili per la gestione
 
+-- ============================================
+-- Aggiornamento di un database esistente
+-- ============================================
+
+-- Hibernate crea la colonna fatture.stato con un vincolo CHECK sui valori dell'enum StatoFattura e
+-- ddl-auto=update non lo riscrive: su un database creato da una versione precedente il nuovo stato
+-- IN_CODA_INVIO viene rifiutato e ogni invio a SDI fallisce. Eseguire prima di avviare la nuova versione.
+ALTER TABLE fatture DROP CONSTRAINT IF EXISTS fatture_stato_check;
+ALTER TABLE fatture ADD CONSTRAINT fatture_stato_check CHECK (stato IN (
+    'BOZZA', 'XML_GENERATO', 'FIRMATA', 'IN_CODA_INVIO', 'DA_VERIFICARE', 'INVIATA',
+    'CONSEGNATA', 'ACCETTATA', 'RIFIUTATA', 'SCARTATA', 'ERRORE'));
+
+-- Stesso vincolo sulla coda di invio, se già creata senza lo stato DA_VERIFICARE
+ALTER TABLE IF EXISTS outbox_sdi DROP CONSTRAINT IF EXISTS outbox_sdi_stato_check;
+ALTER TABLE IF EXISTS outbox_sdi ADD CONSTRAINT outbox_sdi_stato_check CHECK (stato IN (
+    'IN_ATTESA', 'IN_CORSO', 'INVIATO', 'DA_VERIFICARE', 'SCARTATO'));
+
 -- ============================================
 -- Query utili per la gestione
 -- ============================================
@@ -37,6 +54,13 @@ FROM fatture
 WHERE stato = 'INVIATA'
 AND data_invio < NOW() - INTERVAL '24 hours';
 
+-- Fatture consegnate a una PA senza esito del committente (dopo 16 giorni)
+SELECT *
+FROM fatture
+WHERE stato = 'CONSEGNATA'
+AND LENGTH(codice_destinatario) = 6
+AND data_ricevuta_consegna < NOW() - INTERVAL '16 days';
+
 -- Statistiche mensili
 SELECT 
     DATE_TRUNC('month', data_fattura) as mese,
@@ -83,6 +107,53 @@ JOIN fatture f ON n.fattura_id = f.id
 ORDER BY n.data_ricezione DESC
 LIMIT 50;
 
+-- Scarti per codice di errore SDI (ultimi 30 giorni)
+SELECT 
+    e.codice,
+    MIN(e.descrizione) as descrizione,
+    COUNT(DISTINCT n.identificativo_sdi) as invii_scartati
+FROM notifiche_sdi_errori e
+JOIN notifiche_sdi n ON e.notifica_id = n.id
+WHERE n.data_ora_ricezione_sdi > NOW() - INTERVAL '30 days'
+GROUP BY e.codice
+ORDER BY invii_scartati DESC;
+
+-- Fatture rifiutate dal committente (esito EC02)
+SELECT 
+    f.numero_fattura,
+    f.denominazione_cessionario,
+    n.data_ricezione,
+    n.messaggio_notifica
+FROM notifiche_sdi n
+JOIN fatture f ON n.fattura_id = f.id
+WHERE n.tipo_notifica = 'NOTIFICA_ESITO' AND n.esito = 'EC02'
+ORDER BY n.data_ricezione DESC;
+
+-- Invii con esito incerto (timeout in attesa della risposta SDI): da verificare su SDI
+SELECT o.id, o.nome_file, o.ultimo_errore, o.data_ultima_modifica,
+       COALESCE(a.xml_firmato_path, o.xml_firmato_path) AS file_firmato
+FROM outbox_sdi o
+LEFT JOIN outbox_sdi_archivio a ON a.outbox_id = o.id
+WHERE o.stato = 'DA_VERIFICARE'
+ORDER BY o.data_ultima_modifica;
+
+-- File NON ricevuto da SDI: rimette in coda l'invio (sostituire :id)
+-- UPDATE fatture SET stato = 'IN_CODA_INVIO', note_errore = NULL
+-- WHERE stato = 'DA_VERIFICARE' AND xml_firmato_path IN (
+--     SELECT xml_firmato_path FROM outbox_sdi WHERE id = :id
+--     UNION SELECT xml_firmato_path FROM outbox_sdi_archivio WHERE outbox_id = :id);
+-- UPDATE outbox_sdi SET stato = 'IN_ATTESA', prossimo_tentativo = NOW() WHERE id = :id;
+
+-- File ricevuto da SDI: registra l'IdentificativoSdI assegnato (sostituire :id e :identificativo)
+-- UPDATE fatture SET stato = 'INVIATA', identificativo_sdi = :identificativo, data_invio = NOW(), note_errore = NULL
+-- WHERE stato = 'DA_VERIFICARE' AND xml_firmato_path = (SELECT xml_firmato_path FROM outbox_sdi WHERE id = :id);
+-- UPDATE outbox_sdi SET stato = 'INVIATO', identificativo_sdi = :identificativo WHERE id = :id;
+
+-- Notifiche confermate a SDI e non ancora applicate (rimesse in coda al prossimo avvio)
+SELECT identificativo_sdi, tipo_notifica, nome_file, data_ricezione
+FROM notifiche_sdi_in_arrivo
+ORDER BY data_ricezione;
+
 -- Report fatturazione per cliente
 SELECT 
     denominazione_cessionario,
@@ -107,6 +178,10 @@ CREATE INDEX IF NOT EXISTS idx_fatture_cessionario ON fatture(denominazione_cess
 CREATE INDEX IF NOT EXISTS idx_notifiche_fattura_id ON notifiche_sdi(fattura_id);
 CREATE INDEX IF NOT EXISTS idx_notifiche_identificativo_sdi ON notifiche_sdi(identificativo_sdi);
 CREATE INDEX IF NOT EXISTS idx_notifiche_tipo ON notifiche_sdi(tipo_notifica);
+CREATE INDEX IF NOT EXISTS idx_notifiche_sdi_tipo_esito ON notifiche_sdi(tipo_notifica, esito);
+CREATE INDEX IF NOT EXISTS idx_notifiche_sdi_data_ora_ricezione ON notifiche_sdi(data_ora_ricezione_sdi);
+CREATE INDEX IF NOT EXISTS idx_notifiche_sdi_errori_codice ON notifiche_sdi_errori(codice);
+CREATE INDEX IF NOT EXISTS idx_notifiche_sdi_xml_notifica_path ON notifiche_sdi(xml_notifica_path);
 
 -- ============================================
 -- Backup e manutenzione
@@ -0,0 +1,113 @@
+package it.fatturazione.service;
+
+import it.fatturazione.dto.FatturaRequestDTO;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Dati di prova per i benchmark: nessuna dipendenza da rete, database o certificati reali
+final class BenchmarkFixtures {
+
+    static final String KEYSTORE_PASSWORD = "benchmark";
+    static final String KEY_ALIAS = "benchmark";
+
+    private BenchmarkFixtures() {
+    }
+
+    static FatturaRequestDTO fattura(String numeroFattura, int numeroRighe) {
+        List<FatturaRequestDTO.DettaglioRigaDTO> righe = new ArrayList<>(numeroRighe);
+        for (int i = 1; i <= numeroRighe; i++) {
+            righe.add(FatturaRequestDTO.DettaglioRigaDTO.builder()
+                    .numeroLinea(i)
+                    .descrizione("Servizio di consulenza riga " + i)
+                    .quantita(new BigDecimal("2"))
+                    .unitaMisura("ore")
+                    .prezzoUnitario(new BigDecimal("50"))
+                    .aliquotaIva(new BigDecimal("22"))
+                    .build());
+        }
+        BigDecimal imponibile = new BigDecimal(100L * numeroRighe);
+
+        return FatturaRequestDTO.builder()
+                .numeroFattura(numeroFattura)
+                .dataFattura(LocalDate.of(2026, 1, 31))
+                .cedente(FatturaRequestDTO.CedenteDTO.builder()
+                        .denominazione("Azienda Benchmark SRL")
+                        .partitaIva("12345678901")
+                        .indirizzo("Via Roma 1")
+                        .cap("20100")
+                        .comune("Milano")
+                        .provincia("MI")
+                        .nazione("IT")
+                        .build())
+                .cessionario(FatturaRequestDTO.CessionarioDTO.builder()
+                        .denominazione("Cliente Benchmark SPA")
+                        .codiceFiscale("RSSMRA80A01H501U")
+                        .indirizzo("Via Verdi 10")
+                        .cap("00100")
+                        .comune("Roma")
+                        .provincia("RM")
+                        .nazione("IT")
+                        .codiceDestinatario("ABCDEFG")
+                        .build())
+                .dettaglioRighe(righe)
+                .riepilogoIva(FatturaRequestDTO.RiepilogoIvaDTO.builder()
+                        .aliquotaIva(new BigDecimal("22"))
+                        .imponibile(imponibile)
+                        .imposta(imponibile.multiply(new BigDecimal("0.22")))
+                        .build())
+                .build();
+    }
+
+    // Keystore PKCS12 con certificato autofirmato RSA 2048, generato al volo
+    static Path creaKeystore(Path directory) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name subject = new X500Name("CN=Benchmark Firma, O=Fatturazione, C=IT");
+        Date inizio = new Date();
+        Date fine = new Date(inizio.getTime() + 365L * 24 * 60 * 60 * 1000);
+        X509Certificate certificato = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(inizio.getTime()), inizio, fine,
+                        subject, keyPair.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), KEYSTORE_PASSWORD.toCharArray(),
+                new Certificate[]{certificato});
+
+        Path keystorePath = directory.resolve("benchmark.p12");
+        try (OutputStream out = Files.newOutputStream(keystorePath)) {
+            keyStore.store(out, KEYSTORE_PASSWORD.toCharArray());
+        }
+        return keystorePath;
+    }
+
+    static void eliminaDirectory(Path directory) throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+}
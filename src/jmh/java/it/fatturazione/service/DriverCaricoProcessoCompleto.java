@@ -0,0 +1,134 @@
+package it.fatturazione.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Test di carico end-to-end: invia N fatture a /api/fatture/processo-completo con C richieste in parallelo,
+// attende che la coda SDI e le notifiche simulate siano smaltite e stampa throughput e percentili
+// lato client e per fase lato server (/actuator/metrics, sezione fatture.fasi).
+// Applicazione avviata con il profilo "simulatore"; token JWT valido in cache.
+//
+// mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=it.fatturazione.service.DriverCaricoProcessoCompleto \
+//     -Djmh.args="http://localhost:8080 <token> 1000 16"
+public class DriverCaricoProcessoCompleto {
+
+    private static final long ATTESA_SMALTIMENTO_MS = TimeUnit.MINUTES.toMillis(5);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Uso: DriverCaricoProcessoCompleto <url> <token> <fatture> <concorrenza> [righe]");
+            System.exit(1);
+        }
+        String url = args[0].replaceAll("/$", "");
+        String token = args[1];
+        int fatture = Integer.parseInt(args[2]);
+        int concorrenza = Integer.parseInt(args[3]);
+        int righe = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        ObjectMapper mapper = new ObjectMapper().findAndRegisterModules()
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        String prefisso = "CARICO-" + System.currentTimeMillis() + "-";
+
+        long[] latenze = new long[fatture];
+        Map<Integer, AtomicInteger> esiti = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(concorrenza);
+        List<Future<?>> richieste = new ArrayList<>(fatture);
+
+        System.out.printf("Invio di %d fatture (%d righe) con %d richieste in parallelo a %s%n", fatture, righe, concorrenza, url);
+        long inizio = System.nanoTime();
+        for (int i = 0; i < fatture; i++) {
+            int indice = i;
+            richieste.add(executor.submit(() -> {
+                long inizioRichiesta = System.nanoTime();
+                int codice;
+                try {
+                    byte[] corpo = mapper.writeValueAsBytes(BenchmarkFixtures.fattura(prefisso + indice, righe));
+                    HttpResponse<Void> risposta = client.send(HttpRequest.newBuilder(URI.create(url + "/api/fatture/processo-completo"))
+                                    .header("Content-Type", "application/json")
+                                    .header("Authorization", "Bearer " + token)
+                                    .POST(HttpRequest.BodyPublishers.ofByteArray(corpo))
+                                    .build(),
+                            HttpResponse.BodyHandlers.discarding());
+                    codice = risposta.statusCode();
+                } catch (Exception e) {
+                    codice = -1;
+                }
+                latenze[indice] = System.nanoTime() - inizioRichiesta;
+                esiti.computeIfAbsent(codice, c -> new AtomicInteger()).incrementAndGet();
+                return null;
+            }));
+        }
+        for (Future<?> richiesta : richieste) {
+            richiesta.get();
+        }
+        long durataRichieste = System.nanoTime() - inizio;
+        executor.shutdown();
+
+        System.out.printf("%nRichieste completate in %.1f s: %.1f fatture/s, esiti HTTP %s%n",
+                durataRichieste / 1e9, fatture / (durataRichieste / 1e9), esiti);
+        Arrays.sort(latenze);
+        System.out.printf("Latenza processo-completo: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                percentile(latenze, 50) / 1e6, percentile(latenze, 99) / 1e6, latenze[latenze.length - 1] / 1e6);
+
+        // Invii e notifiche proseguono in background: si attende che coda e simulatore siano vuoti
+        JsonNode metriche = attendiSmaltimento(client, mapper, url, token);
+        long durataTotale = System.nanoTime() - inizio;
+        System.out.printf("Coda SDI e notifiche smaltite in %.1f s dall'inizio: %.1f fatture/s end-to-end%n",
+                durataTotale / 1e9, fatture / (durataTotale / 1e9));
+
+        System.out.printf("%n%-22s %10s %10s %10s %10s %10s%n", "Fase", "Conteggio", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Iterator<Map.Entry<String, JsonNode>> fasi = metriche.path("fatture.fasi").fields(); fasi.hasNext(); ) {
+            Map.Entry<String, JsonNode> fase = fasi.next();
+            JsonNode valori = fase.getValue();
+            System.out.printf("%-22s %10d %10.1f %10.1f %10.1f %10.1f%n", fase.getKey(), valori.path("conteggio").asLong(),
+                    valori.path("p50Ms").asDouble(), valori.path("p95Ms").asDouble(),
+                    valori.path("p99Ms").asDouble(), valori.path("maxMs").asDouble());
+        }
+        System.out.printf("%nsdi.outbox: %s%nsdi.limitatore: %s%nsdi.notifiche: %s%n", metriche.path("sdi.outbox"),
+                metriche.path("sdi.limitatore"), metriche.path("sdi.notifiche"));
+    }
+
+    private static JsonNode attendiSmaltimento(HttpClient client, ObjectMapper mapper, String url, String token) throws Exception {
+        long scadenza = System.currentTimeMillis() + ATTESA_SMALTIMENTO_MS;
+        while (true) {
+            HttpResponse<byte[]> risposta = client.send(HttpRequest.newBuilder(URI.create(url + "/actuator/metrics"))
+                    .header("Authorization", "Bearer " + token).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+            JsonNode metriche = mapper.readTree(risposta.body());
+            long inCoda = metriche.path("sdi.outbox").path("in_attesa").asLong()
+                    + metriche.path("sdi.outbox").path("in_corso").asLong();
+            long notifiche = metriche.path("sdi.simulatore").path("notificheInSospeso").asLong()
+                    + metriche.path("sdi.notifiche").path("inCoda").asLong();
+            if ((inCoda == 0 && notifiche == 0) || System.currentTimeMillis() > scadenza) {
+                if (inCoda > 0 || notifiche > 0) {
+                    System.out.printf("Attesa interrotta: %d invii in coda, %d notifiche in sospeso%n", inCoda, notifiche);
+                }
+                return metriche;
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    private static long percentile(long[] ordinate, int percentile) {
+        int indice = (int) Math.ceil(percentile / 100.0 * ordinate.length) - 1;
+        return ordinate[Math.max(0, Math.min(indice, ordinate.length - 1))];
+    }
+}
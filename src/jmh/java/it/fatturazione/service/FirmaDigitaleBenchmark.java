@@ -0,0 +1,115 @@
+package it.fatturazione.service;
+
+import it.fatturazione.config.FirmaProperties;
+import it.fatturazione.dto.FatturaRequestDTO;
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.service.firma.CacheVerificaFirma;
+import it.fatturazione.service.xml.ValidatoreFatturaXml;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirmaDigitaleBenchmark {
+
+    private static final int FILE_BATCH = 32;
+
+    @Param({"1", "100", "1000"})
+    private int righe;
+
+    private Path storage;
+    private FirmaDigitaleService firmaDigitaleService;
+    private FirmaDigitaleService firmaDigitaleServiceConCache;
+    private XmlGeneratorService xmlGeneratorService;
+    private FatturaRequestDTO request;
+    private String xmlDaFirmare;
+    private String p7mDaVerificare;
+    private List<String> xmlBatch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = Files.createTempDirectory("bench-firma");
+        Path keystore = BenchmarkFixtures.creaKeystore(storage);
+
+        // Cache disattivata: ogni verifica è completa
+        firmaDigitaleService = creaServizio(keystore, 0);
+        firmaDigitaleServiceConCache = creaServizio(keystore, 1000);
+
+        xmlGeneratorService = new XmlGeneratorService(new ValidatoreFatturaXml(), codice -> "00001");
+        ReflectionTestUtils.setField(xmlGeneratorService, "storagePath", storage.toString());
+        ReflectionTestUtils.setField(xmlGeneratorService, "codiceTrasmittente", "AAAAAA11A11A111A");
+        ReflectionTestUtils.setField(xmlGeneratorService, "xmlEngine", "stax");
+
+        request = BenchmarkFixtures.fattura("FIRMA", righe);
+        xmlDaFirmare = xmlGeneratorService.generaXml(request, new Fattura());
+        String xmlDaVerificare = xmlGeneratorService.generaXml(BenchmarkFixtures.fattura("VERIFICA", righe), new Fattura());
+        p7mDaVerificare = firmaDigitaleService.firmaFile(xmlDaVerificare);
+
+        xmlBatch = new ArrayList<>();
+        for (int i = 0; i < FILE_BATCH; i++) {
+            xmlBatch.add(xmlGeneratorService.generaXml(BenchmarkFixtures.fattura("BATCH" + i, righe), new Fattura()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        firmaDigitaleService.shutdown();
+        firmaDigitaleServiceConCache.shutdown();
+        BenchmarkFixtures.eliminaDirectory(storage);
+    }
+
+    @Benchmark
+    public String firmaFile() {
+        return firmaDigitaleService.firmaFile(xmlDaFirmare);
+    }
+
+    // Tempo per l'intero batch: diviso per FILE_BATCH dà il costo per file con il pool parallelo
+    @Benchmark
+    public FirmaDigitaleService.EsitoFirmaBatch firmaFiles() {
+        return firmaDigitaleService.firmaFiles(xmlBatch);
+    }
+
+    @Benchmark
+    public boolean verificaFirma() {
+        return firmaDigitaleService.verificaFirma(p7mDaVerificare);
+    }
+
+    @Benchmark
+    public boolean verificaFirmaInCache() {
+        return firmaDigitaleServiceConCache.verificaFirma(p7mDaVerificare);
+    }
+
+    @Benchmark
+    public boolean estraiContenuto() {
+        return firmaDigitaleService.estraiContenuto(p7mDaVerificare, OutputStream.nullOutputStream());
+    }
+
+    // Generazione e firma in un unico passaggio, senza scrivere su disco
+    @Benchmark
+    public void generaEFirmaStreaming() throws Exception {
+        try (OutputStream firma = firmaDigitaleService.apriStreamFirma(OutputStream.nullOutputStream())) {
+            xmlGeneratorService.scriviXml(request, firma);
+        }
+    }
+
+    private static FirmaDigitaleService creaServizio(Path keystore, int dimensioneCache) {
+        FirmaDigitaleService service = new FirmaDigitaleService(new CacheVerificaFirma(dimensioneCache), new FirmaProperties());
+        ReflectionTestUtils.setField(service, "keystorePath", keystore.toString());
+        ReflectionTestUtils.setField(service, "keystorePassword", BenchmarkFixtures.KEYSTORE_PASSWORD);
+        ReflectionTestUtils.setField(service, "keyAlias", BenchmarkFixtures.KEY_ALIAS);
+        ReflectionTestUtils.setField(service, "keyPassword", BenchmarkFixtures.KEYSTORE_PASSWORD);
+        service.init();
+        return service;
+    }
+}
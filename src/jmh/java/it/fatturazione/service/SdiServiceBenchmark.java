@@ -0,0 +1,76 @@
+package it.fatturazione.service;
+
+import it.fatturazione.service.sdi.EnvelopeFileSdIBase;
+import it.fatturazione.service.sdi.LettoreRispostaSdi;
+import org.apache.hc.core5.http.HttpEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SdiServiceBenchmark {
+
+    private static final byte[] RISPOSTA_INVIO = ("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soapenv:Body><ns2:RispostaSdIRiceviFile xmlns:ns2=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types\">"
+            + "<IdentificativoSdI>123456789</IdentificativoSdI>"
+            + "<DataOraRicezione>2026-01-31T10:00:00.000+01:00</DataOraRicezione>"
+            + "</ns2:RispostaSdIRiceviFile></soapenv:Body></soapenv:Envelope>").getBytes(StandardCharsets.UTF_8);
+
+    // Dimensione del file firmato da inviare
+    @Param({"10", "1000"})
+    private int dimensioneKb;
+
+    private Path storage;
+    private Path fileFirmato;
+    private byte[] rispostaNotifica;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = Files.createTempDirectory("bench-sdi");
+        byte[] contenuto = new byte[dimensioneKb * 1024];
+        new Random(42).nextBytes(contenuto);
+        fileFirmato = Files.write(storage.resolve("IT01234567890_00001.xml.p7m"), contenuto);
+
+        rispostaNotifica = ("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soapenv:Body><ns2:rispostaRiceviNotifica xmlns:ns2=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types\">"
+                + "<NomeFile>IT01234567890_00001_RC_001.xml</NomeFile>"
+                + "<File>" + Base64.getEncoder().encodeToString(contenuto) + "</File>"
+                + "</ns2:rispostaRiceviNotifica></soapenv:Body></soapenv:Envelope>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFixtures.eliminaDirectory(storage);
+    }
+
+    // Stessi passaggi di inviaFattura fino alla scrittura del corpo sulla connessione HTTP
+    @Benchmark
+    public long costruisciEnvelopeInvio() throws Exception {
+        HttpEntity richiesta = EnvelopeFileSdIBase.daFile(fileFirmato.getFileName().toString(), fileFirmato);
+        richiesta.writeTo(OutputStream.nullOutputStream());
+        return richiesta.getContentLength();
+    }
+
+    @Benchmark
+    public String processaRispostaInvio() throws Exception {
+        return LettoreRispostaSdi.leggiIdentificativoSdi(new ByteArrayInputStream(RISPOSTA_INVIO));
+    }
+
+    // Notifica con il file inline in base64, decodificata verso lo stream di destinazione
+    @Benchmark
+    public String processaRispostaNotifica() throws Exception {
+        return LettoreRispostaSdi.leggiFile(new ByteArrayInputStream(rispostaNotifica), OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,51 @@
+package it.fatturazione.service;
+
+import it.fatturazione.dto.FatturaRequestDTO;
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.service.xml.ValidatoreFatturaXml;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlGeneratorBenchmark {
+
+    @Param({"1", "100", "1000"})
+    private int righe;
+
+    @Param({"dom", "stax"})
+    private String engine;
+
+    private Path storage;
+    private XmlGeneratorService xmlGeneratorService;
+    private FatturaRequestDTO request;
+    private final Fattura fattura = new Fattura();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = Files.createTempDirectory("bench-xml");
+        xmlGeneratorService = new XmlGeneratorService(new ValidatoreFatturaXml(), codice -> "00001");
+        ReflectionTestUtils.setField(xmlGeneratorService, "storagePath", storage.toString());
+        ReflectionTestUtils.setField(xmlGeneratorService, "codiceTrasmittente", "AAAAAA11A11A111A");
+        ReflectionTestUtils.setField(xmlGeneratorService, "xmlEngine", engine);
+        request = BenchmarkFixtures.fattura("2026/BENCH", righe);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFixtures.eliminaDirectory(storage);
+    }
+
+    @Benchmark
+    public String generaXml() throws Exception {
+        return xmlGeneratorService.generaXml(request, fattura);
+    }
+}
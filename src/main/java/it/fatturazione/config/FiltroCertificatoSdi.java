@@ -0,0 +1,178 @@
+package it.fatturazione.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ResourceUtils;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Autenticazione di SDI sul servizio RicezioneNotifiche (/ws/*). Il certificato client arriva dalla
+// connessione TLS (server.ssl.client-auth) o, dietro un terminatore TLS, dall'header configurato
+// (PEM con URL encoding, es. $ssl_client_escaped_cert di nginx). Deve essere in corso di validità,
+// avere un subject tra quelli ammessi e, con un truststore configurato, essere emesso da una sua CA.
+// Senza subject ammessi tutte le richieste vengono rifiutate.
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 5)
+@Slf4j
+public class FiltroCertificatoSdi implements Filter {
+
+    private static final String ATTRIBUTO_CERTIFICATI = "jakarta.servlet.request.X509Certificate";
+
+    @Value("${sdi.ricezione.certificato.enabled:true}")
+    private boolean abilitato;
+
+    // DN completi dei certificati client di SDI, separati da ';' (i DN contengono virgole)
+    @Value("${sdi.ricezione.certificato.subject-ammessi:}")
+    private String subjectAmmessi;
+
+    // Header impostato dal terminatore TLS, che deve rimuovere quello inviato dal client
+    @Value("${sdi.ricezione.certificato.header:}")
+    private String header;
+
+    @Value("${sdi.ricezione.certificato.truststore.path:}")
+    private String truststorePath;
+
+    @Value("${sdi.ricezione.certificato.truststore.password:}")
+    private String truststorePassword;
+
+    private Set<X500Principal> ammessi = Set.of();
+    private Set<TrustAnchor> ancore;
+
+    // Tomcat rifiuta i @PostConstruct dei filtri che dichiarano eccezioni checked
+    @PostConstruct
+    public void init() {
+        if (!abilitato) {
+            log.warn("Verifica del certificato client su /ws/* disattivata (sdi.ricezione.certificato.enabled=false)");
+            return;
+        }
+        Set<X500Principal> subject = new HashSet<>();
+        for (String dn : StringUtils.split(subjectAmmessi, ';')) {
+            if (StringUtils.isNotBlank(dn)) {
+                try {
+                    subject.add(new X500Principal(dn.trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException("sdi.ricezione.certificato.subject-ammessi non valido: " + dn, e);
+                }
+            }
+        }
+        ammessi = Set.copyOf(subject);
+        if (StringUtils.isNotBlank(truststorePath)) {
+            ancore = caricaAncore();
+        }
+        if (ammessi.isEmpty()) {
+            log.warn("Nessun subject in sdi.ricezione.certificato.subject-ammessi: le notifiche su /ws/* verranno rifiutate");
+        } else {
+            log.info("Notifiche su /ws/* accettate dai certificati: {}", ammessi);
+        }
+    }
+
+    private Set<TrustAnchor> caricaAncore() {
+        try {
+            KeyStore truststore = KeyStore.getInstance("PKCS12");
+            try (InputStream is = ResourceUtils.getURL(truststorePath).openStream()) {
+                truststore.load(is, truststorePassword.toCharArray());
+            }
+            Set<TrustAnchor> trustAnchors = new HashSet<>();
+            for (String alias : Collections.list(truststore.aliases())) {
+                if (truststore.getCertificate(alias) instanceof X509Certificate ca) {
+                    trustAnchors.add(new TrustAnchor(ca, null));
+                }
+            }
+            return Set.copyOf(trustAnchors);
+        } catch (Exception e) {
+            throw new IllegalStateException("Impossibile caricare sdi.ricezione.certificato.truststore.path "
+                    + truststorePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if (!abilitato || !req.getRequestURI().startsWith("/ws/")) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        X509Certificate[] catena = certificati(req);
+        String motivo = catena == null || catena.length == 0 ? "certificato client assente" : verifica(catena);
+        if (motivo != null) {
+            log.warn("Richiesta su {} da {} rifiutata: {}", req.getRequestURI(), req.getRemoteAddr(), motivo);
+            HttpServletResponse resp = (HttpServletResponse) response;
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            resp.setContentType("application/json");
+            resp.getWriter().write("{\"error\":\"Certificato client non autorizzato\"}");
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    // null se il certificato è autorizzato, altrimenti il motivo del rifiuto
+    private String verifica(X509Certificate[] catena) {
+        X509Certificate certificato = catena[0];
+        try {
+            certificato.checkValidity();
+        } catch (Exception e) {
+            return "certificato scaduto o non ancora valido: " + certificato.getSubjectX500Principal();
+        }
+        if (!ammessi.contains(certificato.getSubjectX500Principal())) {
+            return "subject non ammesso: " + certificato.getSubjectX500Principal();
+        }
+        if (ancore != null) {
+            try {
+                PKIXParameters parametri = new PKIXParameters(ancore);
+                parametri.setRevocationEnabled(false);
+                CertPathValidator.getInstance("PKIX").validate(
+                        CertificateFactory.getInstance("X.509").generateCertPath(Arrays.asList(catena)), parametri);
+            } catch (Exception e) {
+                return "certificato non emesso da una CA del truststore: " + e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    private X509Certificate[] certificati(HttpServletRequest req) {
+        if (StringUtils.isBlank(header)) {
+            return (X509Certificate[]) req.getAttribute(ATTRIBUTO_CERTIFICATI);
+        }
+        String valore = req.getHeader(header);
+        if (StringUtils.isBlank(valore)) {
+            return null;
+        }
+        try {
+            // Il '+' del base64 va preservato se l'header non è codificato
+            String pem = valore.contains("%") ? URLDecoder.decode(valore, StandardCharsets.UTF_8) : valore;
+            List<X509Certificate> certificati = CertificateFactory.getInstance("X.509")
+                    .generateCertificates(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII)))
+                    .stream().map(X509Certificate.class::cast).toList();
+            return certificati.toArray(X509Certificate[]::new);
+        } catch (Exception e) {
+            log.warn("Header {} non contiene un certificato valido: {}", header, e.getMessage());
+            return null;
+        }
+    }
+}
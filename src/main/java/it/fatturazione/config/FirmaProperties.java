@@ -0,0 +1,26 @@
+package it.fatturazione.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Component
+@ConfigurationProperties(prefix = "firma")
+@Data
+public class FirmaProperties {
+
+    // Firmatario per partita IVA del cedente; i cedenti non elencati usano firma.keystore.path / firma.key.alias
+    private Map<String, Firmatario> cedenti = new LinkedHashMap<>();
+
+    @Data
+    public static class Firmatario {
+        // Se assenti si usano keystore e password di firma.keystore.*
+        private String keystorePath;
+        private String keystorePassword;
+        private String keyAlias;
+        private String keyPassword;
+    }
+}
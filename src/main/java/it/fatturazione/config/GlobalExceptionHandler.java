@@ -4,6 +4,7 @@ import it.fatturazione.exception.AuthException;
 import it.fatturazione.exception.FatturaNotFoundException;
 import it.fatturazione.exception.FirmaDigitaleException;
 import it.fatturazione.exception.SdiException;
+import it.fatturazione.exception.SdiNonDisponibileException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -64,6 +65,17 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body(error);
     }
 
+    @ExceptionHandler(SdiNonDisponibileException.class)
+    public ResponseEntity<ErrorResponse> handleSdiNonDisponibile(SdiNonDisponibileException ex) {
+        log.warn("SDI non disponibile: {}", ex.getMessage());
+        ErrorResponse error = new ErrorResponse(
+                HttpStatus.SERVICE_UNAVAILABLE.value(),
+                ex.getMessage(),
+                LocalDateTime.now()
+        );
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<ErrorResponse> handleIllegalArgument(IllegalArgumentException ex) {
         log.error("Argomento non valido: {}", ex.getMessage());
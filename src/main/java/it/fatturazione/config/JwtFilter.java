@@ -7,6 +7,7 @@ import it.fatturazione.shared.UserDataShared;
 import jakarta.servlet.*;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
@@ -19,6 +20,14 @@ public class JwtFilter implements Filter {
 
     private final AuthService authService;
 
+    // Stessa condizione del SimulatoreSdiController: senza simulatore il percorso resta protetto
+    @Value("${sdi.simulatore.enabled:false}")
+    private boolean simulatoreAbilitato;
+
+    // Con la verifica attiva /ws/* è autenticato da FiltroCertificatoSdi
+    @Value("${sdi.ricezione.certificato.enabled:true}")
+    private boolean ricezioneConCertificato;
+
     public JwtFilter(AuthService authService) {
         this.authService = authService;
     }
@@ -41,6 +50,25 @@ public class JwtFilter implements Filter {
             return;
         }
 
+        // SDI simulato per i test di carico: chiamato dal client SOAP dell'applicazione, senza token
+        if (simulatoreAbilitato && path.startsWith("/simulatore-sdi/")) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        // Notifiche consegnate da SDI (servizio SOAP su /ws/*): autenticate con il certificato client
+        // di SDI, non con il token. Senza verifica del certificato solo il simulatore le consegna senza token
+        if (path.startsWith("/ws/") && (ricezioneConCertificato || simulatoreAbilitato)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        // Health check del load balancer: risposta dalla cache della sonda, senza token
+        if (path.equals("/actuator/health")) {
+            chain.doFilter(request, response);
+            return;
+        }
+
         String authHeader = req.getHeader("Authorization");
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
             resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
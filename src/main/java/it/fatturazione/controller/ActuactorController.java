@@ -2,6 +2,8 @@ package it.fatturazione.controller;
 
 import it.fatturazione.dto.FatturaRequestDTO;
 import it.fatturazione.dto.FatturaResponseDTO;
+import it.fatturazione.service.metriche.MetricheProvider;
+import it.fatturazione.service.salute.SondaSalute;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -9,15 +11,32 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 @RestController
 @RequestMapping("/actuator")
 @RequiredArgsConstructor
 @Slf4j
 public class ActuactorController {
 
+    private final List<MetricheProvider> metricheProviders;
+    private final SondaSalute sondaSalute;
 
     @GetMapping("/health")
+    // Verdetto in cache della sonda: 503 finché una dipendenza obbligatoria non risponde
     public ResponseEntity<Boolean> health() {
-        return ResponseEntity.ok(true);
+        boolean pronto = sondaSalute.pronto();
+        return ResponseEntity.status(pronto ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE).body(pronto);
+    }
+
+    @GetMapping("/metrics")
+    public ResponseEntity<Map<String, Map<String, Object>>> metrics() {
+        Map<String, Map<String, Object>> metriche = new TreeMap<>();
+        for (MetricheProvider provider : metricheProviders) {
+            metriche.put(provider.nome(), provider.metriche());
+        }
+        return ResponseEntity.ok(metriche);
     }
 }
@@ -3,15 +3,20 @@ package it.fatturazione.controller;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import it.fatturazione.dto.FatturaRequestDTO;
 import it.fatturazione.dto.FatturaResponseDTO;
+import it.fatturazione.dto.LottoFattureRequestDTO;
 import it.fatturazione.entity.Fattura;
 import it.fatturazione.service.FatturaService;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.util.List;
 
@@ -62,6 +67,32 @@ public class FatturaController {
         }
     }
 
+    @PostMapping("/firma-batch")
+    public ResponseEntity<List<FatturaResponseDTO>> firmaXmlGenerati() {
+        try {
+            log.info("Richiesta firma batch delle fatture con XML generato");
+            List<FatturaResponseDTO> response = fatturaService.firmaXmlGenerati();
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            log.error("Errore durante la firma batch", e);
+            throw new RuntimeException("Errore durante la firma batch: " + e.getMessage());
+        }
+    }
+
+    @PostMapping("/{id}/genera-firma")
+    public ResponseEntity<FatturaResponseDTO> generaEFirmaXml(
+            @PathVariable Long id,
+            @Valid @RequestBody FatturaRequestDTO request) {
+        try {
+            log.info("Richiesta generazione e firma XML per fattura ID: {}", id);
+            FatturaResponseDTO response = fatturaService.generaEFirmaXml(id, request);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            log.error("Errore durante la generazione e firma dell'XML", e);
+            throw new RuntimeException("Errore durante la generazione e firma dell'XML: " + e.getMessage());
+        }
+    }
+
     @PostMapping("/{id}/invia")
     public ResponseEntity<FatturaResponseDTO> inviaASdi(@PathVariable Long id) {
         try {
@@ -86,6 +117,30 @@ public class FatturaController {
         }
     }
 
+    @PostMapping("/invio-archivio")
+    public ResponseEntity<List<FatturaResponseDTO>> inviaFirmateInArchivio() {
+        try {
+            log.info("Richiesta invio in archivio ZIP delle fatture firmate");
+            List<FatturaResponseDTO> response = fatturaService.inviaFirmateInArchivio();
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            log.error("Errore durante l'invio in archivio a SDI", e);
+            throw new RuntimeException("Errore durante l'invio in archivio a SDI: " + e.getMessage());
+        }
+    }
+
+    @PostMapping("/lotti")
+    public ResponseEntity<List<FatturaResponseDTO>> processoCompletoLotti(@Valid @RequestBody LottoFattureRequestDTO request) {
+        try {
+            log.info("Richiesta processo completo a lotti per {} fatture", request.getFatture().size());
+            List<FatturaResponseDTO> response = fatturaService.processoCompletoLotti(request.getFatture());
+            return ResponseEntity.status(HttpStatus.CREATED).body(response);
+        } catch (Exception e) {
+            log.error("Errore durante il processo completo a lotti", e);
+            throw new RuntimeException("Errore durante il processo completo a lotti: " + e.getMessage());
+        }
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<FatturaResponseDTO> getFattura(@PathVariable Long id) {
         log.info("Richiesta dettaglio fattura ID: {}", id);
@@ -93,6 +148,20 @@ public class FatturaController {
         return ResponseEntity.ok(response);
     }
 
+    // L'XML viene copiato dal .p7m alla risposta mentre si verifica la firma, in un solo passaggio:
+    // se la firma non è valida la risposta viene interrotta
+    @GetMapping(value = "/{id}/xml", produces = MediaType.APPLICATION_XML_VALUE)
+    public ResponseEntity<StreamingResponseBody> scaricaXml(@PathVariable Long id) {
+        log.info("Richiesta XML firmato per fattura ID: {}", id);
+        String xmlFirmatoPath = fatturaService.percorsoXmlFirmato(id);
+        String nomeFile = new File(xmlFirmatoPath).getName().replace(".p7m", "");
+        StreamingResponseBody body = out -> fatturaService.scriviXmlFirmato(xmlFirmatoPath, out);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + nomeFile + "\"")
+                .contentType(MediaType.APPLICATION_XML)
+                .body(body);
+    }
+
     @GetMapping("/numero/{numeroFattura}")
     public ResponseEntity<FatturaResponseDTO> getFatturaByNumero(@PathVariable String numeroFattura) {
         log.info("Richiesta dettaglio fattura numero: {}", numeroFattura);
@@ -0,0 +1,52 @@
+package it.fatturazione.controller;
+
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.service.notifiche.RicezioneNotificheService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.ws.server.endpoint.annotation.Endpoint;
+import org.springframework.ws.server.endpoint.annotation.PayloadRoot;
+import org.springframework.ws.soap.SoapMessage;
+
+import java.io.IOException;
+
+// Servizio SOAP con cui SDI consegna le notifiche (Spring-WS su /ws/*). Le operazioni sono one-way:
+// la risposta vuota parte appena il file è salvato e l'aggiornamento della fattura è in coda.
+// Un'eccezione produce un fault SOAP e SDI ritrasmette la notifica.
+@Endpoint
+@RequiredArgsConstructor
+public class RicezioneNotificheEndpoint {
+
+    private static final String NAMESPACE_URI = "http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types";
+
+    private final RicezioneNotificheService ricezioneNotificheService;
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "ricevutaConsegna")
+    public void ricevutaConsegna(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, messaggio);
+    }
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "notificaMancataConsegna")
+    public void notificaMancataConsegna(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.NOTIFICA_MANCATA_CONSEGNA, messaggio);
+    }
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "notificaScarto")
+    public void notificaScarto(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.NOTIFICA_SCARTO, messaggio);
+    }
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "notificaEsito")
+    public void notificaEsito(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.NOTIFICA_ESITO, messaggio);
+    }
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "notificaDecorrenzaTermini")
+    public void notificaDecorrenzaTermini(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.NOTIFICA_DECORRENZA_TERMINI, messaggio);
+    }
+
+    @PayloadRoot(namespace = NAMESPACE_URI, localPart = "attestazioneTrasmissioneFattura")
+    public void attestazioneTrasmissioneFattura(SoapMessage messaggio) throws IOException {
+        ricezioneNotificheService.ricevi(NotificaSdi.TipoNotifica.ATTESTAZIONE_TRASMISSIONE, messaggio);
+    }
+}
@@ -0,0 +1,52 @@
+package it.fatturazione.controller;
+
+import it.fatturazione.service.sdi.simulatore.SimulatoreSdi;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Endpoint SOAP di SDI simulato: attivo solo con sdi.simulatore.enabled=true (profilo "simulatore")
+@RestController
+@RequestMapping("/simulatore-sdi")
+@ConditionalOnProperty(name = "sdi.simulatore.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class SimulatoreSdiController {
+
+    private final SimulatoreSdi simulatoreSdi;
+
+    // Usato dalla sonda di salute al posto del WSDL di SDI
+    @GetMapping(value = "/ricevi_file", produces = MediaType.TEXT_XML_VALUE)
+    public ResponseEntity<String> wsdl() {
+        return ResponseEntity.ok("<definitions xmlns=\"http://schemas.xmlsoap.org/wsdl/\" name=\"SdIRiceviFile\"/>");
+    }
+
+    @PostMapping("/ricevi_file")
+    public void riceviFile(HttpServletRequest request, HttpServletResponse response) throws IOException, XMLStreamException {
+        scrivi(response, simulatoreSdi.riceviFile(request.getContentType(), request.getInputStream()));
+    }
+
+    @PostMapping("/ricevi_notifica")
+    public void riceviNotifica(HttpServletRequest request, HttpServletResponse response) throws IOException, XMLStreamException {
+        scrivi(response, simulatoreSdi.riceviNotifica(request.getContentType(), request.getInputStream()));
+    }
+
+    private static void scrivi(HttpServletResponse response, SimulatoreSdi.Risposta risposta) throws IOException {
+        response.setStatus(risposta.codice());
+        response.setContentType(risposta.contentType());
+        response.setContentLength(risposta.corpo().length);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(risposta.corpo());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package it.fatturazione.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LottoFattureRequestDTO {
+
+    @NotEmpty(message = "Deve essere presente almeno una fattura")
+    private List<@Valid FatturaRequestDTO> fatture;
+}
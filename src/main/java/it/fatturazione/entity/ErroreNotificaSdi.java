@@ -0,0 +1,24 @@
+package it.fatturazione.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Errore della ListaErrori di una notifica di scarto
+@Embeddable
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ErroreNotificaSdi {
+
+    @Column(length = 10)
+    private String codice;
+
+    @Column(length = 1000)
+    private String descrizione;
+
+    @Column(length = 1000)
+    private String suggerimento;
+}
@@ -11,7 +11,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "fatture")
+@Table(name = "fatture", indexes = @Index(name = "idx_fatture_stato_id", columnList = "stato, id"))
 @Data
 @Builder
 @NoArgsConstructor
@@ -98,6 +98,8 @@ public class Fattura {
         BOZZA,
         XML_GENERATO,
         FIRMATA,
+        IN_CODA_INVIO,
+        DA_VERIFICARE,  // Esito dell'invio non noto (timeout in attesa della risposta): SDI può averlo ricevuto
         INVIATA,
         CONSEGNATA,
         ACCETTATA,
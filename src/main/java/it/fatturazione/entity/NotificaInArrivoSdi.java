@@ -0,0 +1,46 @@
+package it.fatturazione.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// Notifica ricevuta da SDI, salvata su disco e non ancora applicata alle fatture. Il record viene scritto
+// prima della risposta a SDI e cancellato quando la NotificaSdi è registrata: quelli rimasti dopo un
+// arresto vengono rielaborati all'avvio.
+@Entity
+@Table(name = "notifiche_sdi_in_arrivo")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class NotificaInArrivoSdi {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false, unique = true, length = 2000)
+    private String xmlNotificaPath;
+
+    @Column(nullable = false)
+    private String identificativoSdi;
+
+    @Column(nullable = false)
+    private String nomeFile;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private NotificaSdi.TipoNotifica tipoNotifica;
+
+    @Column(nullable = false, updatable = false)
+    private LocalDateTime dataRicezione;
+
+    @PrePersist
+    protected void onCreate() {
+        dataRicezione = LocalDateTime.now();
+    }
+}
@@ -7,9 +7,15 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 @Entity
-@Table(name = "notifiche_sdi")
+@Table(name = "notifiche_sdi", indexes = {
+        @Index(name = "idx_notifiche_sdi_tipo_esito", columnList = "tipo_notifica, esito"),
+        @Index(name = "idx_notifiche_sdi_data_ora_ricezione", columnList = "data_ora_ricezione_sdi"),
+        @Index(name = "idx_notifiche_sdi_xml_notifica_path", columnList = "xml_notifica_path")
+})
 @Data
 @Builder
 @NoArgsConstructor
@@ -37,6 +43,23 @@ public class NotificaSdi {
     @Column(length = 5000)
     private String messaggioNotifica;
 
+    // Campi letti dal file della notifica
+    @Column(length = 4)
+    private String esito;               // EC01 accettata, EC02 rifiutata (solo NE)
+
+    private LocalDateTime dataOraRicezioneSdi;
+
+    private LocalDateTime dataOraConsegna;
+
+    @Column(length = 100)
+    private String messageIdSdi;
+
+    @ElementCollection
+    @CollectionTable(name = "notifiche_sdi_errori", joinColumns = @JoinColumn(name = "notifica_id"),
+            indexes = @Index(name = "idx_notifiche_sdi_errori_codice", columnList = "codice"))
+    @Builder.Default
+    private List<ErroreNotificaSdi> errori = new ArrayList<>();
+
     @Column(length = 2000)
     private String xmlNotificaPath;
 
@@ -0,0 +1,92 @@
+package it.fatturazione.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+// Invio a SDI registrato nella stessa transazione che mette le fatture IN_CODA_INVIO: il dispatcher
+// lo esegue in seguito. Un record per file firmato (le fatture di un lotto condividono il file)
+// o per archivio ZIP, con i file contenuti in fileArchivio.
+@Entity
+@Table(name = "outbox_sdi", indexes = @Index(name = "idx_outbox_sdi_stato_prossimo", columnList = "stato, prossimo_tentativo"))
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxSdi {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Per un archivio ZIP è il nome dell'archivio
+    @Column(nullable = false, length = 1000)
+    private String xmlFirmatoPath;
+
+    // File firmati dell'archivio, vuoto per l'invio di un singolo file. Letti dal dispatcher fuori transazione
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "outbox_sdi_archivio", joinColumns = @JoinColumn(name = "outbox_id"))
+    @OrderColumn(name = "posizione")
+    @Column(name = "xml_firmato_path", length = 1000)
+    @Builder.Default
+    private List<String> fileArchivio = new ArrayList<>();
+
+    @Column(nullable = false)
+    private String nomeFile;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private StatoOutbox stato;
+
+    @Column(nullable = false)
+    private int tentativi;
+
+    // Per i record IN_CORSO è la scadenza della prenotazione: oltre, il record passa DA_VERIFICARE
+    @Column(nullable = false)
+    private LocalDateTime prossimoTentativo;
+
+    @Column(length = 2000)
+    private String ultimoErrore;
+
+    private String identificativoSdi;
+
+    @Column(nullable = false, updatable = false)
+    private LocalDateTime dataCreazione;
+
+    @Column(nullable = false)
+    private LocalDateTime dataUltimaModifica;
+
+    @PrePersist
+    protected void onCreate() {
+        dataCreazione = LocalDateTime.now();
+        dataUltimaModifica = LocalDateTime.now();
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        dataUltimaModifica = LocalDateTime.now();
+    }
+
+    public boolean isArchivio() {
+        return !fileArchivio.isEmpty();
+    }
+
+    // File firmati da inviare: quelli dell'archivio o il singolo file
+    public List<String> fileDaInviare() {
+        return isArchivio() ? fileArchivio : List.of(xmlFirmatoPath);
+    }
+
+    public enum StatoOutbox {
+        IN_ATTESA,
+        IN_CORSO,
+        INVIATO,
+        DA_VERIFICARE,  // Esito incerto: non viene ritentato, lo risolve la prima notifica di SDI o un operatore
+        SCARTATO    // Dead letter: tentativi esauriti o errore non recuperabile
+    }
+}
@@ -0,0 +1,12 @@
+package it.fatturazione.exception;
+
+// Chiamata a SDI non eseguita: circuito aperto o limite di concorrenza raggiunto
+public class SdiNonDisponibileException extends SdiException {
+    public SdiNonDisponibileException(String message) {
+        super(message);
+    }
+
+    public SdiNonDisponibileException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
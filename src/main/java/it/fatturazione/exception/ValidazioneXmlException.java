@@ -0,0 +1,17 @@
+package it.fatturazione.exception;
+
+import java.util.List;
+
+public class ValidazioneXmlException extends RuntimeException {
+
+    private final List<String> errori;
+
+    public ValidazioneXmlException(List<String> errori) {
+        super("XML non conforme allo schema FatturaPA: " + String.join("; ", errori));
+        this.errori = errori;
+    }
+
+    public List<String> getErrori() {
+        return errori;
+    }
+}
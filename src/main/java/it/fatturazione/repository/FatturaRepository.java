@@ -1,13 +1,18 @@
 package it.fatturazione.repository;
 
 import it.fatturazione.entity.Fattura;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,7 +21,22 @@ public interface FatturaRepository extends JpaRepository<Fattura, Long> {
 
     Optional<Fattura> findByNumeroFattura(String numeroFattura);
 
-    Optional<Fattura> findByIdentificativoSdi(String identificativoSdi);
+    // Un IdentificativoSdI può riferirsi a più fatture se inviate in lotto
+    List<Fattura> findAllByIdentificativoSdi(String identificativoSdi);
+
+    boolean existsByIdentificativoSdi(String identificativoSdi);
+
+    // Stesse fatture con lock di scrittura fino al commit, per applicare le notifiche una alla volta
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f FROM Fattura f WHERE f.identificativoSdi = :identificativoSdi ORDER BY f.id")
+    List<Fattura> findAllByIdentificativoSdiPerAggiornamento(@Param("identificativoSdi") String identificativoSdi);
+
+    // Fatture del file firmato con questo nome negli stati indicati, con lock di scrittura. Nel LIKE '_' è
+    // un jolly: il nome esatto va confrontato dal chiamante
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f FROM Fattura f WHERE f.stato IN :stati AND f.xmlFirmatoPath LIKE CONCAT('%', :nomeFile) ORDER BY f.id")
+    List<Fattura> findAllByStatoInAndNomeFilePerAggiornamento(@Param("stati") Collection<Fattura.StatoFattura> stati,
+                                                              @Param("nomeFile") String nomeFile);
 
     List<Fattura> findByStato(Fattura.StatoFattura stato);
 
@@ -28,5 +48,23 @@ public interface FatturaRepository extends JpaRepository<Fattura, Long> {
     @Query("SELECT f FROM Fattura f WHERE f.stato = 'INVIATA' AND f.dataInvio < :dataLimite")
     List<Fattura> findFattureInAttesaDiRisposta(java.time.LocalDateTime dataLimite);
 
+    // Paginazione keyset: ogni pagina riparte dall'ultimo id della precedente, senza OFFSET
+    @Query("SELECT f FROM Fattura f WHERE f.stato = 'INVIATA' AND f.dataInvio < :dataLimite AND f.id > :dopoId ORDER BY f.id")
+    List<Fattura> findFattureInAttesaDiRisposta(@Param("dataLimite") LocalDateTime dataLimite,
+                                                @Param("dopoId") Long dopoId, Pageable pagina);
+
+    // Fatture consegnate a una PA (codice destinatario di 6 caratteri) ancora senza esito del committente:
+    // SDI invia NE o, trascorsi 15 giorni dalla consegna, DT. Ai privati non arrivano esiti
+    @Query("SELECT f FROM Fattura f WHERE f.stato = 'CONSEGNATA' AND LENGTH(f.codiceDestinatario) = 6 "
+            + "AND f.dataRicevutaConsegna < :dataLimite AND f.id > :dopoId ORDER BY f.id")
+    List<Fattura> findFattureInAttesaDiEsito(@Param("dataLimite") LocalDateTime dataLimite,
+                                             @Param("dopoId") Long dopoId, Pageable pagina);
+
     boolean existsByNumeroFattura(String numeroFattura);
+
+    long countByXmlFirmatoPath(String xmlFirmatoPath);
+
+    List<Fattura> findAllByXmlFirmatoPath(String xmlFirmatoPath);
+
+    List<Fattura> findAllByXmlFirmatoPathIn(Collection<String> xmlFirmatoPaths);
 }
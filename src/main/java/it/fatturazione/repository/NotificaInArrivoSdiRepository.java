@@ -0,0 +1,15 @@
+package it.fatturazione.repository;
+
+import it.fatturazione.entity.NotificaInArrivoSdi;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface NotificaInArrivoSdiRepository extends JpaRepository<NotificaInArrivoSdi, Long> {
+
+    boolean existsByXmlNotificaPath(String xmlNotificaPath);
+
+    @Transactional
+    long deleteByXmlNotificaPath(String xmlNotificaPath);
+}
@@ -14,4 +14,13 @@ public interface NotificaSdiRepository extends JpaRepository<NotificaSdi, Long>
     List<NotificaSdi> findByIdentificativoSdi(String identificativoSdi);
 
     List<NotificaSdi> findByTipoNotifica(NotificaSdi.TipoNotifica tipoNotifica);
+
+    // Report sui campi letti dal file, su colonne indicizzate
+    List<NotificaSdi> findByTipoNotificaAndEsito(NotificaSdi.TipoNotifica tipoNotifica, String esito);
+
+    List<NotificaSdi> findByErroriCodice(String codice);
+
+    boolean existsByIdentificativoSdiAndXmlNotificaPath(String identificativoSdi, String xmlNotificaPath);
+
+    boolean existsByXmlNotificaPath(String xmlNotificaPath);
 }
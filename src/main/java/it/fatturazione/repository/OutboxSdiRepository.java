@@ -0,0 +1,34 @@
+package it.fatturazione.repository;
+
+import it.fatturazione.entity.OutboxSdi;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface OutboxSdiRepository extends JpaRepository<OutboxSdi, Long> {
+
+    // Record scaduti bloccati per la transazione corrente; quelli già bloccati da un altro dispatcher vengono saltati
+    @Query(value = "SELECT * FROM outbox_sdi WHERE stato IN ('IN_ATTESA', 'IN_CORSO') AND prossimo_tentativo <= :ora "
+            + "ORDER BY prossimo_tentativo LIMIT :limite FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<OutboxSdi> findDaInviareForUpdate(@Param("ora") LocalDateTime ora, @Param("limite") int limite);
+
+    boolean existsByXmlFirmatoPathAndStatoIn(String xmlFirmatoPath, Collection<OutboxSdi.StatoOutbox> stati);
+
+    long countByStato(OutboxSdi.StatoOutbox stato);
+
+    // Invii, singoli o archivi, che contengono il file firmato
+    @Query("SELECT o FROM OutboxSdi o WHERE o.stato = :stato "
+            + "AND (o.xmlFirmatoPath = :file OR :file MEMBER OF o.fileArchivio)")
+    List<OutboxSdi> findAllByStatoAndFile(@Param("stato") OutboxSdi.StatoOutbox stato, @Param("file") String file);
+
+    @Query("SELECT CASE WHEN COUNT(o) > 0 THEN true ELSE false END FROM OutboxSdi o "
+            + "WHERE o.identificativoSdi = :identificativoSdi "
+            + "AND o.fileArchivio IS NOT EMPTY")
+    boolean existsArchivioByIdentificativoSdi(@Param("identificativoSdi") String identificativoSdi);
+}
@@ -2,24 +2,42 @@ package it.fatturazione.service;
 
 import it.fatturazione.dto.FatturaRequestDTO;
 import it.fatturazione.dto.FatturaResponseDTO;
+import it.fatturazione.entity.ErroreNotificaSdi;
 import it.fatturazione.entity.Fattura;
 import it.fatturazione.entity.NotificaSdi;
 import it.fatturazione.exception.FatturaNotFoundException;
+import it.fatturazione.exception.FirmaDigitaleException;
+import it.fatturazione.exception.ValidazioneXmlException;
 import it.fatturazione.repository.FatturaRepository;
 import it.fatturazione.repository.NotificaSdiRepository;
+import it.fatturazione.service.metriche.TempiFasi;
+import it.fatturazione.service.outbox.OutboxSdiService;
+import it.fatturazione.service.sdi.LettoreNotificaSdi;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Service
@@ -32,10 +50,27 @@ public class FatturaService {
     private final XmlGeneratorService xmlGeneratorService;
     private final FirmaDigitaleService firmaDigitaleService;
     private final SdiService sdiService;
+    private final OutboxSdiService outboxSdiService;
+    private final TempiFasi tempiFasi;
 
     @Value("${fattura.storage.path}")
     private String storagePath;
 
+    @Value("${fattura.firma.streaming.enabled:false}")
+    private boolean firmaStreaming;
+
+    @Value("${fattura.firma.streaming.conserva-xml:true}")
+    private boolean conservaXmlInChiaro;
+
+    @Value("${fattura.lotto.max-fatture:50}")
+    private int maxFattureLotto;
+
+    @Value("${sdi.archivio.max-file:100}")
+    private int maxFileArchivio;
+
+    @Value("${sdi.archivio.max-byte:5000000}")
+    private long maxByteArchivio;
+
     public List<FatturaResponseDTO> searchFattura(
             final BigDecimal from,
             final BigDecimal to
@@ -60,13 +95,20 @@ public class FatturaService {
             throw new IllegalArgumentException("Fattura con numero " + request.getNumeroFattura() + " già esistente");
         }
 
+        Fattura fattura = fatturaRepository.save(nuovaFattura(request));
+
+        log.info("Fattura creata con successo - ID: {}", fattura.getId());
+        return FatturaResponseDTO.fromEntity(fattura);
+    }
+
+    private Fattura nuovaFattura(FatturaRequestDTO request) {
         // Calcola i totali
         BigDecimal imponibile = request.getRiepilogoIva().getImponibile();
         BigDecimal iva = request.getRiepilogoIva().getImposta();
         BigDecimal totale = imponibile.add(iva);
 
         // Crea l'entità Fattura
-        Fattura fattura = Fattura.builder()
+        return Fattura.builder()
                 .numeroFattura(request.getNumeroFattura())
                 .dataFattura(request.getDataFattura())
                 .codiceFiscaleCedente(request.getCedente().getCodiceFiscale() != null ? 
@@ -83,11 +125,6 @@ public class FatturaService {
                 .totale(totale)
                 .stato(Fattura.StatoFattura.BOZZA)
                 .build();
-
-        fattura = fatturaRepository.save(fattura);
-
-        log.info("Fattura creata con successo - ID: {}", fattura.getId());
-        return FatturaResponseDTO.fromEntity(fattura);
     }
 
     @Transactional
@@ -109,6 +146,8 @@ public class FatturaService {
             log.info("XML generato con successo per fattura ID: {}", fatturaId);
             return FatturaResponseDTO.fromEntity(fattura);
 
+        } catch (ValidazioneXmlException e) {
+            return registraXmlNonValido(fattura, e);
         } catch (Exception e) {
             fattura.setStato(Fattura.StatoFattura.ERRORE);
             fattura.setNoteErrore("Errore generazione XML: " + e.getMessage());
@@ -130,7 +169,7 @@ public class FatturaService {
 
         try {
             // Firma il file XML
-            String xmlFirmatoPath = firmaDigitaleService.firmaFile(fattura.getXmlPath());
+            String xmlFirmatoPath = firmaDigitaleService.firmaFile(fattura.getXmlPath(), fattura.getPartitaIvaCedente());
 
             // Aggiorna lo stato della fattura
             fattura.setXmlFirmatoPath(xmlFirmatoPath);
@@ -148,62 +187,307 @@ public class FatturaService {
         }
     }
 
+    // Firma in parallelo tutte le fatture con XML generato (elaborazioni di fine mese)
     @Transactional
-    public FatturaResponseDTO inviaASdi(Long fatturaId) throws Exception {
-        log.info("Invio fattura a SDI - ID: {}", fatturaId);
+    public List<FatturaResponseDTO> firmaXmlGenerati() {
+        // Le fatture di uno stesso lotto condividono il file XML: viene firmato una sola volta
+        Map<String, List<Fattura>> fatturePerFile = fatturaRepository.findByStato(Fattura.StatoFattura.XML_GENERATO)
+                .stream()
+                .filter(fattura -> fattura.getXmlPath() != null)
+                .collect(Collectors.groupingBy(Fattura::getXmlPath, LinkedHashMap::new, Collectors.toList()));
+        log.info("Firma batch di {} file XML generati", fatturePerFile.size());
+
+        // Ogni file viene firmato con il certificato del proprio cedente
+        Map<String, String> cedentePerFile = new LinkedHashMap<>();
+        fatturePerFile.forEach((xmlPath, fatture) -> cedentePerFile.put(xmlPath, fatture.get(0).getPartitaIvaCedente()));
+        FirmaDigitaleService.EsitoFirmaBatch esito = firmaDigitaleService.firmaFiles(cedentePerFile);
+
+        esito.firmati().forEach((xmlPath, xmlFirmatoPath) -> fatturePerFile.get(xmlPath).forEach(fattura -> {
+            fattura.setXmlFirmatoPath(xmlFirmatoPath);
+            fattura.setStato(Fattura.StatoFattura.FIRMATA);
+        }));
+        esito.scartati().forEach((xmlPath, errore) -> fatturePerFile.get(xmlPath).forEach(fattura -> {
+            fattura.setStato(Fattura.StatoFattura.ERRORE);
+            fattura.setNoteErrore("Errore firma digitale: " + errore);
+        }));
+
+        List<Fattura> fatture = fatturePerFile.values().stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        return fatturaRepository.saveAll(fatture).stream()
+                .map(FatturaResponseDTO::fromEntity)
+                .collect(Collectors.toList());
+    }
+
+    @Transactional
+    public FatturaResponseDTO generaEFirmaXml(Long fatturaId, FatturaRequestDTO request) throws Exception {
+        log.info("Generazione e firma in streaming per fattura ID: {}", fatturaId);
 
         Fattura fattura = fatturaRepository.findById(fatturaId)
                 .orElseThrow(() -> new FatturaNotFoundException("Fattura non trovata con ID: " + fatturaId));
 
-        if (fattura.getXmlFirmatoPath() == null) {
-            throw new IllegalStateException("La fattura non è stata firmata");
-        }
+        String xmlPath = xmlGeneratorService.preparaPercorsoXml(request.getNumeroFattura());
+        String xmlFirmatoPath = firmaDigitaleService.percorsoFirmato(xmlPath);
 
         try {
-            // Estrai il nome del file
-            String nomeFile = new File(fattura.getXmlFirmatoPath()).getName();
-
-            // Invia a SDI
-            String identificativoSdi = sdiService.inviaFattura(fattura.getXmlFirmatoPath(), nomeFile);
+            scriviEFirma(List.of(request), xmlPath, xmlFirmatoPath);
 
             // Aggiorna lo stato della fattura
-            fattura.setIdentificativoSdi(identificativoSdi);
-            fattura.setDataInvio(LocalDateTime.now());
-            fattura.setStato(Fattura.StatoFattura.INVIATA);
+            fattura.setXmlPath(conservaXmlInChiaro ? xmlPath : null);
+            fattura.setXmlFirmatoPath(xmlFirmatoPath);
+            fattura.setStato(Fattura.StatoFattura.FIRMATA);
             fattura = fatturaRepository.save(fattura);
 
-            log.info("Fattura inviata con successo - ID: {}, IdentificativoSdI: {}", 
-                    fatturaId, identificativoSdi);
+            log.info("XML generato e firmato con successo per fattura ID: {}", fatturaId);
             return FatturaResponseDTO.fromEntity(fattura);
 
+        } catch (ValidazioneXmlException e) {
+            new File(xmlFirmatoPath).delete();
+            new File(xmlPath).delete();
+            return registraXmlNonValido(fattura, e);
         } catch (Exception e) {
+            new File(xmlFirmatoPath).delete();
+            new File(xmlPath).delete();
             fattura.setStato(Fattura.StatoFattura.ERRORE);
-            fattura.setNoteErrore("Errore invio SDI: " + e.getMessage());
+            fattura.setNoteErrore("Errore generazione e firma XML: " + e.getMessage());
             fatturaRepository.save(fattura);
             throw e;
         }
     }
 
+    // L'XML viene scritto direttamente nel generatore CMS: su disco arriva solo il .p7m
+    // (più l'XML in chiaro se richiesto)
+    private void scriviEFirma(List<FatturaRequestDTO> richieste, String xmlPath, String xmlFirmatoPath) throws Exception {
+        try (OutputStream p7m = new BufferedOutputStream(new FileOutputStream(xmlFirmatoPath))) {
+            OutputStream contenuto = firmaDigitaleService.apriStreamFirma(p7m,
+                    richieste.get(0).getCedente().getPartitaIva());
+            if (conservaXmlInChiaro) {
+                contenuto = new TeeOutputStream(contenuto, new FileOutputStream(xmlPath));
+            }
+            try (OutputStream out = new BufferedOutputStream(contenuto)) {
+                xmlGeneratorService.scriviLotto(richieste, out);
+            }
+        }
+    }
+
+    // L'XML non conforme non è un errore tecnico: gli errori vengono salvati sulla fattura
+    // e restituiti nella risposta, senza proseguire con firma e invio
+    private FatturaResponseDTO registraXmlNonValido(Fattura fattura, ValidazioneXmlException e) {
+        log.warn("XML non valido per fattura ID: {} - {}", fattura.getId(), e.getMessage());
+        fattura.setStato(Fattura.StatoFattura.ERRORE);
+        fattura.setNoteErrore(StringUtils.abbreviate("XML non valido: " + String.join("; ", e.getErrori()), 2000));
+        fattura = fatturaRepository.save(fattura);
+        return FatturaResponseDTO.fromEntity(fattura);
+    }
+
+    // L'invio viene solo messo in coda nella stessa transazione che aggiorna la fattura:
+    // la chiamata a SDI avviene in background (DispatcherOutboxSdi) con tentativi e backoff
+    @Transactional
+    public FatturaResponseDTO inviaASdi(Long fatturaId) throws Exception {
+        log.info("Invio fattura a SDI - ID: {}", fatturaId);
+
+        Fattura fattura = fatturaRepository.findById(fatturaId)
+                .orElseThrow(() -> new FatturaNotFoundException("Fattura non trovata con ID: " + fatturaId));
+
+        if (fattura.getXmlFirmatoPath() == null) {
+            throw new IllegalStateException("La fattura non è stata firmata");
+        }
+        if (fattura.getStato() == Fattura.StatoFattura.IN_CODA_INVIO) {
+            return FatturaResponseDTO.fromEntity(fattura);
+        }
+
+        // Le fatture di un lotto condividono il file firmato e partono insieme
+        outboxSdiService.accoda(fatturaRepository.findAllByXmlFirmatoPath(fattura.getXmlFirmatoPath()));
+
+        log.info("Fattura in coda per l'invio a SDI - ID: {}", fatturaId);
+        return FatturaResponseDTO.fromEntity(fattura);
+    }
+
     @Transactional
     public FatturaResponseDTO processoCompleto(FatturaRequestDTO request) throws Exception {
         log.info("Avvio processo completo per fattura: {}", request.getNumeroFattura());
 
         // 1. Crea la fattura
+        long inizio = System.nanoTime();
         FatturaResponseDTO fattura = creaFattura(request);
+        tempiFasi.registra("creazione", inizio);
+
+        if (firmaStreaming) {
+            // 2-3. Genera l'XML e firma in un unico passaggio
+            inizio = System.nanoTime();
+            fattura = generaEFirmaXml(fattura.getId(), request);
+            tempiFasi.registra("generazioneEFirma", inizio);
+            if (Fattura.StatoFattura.ERRORE.name().equals(fattura.getStato())) {
+                return fattura;
+            }
+        } else {
+            // 2. Genera l'XML
+            inizio = System.nanoTime();
+            fattura = generaXml(fattura.getId(), request);
+            tempiFasi.registra("generazioneXml", inizio);
+            if (Fattura.StatoFattura.ERRORE.name().equals(fattura.getStato())) {
+                return fattura;
+            }
 
-        // 2. Genera l'XML
-        fattura = generaXml(fattura.getId(), request);
-
-        // 3. Firma digitalmente
-        fattura = firmaFattura(fattura.getId());
+            // 3. Firma digitalmente
+            inizio = System.nanoTime();
+            fattura = firmaFattura(fattura.getId());
+            tempiFasi.registra("firma", inizio);
+        }
 
-        // 4. Invia a SDI
+        // 4. Mette in coda l'invio a SDI
+        inizio = System.nanoTime();
         fattura = inviaASdi(fattura.getId());
+        tempiFasi.registra("accodamento", inizio);
 
         log.info("Processo completo completato con successo per fattura: {}", request.getNumeroFattura());
         return fattura;
     }
 
+    // Mette in coda l'invio di tutte le fatture firmate in attesa raccogliendole in archivi ZIP (una chiamata
+    // SDI per archivio). Gli archivi partono dal dispatcher della coda, attraverso il limitatore:
+    // nessuna chiamata a SDI dentro questa transazione
+    @Transactional
+    public List<FatturaResponseDTO> inviaFirmateInArchivio() {
+        List<Fattura> firmate = fatturaRepository.findByStato(Fattura.StatoFattura.FIRMATA);
+        log.info("Invio in archivio ZIP di {} fatture firmate", firmate.size());
+
+        // Le fatture di uno stesso lotto condividono il file firmato: viene inserito una sola volta
+        Map<String, List<Fattura>> fatturePerFile = firmate.stream()
+                .filter(fattura -> fattura.getXmlFirmatoPath() != null)
+                .collect(Collectors.groupingBy(Fattura::getXmlFirmatoPath, LinkedHashMap::new, Collectors.toList()));
+
+        List<String> archivio = new ArrayList<>();
+        long dimensioneArchivio = 0;
+        for (String fileFirmato : fatturePerFile.keySet()) {
+            long dimensione = new File(fileFirmato).length();
+            if (!archivio.isEmpty() && (archivio.size() >= maxFileArchivio
+                    || dimensioneArchivio + dimensione > maxByteArchivio)) {
+                accodaArchivio(archivio, fatturePerFile);
+                archivio = new ArrayList<>();
+                dimensioneArchivio = 0;
+            }
+            archivio.add(fileFirmato);
+            dimensioneArchivio += dimensione;
+        }
+        if (!archivio.isEmpty()) {
+            accodaArchivio(archivio, fatturePerFile);
+        }
+
+        return firmate.stream()
+                .map(FatturaResponseDTO::fromEntity)
+                .collect(Collectors.toList());
+    }
+
+    private void accodaArchivio(List<String> fileFirmati, Map<String, List<Fattura>> fatturePerFile) {
+        List<Fattura> fatture = fileFirmati.stream()
+                .flatMap(fileFirmato -> fatturePerFile.get(fileFirmato).stream())
+                .collect(Collectors.toList());
+        outboxSdiService.accodaArchivio(fatture, fileFirmati, sdiService.generaNomeArchivio());
+    }
+
+    // Le fatture con lo stesso cedente e cessionario vengono raggruppate in lotti: ogni lotto produce
+    // un solo file FatturaElettronica con più body, firmato e inviato una sola volta
+    @Transactional
+    public List<FatturaResponseDTO> processoCompletoLotti(List<FatturaRequestDTO> richieste) {
+        log.info("Avvio processo completo a lotti per {} fatture", richieste.size());
+
+        // 1. Crea le fatture (o riprende quelle ancora in bozza) e le raggruppa per lotto
+        Map<ChiaveLotto, List<FatturaRequestDTO>> lotti = new LinkedHashMap<>();
+        Map<String, Fattura> fatturePerNumero = new HashMap<>();
+        for (FatturaRequestDTO request : richieste) {
+            if (fatturePerNumero.containsKey(request.getNumeroFattura())) {
+                throw new IllegalArgumentException("Fattura " + request.getNumeroFattura() + " duplicata nella richiesta");
+            }
+            Fattura fattura = fatturaRepository.findByNumeroFattura(request.getNumeroFattura())
+                    .orElseGet(() -> fatturaRepository.save(nuovaFattura(request)));
+            if (fattura.getStato() != Fattura.StatoFattura.BOZZA) {
+                throw new IllegalStateException("La fattura " + request.getNumeroFattura() + " non è in bozza");
+            }
+            fatturePerNumero.put(request.getNumeroFattura(), fattura);
+            lotti.computeIfAbsent(ChiaveLotto.di(fattura), k -> new ArrayList<>()).add(request);
+        }
+
+        // 2. Genera, firma e invia ogni lotto (eventualmente suddiviso per dimensione massima)
+        for (List<FatturaRequestDTO> lotto : lotti.values()) {
+            for (int i = 0; i < lotto.size(); i += maxFattureLotto) {
+                List<FatturaRequestDTO> parte = lotto.subList(i, Math.min(i + maxFattureLotto, lotto.size()));
+                List<Fattura> fatture = parte.stream()
+                        .map(request -> fatturePerNumero.get(request.getNumeroFattura()))
+                        .collect(Collectors.toList());
+                inviaLotto(parte, fatture);
+            }
+        }
+
+        return richieste.stream()
+                .map(request -> FatturaResponseDTO.fromEntity(fatturePerNumero.get(request.getNumeroFattura())))
+                .collect(Collectors.toList());
+    }
+
+    private void inviaLotto(List<FatturaRequestDTO> richieste, List<Fattura> fatture) {
+        String xmlPath = xmlGeneratorService.preparaPercorsoXml("LOTTO_" + richieste.get(0).getNumeroFattura());
+        String xmlFirmatoPath = firmaDigitaleService.percorsoFirmato(xmlPath);
+        log.info("Invio lotto di {} fatture: {}", fatture.size(), xmlFirmatoPath);
+
+        String fase = "generazione e firma XML";
+        try {
+            scriviEFirma(richieste, xmlPath, xmlFirmatoPath);
+
+            // Tutte le fatture del lotto condividono file e IdentificativoSdI
+            fase = "accodamento invio SDI";
+            for (Fattura fattura : fatture) {
+                fattura.setXmlPath(conservaXmlInChiaro ? xmlPath : null);
+                fattura.setXmlFirmatoPath(xmlFirmatoPath);
+            }
+            outboxSdiService.accoda(fatture);
+
+            log.info("Lotto in coda per l'invio a SDI: {}", xmlFirmatoPath);
+
+        } catch (Exception e) {
+            log.error("Errore durante {} del lotto {}", fase, xmlFirmatoPath, e);
+            new File(xmlFirmatoPath).delete();
+            new File(xmlPath).delete();
+            String nota = e instanceof ValidazioneXmlException validazione
+                    ? "XML non valido: " + String.join("; ", validazione.getErrori())
+                    : "Errore " + fase + " lotto: " + e.getMessage();
+            for (Fattura fattura : fatture) {
+                fattura.setStato(Fattura.StatoFattura.ERRORE);
+                fattura.setNoteErrore(StringUtils.abbreviate(nota, 2000));
+            }
+            fatturaRepository.saveAll(fatture);
+        }
+    }
+
+    private record ChiaveLotto(String partitaIvaCedente, String codiceFiscaleCessionario,
+                               String partitaIvaCessionario, String codiceDestinatario, String pecDestinatario) {
+
+        static ChiaveLotto di(Fattura fattura) {
+            return new ChiaveLotto(fattura.getPartitaIvaCedente(), fattura.getCodiceFiscaleCessionario(),
+                    fattura.getPartitaIvaCessionario(), fattura.getCodiceDestinatario(), fattura.getPecDestinatario());
+        }
+    }
+
+    // Percorso del .p7m della fattura: la firma viene verificata da scriviXmlFirmato durante la copia
+    @Transactional(readOnly = true)
+    public String percorsoXmlFirmato(Long fatturaId) {
+        Fattura fattura = fatturaRepository.findById(fatturaId)
+                .orElseThrow(() -> new FatturaNotFoundException("Fattura non trovata con ID: " + fatturaId));
+
+        if (fattura.getXmlFirmatoPath() == null) {
+            throw new IllegalStateException("La fattura non ha un XML firmato");
+        }
+        return fattura.getXmlFirmatoPath();
+    }
+
+    // Copia l'XML contenuto nel .p7m sulla destinazione e verifica la firma nello stesso passaggio,
+    // senza caricarlo in memoria. L'esito arriva a contenuto scritto: con firma non valida l'eccezione
+    // interrompe la risposta, che il client riceve incompleta
+    public void scriviXmlFirmato(String xmlFirmatoPath, OutputStream destinazione) {
+        if (!firmaDigitaleService.estraiContenuto(xmlFirmatoPath, destinazione)) {
+            throw new FirmaDigitaleException("Firma non valida per il file: " + xmlFirmatoPath);
+        }
+    }
+
     @Transactional(readOnly = true)
     public FatturaResponseDTO getFattura(Long id) {
         Fattura fattura = fatturaRepository.findById(id)
@@ -237,76 +521,157 @@ public class FatturaService {
                                  NotificaSdi.TipoNotifica tipoNotifica, String messaggioNotifica) throws Exception {
         log.info("Processamento notifica - IdentificativoSdI: {}, Tipo: {}", identificativoSdi, tipoNotifica);
 
-        // Trova la fattura
-        Fattura fattura = fatturaRepository.findByIdentificativoSdi(identificativoSdi)
-                .orElseThrow(() -> new FatturaNotFoundException(
-                        "Fattura non trovata con IdentificativoSdI: " + identificativoSdi));
-
-        // Scarica la notifica da SDI
-        byte[] notificaContent = sdiService.scaricaNotifica(identificativoSdi, nomeFileNotifica);
+        // Verifica che l'invio esista prima di scaricare la notifica
+        if (!fatturaRepository.existsByIdentificativoSdi(identificativoSdi)) {
+            throw new FatturaNotFoundException("Fattura non trovata con IdentificativoSdI: " + identificativoSdi);
+        }
 
-        // Salva la notifica su disco
+        // Scarica la notifica da SDI direttamente su disco
         String notificaPath = storagePath + "/notifiche/" + nomeFileNotifica;
         File notificaDir = new File(storagePath + "/notifiche");
         if (!notificaDir.exists()) {
             notificaDir.mkdirs();
         }
-        
-        try (FileOutputStream fos = new FileOutputStream(notificaPath)) {
-            fos.write(notificaContent);
-        }
 
-        // Crea l'entità NotificaSdi
-        NotificaSdi notifica = NotificaSdi.builder()
-                .fattura(fattura)
-                .tipoNotifica(tipoNotifica)
-                .identificativoSdi(identificativoSdi)
-                .dataRicezione(LocalDateTime.now())
-                .messaggioNotifica(messaggioNotifica)
-                .xmlNotificaPath(notificaPath)
-                .build();
+        long inizio = System.nanoTime();
+        sdiService.scaricaNotifica(identificativoSdi, nomeFileNotifica, Path.of(notificaPath));
+        tempiFasi.registra("scaricamentoNotifica", inizio);
 
-        notificaSdiRepository.save(notifica);
+        aggiornaFatture(identificativoSdi, tipoNotifica, messaggioNotifica, notificaPath);
+    }
 
-        // Aggiorna lo stato della fattura in base al tipo di notifica
-        aggiornaStatoFattura(fattura, tipoNotifica, messaggioNotifica);
+    // Notifica già su disco (consegnata da SDI al servizio RicezioneNotifiche o trovata dal poller):
+    // nessuno scaricamento, il messaggio viene ricavato dal file
+    @Transactional
+    public void registraNotifica(String identificativoSdi, NotificaSdi.TipoNotifica tipoNotifica,
+                                 String notificaPath) {
+        log.info("Registrazione notifica ricevuta - IdentificativoSdI: {}, Tipo: {}", identificativoSdi, tipoNotifica);
+
+        // SDI ritrasmette le notifiche di cui non ha ricevuto conferma: il file è lo stesso
+        if (notificaSdiRepository.existsByIdentificativoSdiAndXmlNotificaPath(identificativoSdi, notificaPath)) {
+            log.info("Notifica {} già registrata", notificaPath);
+            return;
+        }
+        aggiornaFatture(identificativoSdi, tipoNotifica, null, notificaPath);
+    }
+
+    // messaggioNotifica null: viene ricavato dal contenuto del file
+    private void aggiornaFatture(String identificativoSdi, NotificaSdi.TipoNotifica tipoNotifica,
+                                 String messaggioNotifica, String notificaPath) {
+        // File letto prima di prendere il lock sulle fatture
+        LettoreNotificaSdi.ContenutoNotifica contenuto = leggiNotifica(notificaPath);
+        String messaggio = messaggioNotifica != null ? messaggioNotifica : contenuto.messaggio(tipoNotifica);
+
+        // Fatture (più di una se l'invio era un lotto) bloccate fino al commit: le notifiche dello stesso
+        // IdentificativoSdI applicate da thread o istanze diverse non si sovrappongono
+        List<Fattura> fatture = fatturaRepository.findAllByIdentificativoSdiPerAggiornamento(identificativoSdi);
+        if (fatture.isEmpty() && contenuto.nomeFile() != null) {
+            // Invio con esito incerto o file di un archivio: la notifica riporta il nome del file inviato
+            fatture = outboxSdiService.associaNotifica(identificativoSdi, contenuto.nomeFile());
+        }
+        if (fatture.isEmpty()) {
+            throw new FatturaNotFoundException("Fattura non trovata con IdentificativoSdI: " + identificativoSdi);
+        }
 
-        log.info("Notifica processata con successo per fattura ID: {}", fattura.getId());
+        for (Fattura fattura : fatture) {
+            // Crea l'entità NotificaSdi
+            NotificaSdi notifica = NotificaSdi.builder()
+                    .fattura(fattura)
+                    .tipoNotifica(tipoNotifica)
+                    .identificativoSdi(identificativoSdi)
+                    .dataRicezione(LocalDateTime.now())
+                    .messaggioNotifica(messaggio)
+                    .xmlNotificaPath(notificaPath)
+                    .esito(contenuto.esito())
+                    .dataOraRicezioneSdi(contenuto.dataOraRicezione())
+                    .dataOraConsegna(contenuto.dataOraConsegna())
+                    .messageIdSdi(contenuto.messageId())
+                    .errori(contenuto.errori().stream()
+                            .map(e -> new ErroreNotificaSdi(e.codice(), e.descrizione(), e.suggerimento()))
+                            .collect(Collectors.toList()))
+                    .build();
+
+            notificaSdiRepository.save(notifica);
+
+            // Aggiorna lo stato della fattura in base al tipo di notifica
+            aggiornaStatoFattura(fattura, tipoNotifica, contenuto, messaggio);
+
+            log.info("Notifica processata con successo per fattura ID: {}", fattura.getId());
+        }
     }
 
-    private void aggiornaStatoFattura(Fattura fattura, NotificaSdi.TipoNotifica tipoNotifica, 
-                                     String messaggioNotifica) {
+    private void aggiornaStatoFattura(Fattura fattura, NotificaSdi.TipoNotifica tipoNotifica,
+                                     LettoreNotificaSdi.ContenutoNotifica contenuto, String messaggioNotifica) {
+        Fattura.StatoFattura nuovoStato;
+        String noteErrore = null;
         switch (tipoNotifica) {
             case RICEVUTA_CONSEGNA:
-                fattura.setStato(Fattura.StatoFattura.CONSEGNATA);
-                fattura.setDataRicevutaConsegna(LocalDateTime.now());
+                nuovoStato = Fattura.StatoFattura.CONSEGNATA;
+                fattura.setDataRicevutaConsegna(contenuto.dataOraConsegna() != null
+                        ? contenuto.dataOraConsegna() : LocalDateTime.now());
                 break;
             case NOTIFICA_ESITO:
-                // Verifica se è accettata o rifiutata dal messaggio
-                if (messaggioNotifica != null && messaggioNotifica.toLowerCase().contains("accettata")) {
-                    fattura.setStato(Fattura.StatoFattura.ACCETTATA);
+                // Esito del committente letto dal file: EC01 accettata, EC02 rifiutata
+                if ("EC01".equals(contenuto.esito())) {
+                    nuovoStato = Fattura.StatoFattura.ACCETTATA;
+                } else if ("EC02".equals(contenuto.esito())) {
+                    nuovoStato = Fattura.StatoFattura.RIFIUTATA;
+                    noteErrore = "Fattura rifiutata: " + messaggioNotifica;
                 } else {
-                    fattura.setStato(Fattura.StatoFattura.RIFIUTATA);
-                    fattura.setNoteErrore("Fattura rifiutata: " + messaggioNotifica);
+                    log.warn("Esito non leggibile nella notifica per fattura ID: {}, stato invariato", fattura.getId());
+                    nuovoStato = fattura.getStato();
                 }
                 break;
             case NOTIFICA_SCARTO:
-                fattura.setStato(Fattura.StatoFattura.SCARTATA);
-                fattura.setNoteErrore("Fattura scartata: " + messaggioNotifica);
+                nuovoStato = Fattura.StatoFattura.SCARTATA;
+                noteErrore = "Fattura scartata: " + messaggioNotifica;
                 break;
             case NOTIFICA_MANCATA_CONSEGNA:
             case ATTESTAZIONE_TRASMISSIONE:
-                fattura.setStato(Fattura.StatoFattura.ERRORE);
-                fattura.setNoteErrore(messaggioNotifica);
+                nuovoStato = Fattura.StatoFattura.ERRORE;
+                noteErrore = messaggioNotifica;
                 break;
             case NOTIFICA_DECORRENZA_TERMINI:
-                fattura.setStato(Fattura.StatoFattura.ACCETTATA);
+                nuovoStato = Fattura.StatoFattura.ACCETTATA;
                 break;
+            default:
+                throw new IllegalArgumentException("Tipo di notifica non gestito: " + tipoNotifica);
+        }
+
+        // Lo stato avanza soltanto: una notifica arrivata in ritardo (es. ricevuta di consegna dopo
+        // l'esito) resta registrata ma non riporta indietro la fattura
+        if (livello(nuovoStato) < livello(fattura.getStato())) {
+            log.info("Notifica {} successiva allo stato {} della fattura ID: {}, stato invariato",
+                    tipoNotifica, fattura.getStato(), fattura.getId());
+        } else {
+            fattura.setStato(nuovoStato);
+            if (noteErrore != null) {
+                fattura.setNoteErrore(noteErrore);
+            }
         }
 
         fatturaRepository.save(fattura);
     }
 
+    // Un file illeggibile non blocca la registrazione: la notifica resta senza i campi del contenuto
+    private static LettoreNotificaSdi.ContenutoNotifica leggiNotifica(String notificaPath) {
+        try (InputStream in = Files.newInputStream(Path.of(notificaPath))) {
+            return LettoreNotificaSdi.leggi(in);
+        } catch (IOException | XMLStreamException e) {
+            log.warn("Impossibile leggere la notifica {}: {}", notificaPath, e.getMessage());
+            return LettoreNotificaSdi.ContenutoNotifica.vuoto();
+        }
+    }
+
+    // Avanzamento dopo l'invio: consegna (o mancata consegna), poi esito definitivo
+    private static int livello(Fattura.StatoFattura stato) {
+        return switch (stato) {
+            case CONSEGNATA, ERRORE -> 1;
+            case ACCETTATA, RIFIUTATA, SCARTATA -> 2;
+            default -> 0;
+        };
+    }
+
     @Transactional
     public void eliminaFattura(Long id) {
         log.info("Eliminazione fattura ID: {}", id);
@@ -320,11 +685,13 @@ public class FatturaService {
             throw new IllegalStateException("Non è possibile eliminare una fattura già inviata");
         }
 
-        // Elimina i file associati
-        if (fattura.getXmlPath() != null) {
+        // Elimina i file associati (non se condivisi con altre fatture dello stesso lotto)
+        boolean fileCondivisi = fattura.getXmlFirmatoPath() != null
+                && fatturaRepository.countByXmlFirmatoPath(fattura.getXmlFirmatoPath()) > 1;
+        if (fattura.getXmlPath() != null && !fileCondivisi) {
             new File(fattura.getXmlPath()).delete();
         }
-        if (fattura.getXmlFirmatoPath() != null) {
+        if (fattura.getXmlFirmatoPath() != null && !fileCondivisi) {
             new File(fattura.getXmlFirmatoPath()).delete();
         }
 
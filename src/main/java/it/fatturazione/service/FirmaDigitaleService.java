@@ -1,32 +1,50 @@
 package it.fatturazione.service;
 
+import it.fatturazione.config.FirmaProperties;
 import it.fatturazione.exception.FirmaDigitaleException;
+import it.fatturazione.service.firma.CacheVerificaFirma;
+import it.fatturazione.service.firma.MaterialeFirma;
+import it.fatturazione.service.firma.OsservatoreKeystore;
+import it.fatturazione.service.firma.RegistroFirmatari;
+import it.fatturazione.service.metriche.MetricheProvider;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.*;
 import org.bouncycastle.cms.jcajce.*;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.OutputEncryptor;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.security.*;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
+@RequiredArgsConstructor
 @Slf4j
-public class FirmaDigitaleService {
+public class FirmaDigitaleService implements MetricheProvider {
+
+    private final CacheVerificaFirma cacheVerificaFirma;
+    private final FirmaProperties firmaProperties;
 
     @Value("${firma.keystore.path}")
     private String keystorePath;
@@ -40,64 +58,97 @@ public class FirmaDigitaleService {
     @Value("${firma.key.password}")
     private String keyPassword;
 
-    private KeyStore keyStore;
-    private PrivateKey privateKey;
-    private X509Certificate certificate;
+    // Thread per la firma batch (0 = numero di core)
+    @Value("${firma.batch.thread:0}")
+    private int threadFirma;
+
+    // Ricarica a caldo del keystore quando il file cambia (WatchService sulla directory)
+    @Value("${firma.keystore.reload.enabled:true}")
+    private boolean ricaricaACaldo;
+
+    // Attesa dopo l'ultimo evento prima di rileggere il file
+    @Value("${firma.keystore.reload.attesa-ms:500}")
+    private long attesaRicaricaMs;
+
+    private final Provider provider = new BouncyCastleProvider();
+    private DigestCalculatorProvider digestCalculatorProvider;
+    private RegistroFirmatari registroFirmatari;
+    private ExecutorService executorFirma;
+    private OsservatoreKeystore osservatoreKeystore;
 
     @PostConstruct
     public void init() {
-        Security.addProvider(new BouncyCastleProvider());
+        Security.addProvider(provider);
         try {
-            caricaCertificato();
-        } catch (Exception e) {
-            log.warn("Impossibile caricare il certificato all'avvio: {}. Verrà caricato al primo utilizzo.", 
-                    e.getMessage());
+            digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider(provider).build();
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Impossibile inizializzare il digest provider", e);
+        }
+        int thread = threadFirma > 0 ? threadFirma : Runtime.getRuntime().availableProcessors();
+        AtomicInteger contatore = new AtomicInteger();
+        executorFirma = Executors.newFixedThreadPool(thread, r -> {
+            Thread t = new Thread(r, "firma-" + contatore.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        FirmaProperties.Firmatario predefinito = new FirmaProperties.Firmatario();
+        predefinito.setKeystorePath(keystorePath);
+        predefinito.setKeystorePassword(keystorePassword);
+        predefinito.setKeyAlias(keyAlias);
+        predefinito.setKeyPassword(keyPassword);
+        registroFirmatari = new RegistroFirmatari(predefinito, firmaProperties.getCedenti(),
+                provider, cacheVerificaFirma::invalidaCertificato);
+        registroFirmatari.caricaTutti();
+        if (ricaricaACaldo) {
+            try {
+                osservatoreKeystore = registroFirmatari.osserva(attesaRicaricaMs);
+            } catch (IOException e) {
+                log.warn("Ricarica a caldo dei keystore non disponibile: {}", e.getMessage());
+            }
         }
     }
 
-    private void caricaCertificato() throws Exception {
-        log.info("Caricamento certificato da: {}", keystorePath);
-        
-        keyStore = KeyStore.getInstance("PKCS12");
-        
-        try (InputStream is = getKeystoreInputStream()) {
-            keyStore.load(is, keystorePassword.toCharArray());
+    @PreDestroy
+    public void shutdown() {
+        executorFirma.shutdown();
+        if (osservatoreKeystore != null) {
+            try {
+                osservatoreKeystore.close();
+            } catch (IOException e) {
+                log.warn("Chiusura dell'osservatore keystore fallita: {}", e.getMessage());
+            }
         }
+    }
 
-        Key key = keyStore.getKey(keyAlias, keyPassword.toCharArray());
-        if (!(key instanceof PrivateKey)) {
-            throw new FirmaDigitaleException("La chiave non è una chiave privata");
-        }
-        privateKey = (PrivateKey) key;
+    // Controlla subito i keystore senza attendere gli eventi del file system
+    public void ricaricaKeystore() {
+        registroFirmatari.ricaricaSeModificati();
+    }
 
-        Certificate cert = keyStore.getCertificate(keyAlias);
-        if (!(cert instanceof X509Certificate)) {
-            throw new FirmaDigitaleException("Il certificato non è un X509Certificate");
-        }
-        certificate = (X509Certificate) cert;
+    @Override
+    public String nome() {
+        return "firma.keystore";
+    }
 
-        log.info("Certificato caricato con successo. Subject: {}", certificate.getSubjectX500Principal());
+    @Override
+    public Map<String, Object> metriche() {
+        return registroFirmatari.metriche();
     }
 
-    private InputStream getKeystoreInputStream() throws IOException {
-        if (keystorePath.startsWith("classpath:")) {
-            String path = keystorePath.substring("classpath:".length());
-            InputStream is = getClass().getClassLoader().getResourceAsStream(path);
-            if (is == null) {
-                throw new FileNotFoundException("Keystore non trovato nel classpath: " + path);
-            }
-            return is;
-        } else {
-            return new FileInputStream(keystorePath);
-        }
+    // Verifica per la sonda di salute: certificato predefinito caricato e in corso di validità
+    public void verificaCertificato() throws Exception {
+        registroFirmatari.materiale(null).getCertificate().checkValidity();
     }
 
     public String firmaFile(String inputFilePath) throws FirmaDigitaleException {
+        return firmaFile(inputFilePath, null);
+    }
+
+    // Firma con il certificato associato alla partita IVA del cedente (o con quello predefinito)
+    public String firmaFile(String inputFilePath, String partitaIvaCedente) throws FirmaDigitaleException {
         try {
             // Verifica che il certificato sia caricato
-            if (privateKey == null || certificate == null) {
-                caricaCertificato();
-            }
+            MaterialeFirma materiale = registroFirmatari.materiale(partitaIvaCedente);
 
             log.info("Inizio firma del file: {}", inputFilePath);
 
@@ -105,33 +156,14 @@ public class FirmaDigitaleService {
                 byte[] content = Files.readAllBytes(new File(inputFilePath).toPath());
 
             // Crea il CMSSignedDataGenerator
-            CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-
-            // Crea il ContentSigner
-            ContentSigner contentSigner = new JcaContentSignerBuilder("SHA256withRSA")
-                    .setProvider("BC")
-                    .build(privateKey);
-
-            // Aggiungi il firmatario
-            generator.addSignerInfoGenerator(
-                    new JcaSignerInfoGeneratorBuilder(
-                            new JcaDigestCalculatorProviderBuilder()
-                                    .setProvider("BC")
-                                    .build())
-                            .build(contentSigner, certificate));
-
-            // Aggiungi i certificati
-            List<X509Certificate> certList = new ArrayList<>();
-            certList.add(certificate);
-            Store certs = new JcaCertStore(certList);
-            generator.addCertificates(certs);
+            CMSSignedDataGenerator generator = materiale.generatore();
 
             // Genera il CMS signed data
             CMSTypedData msg = new CMSProcessableByteArray(content);
             CMSSignedData signedData = generator.generate(msg, true);
 
             // Salva il file firmato
-            String outputFilePath = inputFilePath.replace(".xml", ".xml.p7m");
+            String outputFilePath = percorsoFirmato(inputFilePath);
             try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
                 fos.write(signedData.getEncoded());
             }
@@ -145,51 +177,144 @@ public class FirmaDigitaleService {
         }
     }
 
-    public boolean verificaFirma(String filePath) {
-        try {
-            byte[] signedData = Files.readAllBytes(new File(filePath).toPath());
-            CMSSignedData cms = new CMSSignedData(signedData);
-            
-            Store certStore = cms.getCertificates();
-            SignerInformationStore signers = cms.getSignerInfos();
-            
-            for (SignerInformation signer : signers.getSigners()) {
-                @SuppressWarnings("unchecked")
-                java.util.Collection certCollection = certStore.getMatches(signer.getSID());
-                
-                if (!certCollection.isEmpty()) {
-                    X509Certificate cert = (X509Certificate) certCollection.iterator().next();
-                    
-                    if (signer.verify(new JcaSimpleSignerInfoVerifierBuilder()
-                            .setProvider("BC")
-                            .build(cert))) {
-                        log.info("Firma valida per il certificato: {}", cert.getSubjectX500Principal());
-                        return true;
-                    }
-                }
+    // Firma più file in parallelo sul pool dedicato; i file in errore non interrompono gli altri
+    public EsitoFirmaBatch firmaFiles(List<String> inputFilePaths) {
+        Map<String, String> cedentePerFile = new LinkedHashMap<>();
+        inputFilePaths.forEach(inputFilePath -> cedentePerFile.put(inputFilePath, null));
+        return firmaFiles(cedentePerFile);
+    }
+
+    // File da firmare con la partita IVA del rispettivo cedente: ogni chiave ha il proprio materiale,
+    // un batch con cedenti diversi non si serializza su una sola chiave
+    public EsitoFirmaBatch firmaFiles(Map<String, String> cedentePerFile) {
+        log.info("Inizio firma batch di {} file", cedentePerFile.size());
+
+        List<String> inputFilePaths = new ArrayList<>(cedentePerFile.keySet());
+        List<Future<String>> futures = new ArrayList<>(inputFilePaths.size());
+        for (String inputFilePath : inputFilePaths) {
+            String partitaIvaCedente = cedentePerFile.get(inputFilePath);
+            futures.add(executorFirma.submit(() -> firmaFile(inputFilePath, partitaIvaCedente)));
+        }
+
+        Map<String, String> firmati = new LinkedHashMap<>();
+        Map<String, String> scartati = new LinkedHashMap<>();
+        for (int i = 0; i < inputFilePaths.size(); i++) {
+            String inputFilePath = inputFilePaths.get(i);
+            try {
+                firmati.put(inputFilePath, futures.get(i).get());
+            } catch (ExecutionException e) {
+                scartati.put(inputFilePath, e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                scartati.put(inputFilePath, "Firma interrotta");
             }
-            
-            return false;
+        }
+
+        log.info("Firma batch completata: {} firmati, {} scartati", firmati.size(), scartati.size());
+        return new EsitoFirmaBatch(firmati, scartati);
+    }
+
+    // Restituisce lo stream su cui scrivere il contenuto da firmare: il digest viene calcolato
+    // al passaggio dei byte e la busta CMS (attached) viene completata alla chiusura dello stream
+    public OutputStream apriStreamFirma(OutputStream destinazione) throws FirmaDigitaleException {
+        return apriStreamFirma(destinazione, null);
+    }
+
+    public OutputStream apriStreamFirma(OutputStream destinazione, String partitaIvaCedente) throws FirmaDigitaleException {
+        try {
+            CMSSignedDataStreamGenerator generator = registroFirmatari.materiale(partitaIvaCedente).generatoreStream();
+
+            return generator.open(destinazione, true);
+
+        } catch (Exception e) {
+            log.error("Errore durante l'apertura dello stream di firma", e);
+            throw new FirmaDigitaleException("Errore durante l'apertura dello stream di firma: " + e.getMessage(), e);
+        }
+    }
+
+    public String percorsoFirmato(String xmlPath) {
+        return xmlPath.replace(".xml", ".xml.p7m");
+    }
+
+    // Un solo passaggio sul file anche alla prima verifica: un file già verificato evita solo la verifica RSA
+    public boolean verificaFirma(String filePath) {
+        try (InputStream p7m = apriFileFirmato(filePath)) {
+            return verifica(p7m, OutputStream.nullOutputStream());
         } catch (Exception e) {
             log.error("Errore durante la verifica della firma", e);
             return false;
         }
     }
 
-    public byte[] estraiContenuto(String fileFirmato) throws FirmaDigitaleException {
-        try {
-            byte[] signedData = Files.readAllBytes(new File(fileFirmato).toPath());
-            CMSSignedData cms = new CMSSignedData(signedData);
-            
-            CMSProcessable signedContent = cms.getSignedContent();
-            if (signedContent != null) {
-                return (byte[]) signedContent.getContent();
-            }
-            
-            throw new FirmaDigitaleException("Impossibile estrarre il contenuto dal file firmato");
+    // Copia il contenuto firmato sulla destinazione e verifica la firma nello stesso passaggio:
+    // restituisce l'esito della verifica, disponibile solo a contenuto interamente scritto
+    public boolean estraiContenuto(String fileFirmato, OutputStream destinazione) throws FirmaDigitaleException {
+        try (InputStream p7m = apriFileFirmato(fileFirmato)) {
+            return verifica(p7m, destinazione);
+        } catch (FirmaDigitaleException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Errore durante l'estrazione del contenuto", e);
             throw new FirmaDigitaleException("Errore durante l'estrazione del contenuto: " + e.getMessage(), e);
         }
     }
+
+    private InputStream apriFileFirmato(String filePath) throws IOException {
+        return new BufferedInputStream(Files.newInputStream(new File(filePath).toPath()), 64 * 1024);
+    }
+
+    // Il parser legge la busta CMS in streaming: i digest vengono aggiornati mentre il contenuto
+    // passa verso la destinazione, poi si leggono certificati e SignerInfo in coda al file.
+    // L'impronta del file viene calcolata nello stesso passaggio: con il seriale del firmatario forma la
+    // chiave della cache, consultata prima della verifica RSA
+    private boolean verifica(InputStream p7m, OutputStream destinazione) throws Exception {
+        DigestInputStream file = new DigestInputStream(p7m, MessageDigest.getInstance("SHA-256"));
+        CMSSignedDataParser parser = new CMSSignedDataParser(digestCalculatorProvider, file);
+
+        CMSTypedStream signedContent = parser.getSignedContent();
+        if (signedContent == null) {
+            throw new FirmaDigitaleException("Impossibile estrarre il contenuto dal file firmato");
+        }
+        try (InputStream contenuto = signedContent.getContentStream()) {
+            contenuto.transferTo(destinazione);
+        }
+
+        Store<X509CertificateHolder> certStore = parser.getCertificates();
+        Collection<SignerInformation> signers = parser.getSignerInfos().getSigners();
+        file.transferTo(OutputStream.nullOutputStream());
+        String sha256 = HexFormat.of().formatHex(file.getMessageDigest().digest());
+
+        // Le fatture hanno un solo firmatario: il primo identifica la firma nella cache
+        BigInteger seriale = signers.isEmpty() ? null : signers.iterator().next().getSID().getSerialNumber();
+        Boolean esito = cacheVerificaFirma.cerca(sha256, seriale);
+        if (esito != null) {
+            return esito;
+        }
+
+        for (SignerInformation signer : signers) {
+            Collection<X509CertificateHolder> certCollection = certStore.getMatches(signer.getSID());
+
+            if (!certCollection.isEmpty()) {
+                X509CertificateHolder cert = certCollection.iterator().next();
+
+                try {
+                    if (signer.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                            .setProvider(provider)
+                            .build(cert))) {
+                        log.info("Firma valida per il certificato: {}", cert.getSubject());
+                        cacheVerificaFirma.registra(sha256, seriale, true);
+                        return true;
+                    }
+                } catch (CMSSignerDigestMismatchException e) {
+                    log.warn("Contenuto alterato: il digest non corrisponde alla firma di {}", cert.getSubject());
+                }
+            }
+        }
+
+        cacheVerificaFirma.registra(sha256, seriale, false);
+        return false;
+    }
+
+    public record EsitoFirmaBatch(Map<String, String> firmati, Map<String, String> scartati) {
+    }
 }
@@ -1,27 +1,56 @@
 package it.fatturazione.service;
 
 import it.fatturazione.exception.SdiException;
+import it.fatturazione.service.progressivo.ProgressivoInvioService;
+import it.fatturazione.service.sdi.EnvelopeFileSdIBase;
+import it.fatturazione.service.sdi.LettoreMultipartRelated;
+import it.fatturazione.service.sdi.LettoreRispostaSdi;
+import it.fatturazione.service.sdi.LimitatoreSdi;
+import it.fatturazione.service.sdi.RispostaHttp;
+import it.fatturazione.service.sdi.SdiHttpTransport;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.xml.soap.*;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.core5.concurrent.DefaultThreadFactory;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.http.*;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.HttpServerErrorException;
 
-import javax.net.ssl.*;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.security.cert.X509Certificate;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Service
+@RequiredArgsConstructor
 @Slf4j
 public class SdiService {
 
+    private final ProgressivoInvioService progressivoInvioService;
+    private final SdiHttpTransport sdiHttpTransport;
+    private final LimitatoreSdi limitatoreSdi;
+
     @Value("${sdi.ws.url}")
     private String sdiWsUrl;
 
@@ -31,264 +60,339 @@ public class SdiService {
     @Value("${sdi.trasmittente.codice}")
     private String codiceTrasmittente;
 
-    @Value("${sdi.timeout}")
-    private int timeout;
+    // Con MTOM i file viaggiano come parti MIME binarie invece che come testo base64
+    @Value("${sdi.mtom.enabled:false}")
+    private boolean mtomAbilitato;
+
+    // Thread per l'invio degli archivi: lo ZIP viene scritto sulla connessione dal client classico, bloccante
+    @Value("${sdi.archivio.thread:2}")
+    private int threadArchivi;
+
+    private ExecutorService executorArchivi;
+
+    // Ottimista fino alla prima verifica
+    private volatile boolean servizioDisponibile = true;
 
     private static final String NAMESPACE_URI = "http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0";
     private static final String SERVICE_NAME = "TrasmissioneFatture";
 
-    public String inviaFattura(String fileFirmatoPath, String nomeFile) throws SdiException {
-        try {
-            log.info("Inizio invio fattura a SDI: {}", nomeFile);
-
-            // Leggi il file firmato
-            byte[] fileContent = Files.readAllBytes(new File(fileFirmatoPath).toPath());
-            String fileBase64 = Base64.getEncoder().encodeToString(fileContent);
-
-            // Crea il messaggio SOAP
-            MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
-            SOAPMessage soapMessage = messageFactory.createMessage();
-            
-            // Crea il SOAP Body
-            SOAPPart soapPart = soapMessage.getSOAPPart();
-            SOAPEnvelope envelope = soapPart.getEnvelope();
-            SOAPBody soapBody = envelope.getBody();
-
-            // Aggiungi il namespace
-            envelope.addNamespaceDeclaration("tra", NAMESPACE_URI);
-
-            // Crea l'elemento fileSdIBase
-            SOAPElement fileSdIBase = soapBody.addChildElement("fileSdIBase", "tra");
-            
-            // IdentificativoSdI (verrà assegnato da SDI nella risposta)
-            SOAPElement identificativoSdI = fileSdIBase.addChildElement("IdentificativoSdI", "tra");
-            identificativoSdI.addTextNode("0");
-
-            // NomeFile
-            SOAPElement nomeFileElement = fileSdIBase.addChildElement("NomeFile", "tra");
-            nomeFileElement.addTextNode(nomeFile);
-
-            // File (in base64)
-            SOAPElement fileElement = fileSdIBase.addChildElement("File", "tra");
-            fileElement.addTextNode(fileBase64);
-
-            // Salva le modifiche
-            soapMessage.saveChanges();
-
-            // Log del messaggio SOAP (per debug)
-            if (log.isDebugEnabled()) {
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                soapMessage.writeTo(out);
-                log.debug("SOAP Request: {}", out.toString());
-            }
+    @PostConstruct
+    public void init() {
+        executorArchivi = Executors.newFixedThreadPool(Math.max(1, threadArchivi),
+                new DefaultThreadFactory("sdi-archivio", true));
+    }
 
-            // Invia usando RestTemplate
-            SOAPMessage response = inviaSOAPMessage(sdiWsUrl, soapMessage);
+    @PreDestroy
+    public void shutdown() {
+        executorArchivi.shutdown();
+    }
 
-            // Processa la risposta
-            String identificativoSdiRisposta = processaRispostaInvio(response);
+    public String inviaFattura(String fileFirmatoPath, String nomeFile) throws SdiException {
+        return attendi(inviaFatturaAsync(fileFirmatoPath, nomeFile));
+    }
 
-            log.info("Fattura inviata con successo. IdentificativoSdI: {}", identificativoSdiRisposta);
-            return identificativoSdiRisposta;
+    // Invio non bloccante: nessun thread resta in attesa di SDI, il future viene completato
+    // sul pool di elaborazione del client quando arriva la risposta
+    public CompletableFuture<String> inviaFatturaAsync(String fileFirmatoPath, String nomeFile) {
+        log.info("Inizio invio fattura a SDI: {}", nomeFile);
 
+        // Envelope fileSdIBase: il file firmato viene codificato in base64 durante la scrittura della richiesta,
+        // o allegato come parte binaria in modalità MTOM
+        AsyncEntityProducer richiesta;
+        try {
+            Path fileFirmato = Path.of(fileFirmatoPath);
+            richiesta = mtomAbilitato
+                    ? EnvelopeFileSdIBase.asyncMtomDaFile(nomeFile, fileFirmato)
+                    : EnvelopeFileSdIBase.asyncDaFile(nomeFile, fileFirmato);
         } catch (Exception e) {
             log.error("Errore durante l'invio della fattura a SDI", e);
-            throw new SdiException("Errore durante l'invio della fattura: " + e.getMessage(), e);
+            return CompletableFuture.failedFuture(
+                    new SdiException("Errore durante l'invio della fattura: " + e.getMessage(), e));
         }
+        log.debug("SOAP Request fileSdIBase: {} ({} byte)", nomeFile, richiesta.getContentLength());
+
+        // Con il circuito aperto o il limite raggiunto il future fallisce subito con SdiNonDisponibileException
+        return limitatoreSdi.esegui(() -> sdiHttpTransport.postAsync(sdiWsUrl, richiesta)
+                .thenApply(this::leggiIdentificativoSdi)
+                .handle((identificativoSdi, errore) -> {
+                    if (errore != null) {
+                        Throwable causa = causa(errore);
+                        log.error("Errore durante l'invio della fattura a SDI", causa);
+                        throw new SdiException("Errore durante l'invio della fattura: " + causa.getMessage(), causa);
+                    }
+                    log.info("Fattura inviata con successo. IdentificativoSdI: {}", identificativoSdi);
+                    return identificativoSdi;
+                }));
     }
 
-    private RestTemplate createInsecureRestTemplate() {
-        try {
-            // Crea un TrustManager che accetta tutti i certificati
-            TrustManager[] trustAllCerts = new TrustManager[] {
-                    new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                        }
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                        }
-                    }
-            };
+    // Invio di un archivio attraverso il limitatore, come i singoli file: con il circuito aperto o il limite
+    // raggiunto il future fallisce subito con SdiNonDisponibileException
+    public CompletableFuture<EsitoInvioArchivio> inviaArchivioAsync(List<String> fileFirmatiPaths, String nomeArchivio) {
+        return limitatoreSdi.esegui(() -> CompletableFuture.supplyAsync(
+                () -> inviaArchivio(fileFirmatiPaths, nomeArchivio), executorArchivi));
+    }
 
-            // Installa il TrustManager
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
+    // Invia in un'unica chiamata un archivio ZIP con più file firmati. Lo ZIP viene scritto
+    // direttamente nell'encoder base64 e da lì nella richiesta HTTP, leggendo i file da disco.
+    private EsitoInvioArchivio inviaArchivio(List<String> fileFirmatiPaths, String nomeArchivio) throws SdiException {
+        try {
+            log.info("Inizio invio archivio a SDI: {} ({} file)", nomeArchivio, fileFirmatiPaths.size());
+
+            List<String> fileInviati = new ArrayList<>();
+            Map<String, String> fileScartati = new LinkedHashMap<>();
+            Set<String> nomiInArchivio = new HashSet<>();
+
+            List<Path> fileInArchivio = new ArrayList<>();
+            for (String fileFirmatoPath : fileFirmatiPaths) {
+                Path file = Path.of(fileFirmatoPath);
+                String nomeFile = file.getFileName().toString();
+                if (!Files.isReadable(file)) {
+                    fileScartati.put(fileFirmatoPath, "File firmato non trovato o non leggibile");
+                    continue;
+                }
+                if (!nomiInArchivio.add(nomeFile)) {
+                    fileScartati.put(fileFirmatoPath, "Nome file già presente nell'archivio");
+                    continue;
+                }
+                fileInArchivio.add(file);
+                fileInviati.add(fileFirmatoPath);
+            }
 
-            // Crea un HostnameVerifier che accetta tutti gli hostname
-            HostnameVerifier allHostsValid = (hostname, session) -> true;
+            if (fileInviati.isEmpty()) {
+                throw new SdiException("Nessun file valido da inserire nell'archivio");
+            }
 
-            HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
-            HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
+            HttpEntity richiesta = mtomAbilitato
+                    ? EnvelopeFileSdIBase.mtomDaArchivio(nomeArchivio, fileInArchivio)
+                    : EnvelopeFileSdIBase.daArchivio(nomeArchivio, fileInArchivio);
+            String identificativoSdi = inviaFileSdIBase(richiesta);
 
-            RestTemplate template = new RestTemplate();
-            log.info("RestTemplate configurato per bypassare la validazione SSL");
-            return template;
+            log.info("Archivio inviato con successo. IdentificativoSdI: {}, file inviati: {}, scartati: {}",
+                    identificativoSdi, fileInviati.size(), fileScartati.size());
+            return new EsitoInvioArchivio(identificativoSdi, fileInviati, fileScartati);
 
+        } catch (SdiException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Errore durante la configurazione del RestTemplate insecure", e);
-            return new RestTemplate();
+            log.error("Errore durante l'invio dell'archivio a SDI", e);
+            throw new SdiException("Errore durante l'invio dell'archivio: " + e.getMessage(), e);
         }
     }
 
-    private SOAPMessage inviaSOAPMessage(String url, SOAPMessage request) throws Exception {
-        // Converti il messaggio SOAP in byte array
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        request.writeTo(outputStream);
-        byte[] requestBytes = outputStream.toByteArray();
-
-        // Configura RestTemplate con timeout
-        RestTemplate restTemplate = createInsecureRestTemplate();
-        
-        // Prepara gli headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType("text/xml; charset=utf-8"));
-        headers.set("SOAPAction", "");
+    public String generaNomeArchivio() {
+        return "IT" + codiceTrasmittente + "_" + progressivoInvioService.prossimo(codiceTrasmittente) + ".zip";
+    }
 
-        // Crea la richiesta HTTP
-        HttpEntity<byte[]> httpEntity = new HttpEntity<>(requestBytes, headers);
+    public record EsitoInvioArchivio(String identificativoSdi, List<String> fileInviati,
+                                     Map<String, String> fileScartati) {
+    }
 
-        try {
-            // Invia la richiesta
-            ResponseEntity<byte[]> responseEntity = restTemplate.exchange(
-                url,
-                HttpMethod.POST,
-                httpEntity,
-                byte[].class
-            );
-
-            // Converti la risposta in SOAPMessage
-            MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(responseEntity.getBody());
-            return messageFactory.createMessage(null, inputStream);
-
-        } catch (HttpClientErrorException | HttpServerErrorException e) {
-            log.error("Errore HTTP durante l'invio SOAP: {} - {}", e.getStatusCode(), e.getResponseBodyAsString());
-            throw new SdiException("Errore HTTP: " + e.getStatusCode() + " - " + e.getMessage());
-        }
+    // Client classico per l'archivio: lo ZIP viene prodotto scrivendo su uno stream
+    private String inviaFileSdIBase(HttpEntity richiesta) throws IOException {
+        // La risposta viene letta in streaming prima di rilasciare la connessione al pool
+        return sdiHttpTransport.post(sdiWsUrl, richiesta, response -> {
+            HttpEntity entity = response.getEntity();
+            return leggiIdentificativoSdi(response.getCode(), response.getReasonPhrase(),
+                    entity != null ? entity.getContentType() : null, entity != null ? entity.getContent() : null);
+        });
     }
 
-    private String processaRispostaInvio(SOAPMessage response) throws Exception {
-        if (log.isDebugEnabled()) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            response.writeTo(out);
-            log.debug("SOAP Response: {}", out.toString());
+    private String leggiIdentificativoSdi(RispostaHttp risposta) {
+        try (risposta) {
+            return leggiIdentificativoSdi(risposta.getCodice(), risposta.getMotivo(),
+                    risposta.getContentType(), risposta.apriCorpo());
+        } catch (IOException e) {
+            throw new SdiException("Errore nella lettura della risposta SDI: " + e.getMessage(), e);
         }
+    }
 
-        SOAPBody responseBody = response.getSOAPBody();
-
-        // Verifica se c'è un fault
-        if (responseBody.hasFault()) {
-            SOAPFault fault = responseBody.getFault();
-            String faultString = fault.getFaultString();
-            log.error("SOAP Fault ricevuto: {}", faultString);
-            throw new SdiException("Errore SDI: " + faultString);
+    private String leggiIdentificativoSdi(int codice, String motivo, String contentType, InputStream corpo) throws IOException {
+        String identificativoSdi;
+        try (InputStream envelope = apriRisposta(codice, motivo, contentType, corpo).envelope()) {
+            identificativoSdi = LettoreRispostaSdi.leggiIdentificativoSdi(envelope);
+        } catch (XMLStreamException e) {
+            throw new SdiException("Risposta SOAP non valida: " + e.getMessage(), e);
         }
-
-        // Estrai l'IdentificativoSdI dalla risposta
-        SOAPElement fileSdIBaseElement = (SOAPElement) responseBody.getFirstChild();
-        
-        // Cerca l'elemento IdentificativoSdI
-        String identificativoSdi = null;
-        java.util.Iterator<?> it = fileSdIBaseElement.getChildElements();
-        while (it.hasNext()) {
-            Object node = it.next();
-            if (node instanceof SOAPElement) {
-                SOAPElement element = (SOAPElement) node;
-                if ("IdentificativoSdI".equals(element.getLocalName())) {
-                    identificativoSdi = element.getTextContent();
-                    break;
-                }
-            }
+        if (codice >= 300) {
+            throw new SdiException("Errore HTTP: " + codice + " - " + motivo, new HttpResponseException(codice, motivo));
         }
+        log.debug("SOAP Response fileSdIBase: IdentificativoSdI {}", identificativoSdi);
 
         if (identificativoSdi == null || "0".equals(identificativoSdi)) {
             throw new SdiException("IdentificativoSdI non valido nella risposta");
         }
-
         return identificativoSdi;
     }
 
-    public byte[] scaricaNotifica(String identificativoSdi, String nomeFile) throws SdiException {
-        try {
-            log.info("Scaricamento notifica da SDI - IdentificativoSdI: {}, File: {}", 
-                    identificativoSdi, nomeFile);
-
-            // Crea il messaggio SOAP per scaricare la notifica
-            MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
-            SOAPMessage soapMessage = messageFactory.createMessage();
-            
-            SOAPPart soapPart = soapMessage.getSOAPPart();
-            SOAPEnvelope envelope = soapPart.getEnvelope();
-            SOAPBody soapBody = envelope.getBody();
-
-            envelope.addNamespaceDeclaration("not", NAMESPACE_URI);
+    // Envelope SOAP della risposta e, per le risposte MTOM, il lettore delle parti che seguono
+    private record RispostaSoap(InputStream envelope, LettoreMultipartRelated allegati) {
+    }
 
-            SOAPElement notificaElement = soapBody.addChildElement("riceviNotifica", "not");
-            
-            SOAPElement identificativoElement = notificaElement.addChildElement("IdentificativoSdI", "not");
-            identificativoElement.addTextNode(identificativoSdi);
+    private RispostaSoap apriRisposta(int codice, String motivo, String contentType, InputStream corpo) throws IOException {
+        // I fault SOAP arrivano con HTTP 500 e vengono letti dall'envelope
+        if (corpo == null || (codice >= 300 && codice != 500)) {
+            String testo = corpo != null ? new String(corpo.readAllBytes(), StandardCharsets.UTF_8) : "";
+            log.error("Errore HTTP nella chiamata SOAP a SDI: {} - {}", codice, testo);
+            // La causa HTTP fa contare l'errore come guasto nel circuit breaker
+            throw new SdiException("Errore HTTP: " + codice + " - " + motivo, new HttpResponseException(codice, motivo));
+        }
 
-            SOAPElement nomeFileElement = notificaElement.addChildElement("NomeFile", "not");
-            nomeFileElement.addTextNode(nomeFile);
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/related")) {
+            return new RispostaSoap(corpo, null);
+        }
 
-            soapMessage.saveChanges();
+        // Risposta MTOM: l'envelope è la parte indicata da "start", altrimenti la prima
+        String boundary = LettoreMultipartRelated.parametro(contentType, "boundary");
+        if (boundary == null) {
+            throw new SdiException("Boundary mancante nella risposta MTOM");
+        }
+        String start = LettoreMultipartRelated.normalizzaContentId(LettoreMultipartRelated.parametro(contentType, "start"));
+        LettoreMultipartRelated lettore = new LettoreMultipartRelated(corpo, boundary);
+        LettoreMultipartRelated.Parte parte = lettore.prossima();
+        while (parte != null && start != null && !start.equals(parte.contentId())) {
+            parte = lettore.prossima();
+        }
+        if (parte == null) {
+            throw new SdiException("Envelope SOAP non trovato nella risposta MTOM");
+        }
+        return new RispostaSoap(parte.contenuto(), lettore);
+    }
 
-            // Invia usando RestTemplate
-            SOAPMessage response = inviaSOAPMessage(sdiNotificheUrl, soapMessage);
+    public void scaricaNotifica(String identificativoSdi, String nomeFile, Path destinazione) throws SdiException {
+        attendi(scaricaNotificaAsync(identificativoSdi, nomeFile, destinazione));
+    }
 
-            // Processa la risposta
-            return processaRispostaNotifica(response);
+    // Scarica la notifica e la scrive in destinazione: il base64 dell'elemento File viene decodificato
+    // a blocchi, un allegato MTOM viene copiato così com'è. Il future restituisce la destinazione.
+    public CompletableFuture<Path> scaricaNotificaAsync(String identificativoSdi, String nomeFile, Path destinazione) {
+        log.info("Scaricamento notifica da SDI - IdentificativoSdI: {}, File: {}", 
+                identificativoSdi, nomeFile);
 
+        byte[] richiesta;
+        try {
+            richiesta = creaRichiestaNotifica(identificativoSdi, nomeFile);
         } catch (Exception e) {
             log.error("Errore durante lo scaricamento della notifica", e);
-            throw new SdiException("Errore durante lo scaricamento della notifica: " + e.getMessage(), e);
+            return CompletableFuture.failedFuture(
+                    new SdiException("Errore durante lo scaricamento della notifica: " + e.getMessage(), e));
         }
+
+        return limitatoreSdi.esegui(() -> sdiHttpTransport.postAsync(sdiNotificheUrl,
+                        AsyncEntityProducers.create(richiesta, EnvelopeFileSdIBase.CONTENT_TYPE))
+                .thenApply(risposta -> salvaNotifica(risposta, destinazione))
+                .handle((salvata, errore) -> {
+                    if (errore != null) {
+                        Throwable causa = causa(errore);
+                        // Un fault indica di solito una notifica non ancora disponibile
+                        if (LimitatoreSdi.guasto(causa)) {
+                            log.error("Errore durante lo scaricamento della notifica", causa);
+                        } else {
+                            log.warn("Notifica {} non scaricata: {}", nomeFile, causa.getMessage());
+                        }
+                        try {
+                            Files.deleteIfExists(destinazione);
+                        } catch (IOException ex) {
+                            log.warn("Impossibile eliminare la notifica incompleta {}", destinazione, ex);
+                        }
+                        throw new SdiException("Errore durante lo scaricamento della notifica: " + causa.getMessage(), causa);
+                    }
+                    log.info("Notifica {} salvata in {}", nomeFile, salvata);
+                    return salvata;
+                }));
     }
 
-    private byte[] processaRispostaNotifica(SOAPMessage response) throws Exception {
-        SOAPBody responseBody = response.getSOAPBody();
+    private byte[] creaRichiestaNotifica(String identificativoSdi, String nomeFile) throws SOAPException, IOException {
+        // Crea il messaggio SOAP per scaricare la notifica
+        MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+        SOAPMessage soapMessage = messageFactory.createMessage();
+        
+        SOAPPart soapPart = soapMessage.getSOAPPart();
+        SOAPEnvelope envelope = soapPart.getEnvelope();
+        SOAPBody soapBody = envelope.getBody();
 
-        if (responseBody.hasFault()) {
-            SOAPFault fault = responseBody.getFault();
-            throw new SdiException("Errore SDI: " + fault.getFaultString());
-        }
+        envelope.addNamespaceDeclaration("not", NAMESPACE_URI);
 
-        // Estrai il file dalla risposta (in base64)
-        SOAPElement notificaElement = (SOAPElement) responseBody.getFirstChild();
+        SOAPElement notificaElement = soapBody.addChildElement("riceviNotifica", "not");
         
-        String fileBase64 = null;
-        java.util.Iterator<?> it = notificaElement.getChildElements();
-        while (it.hasNext()) {
-            Object node = it.next();
-            if (node instanceof SOAPElement) {
-                SOAPElement element = (SOAPElement) node;
-                if ("File".equals(element.getLocalName())) {
-                    fileBase64 = element.getTextContent();
-                    break;
+        SOAPElement identificativoElement = notificaElement.addChildElement("IdentificativoSdI", "not");
+        identificativoElement.addTextNode(identificativoSdi);
+
+        SOAPElement nomeFileElement = notificaElement.addChildElement("NomeFile", "not");
+        nomeFileElement.addTextNode(nomeFile);
+
+        soapMessage.saveChanges();
+
+        ByteArrayOutputStream richiesta = new ByteArrayOutputStream();
+        soapMessage.writeTo(richiesta);
+        return richiesta.toByteArray();
+    }
+
+    private Path salvaNotifica(RispostaHttp risposta, Path destinazione) {
+        try (risposta) {
+            RispostaSoap soap = apriRisposta(risposta.getCodice(), risposta.getMotivo(),
+                    risposta.getContentType(), risposta.apriCorpo());
+            try (InputStream in = soap.envelope();
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(destinazione))) {
+                String riferimento = LettoreRispostaSdi.leggiFile(in, out);
+                if (riferimento != null) {
+                    copiaAllegato(soap.allegati(), riferimento, out);
                 }
             }
+            return destinazione;
+        } catch (XMLStreamException e) {
+            throw new SdiException("Risposta SOAP non valida: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new SdiException("Errore nella scrittura della notifica: " + e.getMessage(), e);
+        }
+    }
+
+    private void copiaAllegato(LettoreMultipartRelated allegati, String riferimento, OutputStream out) throws IOException {
+        if (allegati == null) {
+            throw new SdiException("Riferimento XOP " + riferimento + " in una risposta senza allegati");
+        }
+        for (LettoreMultipartRelated.Parte parte = allegati.prossima(); parte != null; parte = allegati.prossima()) {
+            if (riferimento.equals(parte.contentId())) {
+                parte.contenuto().transferTo(out);
+                return;
+            }
         }
+        throw new SdiException("Allegato " + riferimento + " non trovato nella risposta MTOM");
+    }
 
-        if (fileBase64 == null) {
-            throw new SdiException("File non trovato nella risposta della notifica");
+    // API sincrona: attende il future e rilancia l'SdiException originale
+    private static <T> T attendi(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable causa = causa(e);
+            if (causa instanceof SdiException sdiException) {
+                throw sdiException;
+            }
+            throw new SdiException(causa.getMessage(), causa);
         }
+    }
 
-        return Base64.getDecoder().decode(fileBase64);
+    private static Throwable causa(Throwable errore) {
+        return errore instanceof CompletionException && errore.getCause() != null ? errore.getCause() : errore;
     }
 
+    // Esito dell'ultima verifica periodica (SondaSalute): nessuna chiamata a SDI sul percorso della richiesta
     public boolean verificaStatoServizio() {
+        return servizioDisponibile;
+    }
+
+    // Chiamata leggera a SDI (GET del WSDL): misura raggiungibilità, handshake TLS e tempo di risposta.
+    // Un errore HTTP 5xx o di rete rende il servizio non disponibile.
+    public void sondaServizio() throws IOException {
         try {
-            log.info("Verifica stato servizio SDI");
-            
-            // Tentativo di connessione al servizio
-            // In produzione, dovresti implementare una chiamata specifica per verificare lo stato
-            
-            return true;
-        } catch (Exception e) {
-            log.error("Errore durante la verifica dello stato del servizio SDI", e);
-            return false;
+            int codice = sdiHttpTransport.get(sdiWsUrl + "?wsdl");
+            if (codice >= 500) {
+                throw new HttpResponseException(codice, "Verifica SDI fallita");
+            }
+            servizioDisponibile = true;
+        } catch (IOException | RuntimeException e) {
+            servizioDisponibile = false;
+            throw e;
         }
     }
 }
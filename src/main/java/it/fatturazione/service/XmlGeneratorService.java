@@ -2,56 +2,86 @@ package it.fatturazione.service;
 
 import it.fatturazione.dto.FatturaRequestDTO;
 import it.fatturazione.entity.Fattura;
+import it.fatturazione.exception.ValidazioneXmlException;
+import it.fatturazione.service.progressivo.ProgressivoInvioService;
+import it.fatturazione.service.xml.FatturaXmlWriter;
+import it.fatturazione.service.xml.ValidatoreFatturaXml;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 @Service
+@RequiredArgsConstructor
 @Slf4j
 public class XmlGeneratorService {
 
+    private final ValidatoreFatturaXml validatoreFatturaXml;
+    private final ProgressivoInvioService progressivoInvioService;
+
     @Value("${fattura.storage.path}")
     private String storagePath;
 
     @Value("${sdi.trasmittente.codice}")
     private String codiceTrasmittente;
 
+    // Motore di generazione: "dom" (default) oppure "stax"
+    @Value("${fattura.xml.engine:dom}")
+    private String xmlEngine;
+
     private static final String FATTURAPA_VERSION = "FPR12";
     private static final String FORMATO_TRASMISSIONE = "FPR12";
+    private static final String ENGINE_STAX = "stax";
+
+    private static final String NS_FATTURAPA = "http://ivaservizi.agenziaentrate.gov.it/docs/xsd/fatture/v1.2";
+    private static final String NS_XMLDSIG = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String SCHEMA_LOCATION = NS_FATTURAPA
+            + " http://www.fatturapa.gov.it/export/fatturazione/sdi/fatturapa/v1.2/Schema_del_file_xml_FatturaPA_versione_1.2.xsd";
 
     public String generaXml(FatturaRequestDTO request, Fattura fattura) throws Exception {
         log.info("Inizio generazione XML per fattura: {}", request.getNumeroFattura());
 
+        if (ENGINE_STAX.equalsIgnoreCase(xmlEngine)) {
+            return generaXmlStax(request);
+        }
+
+        // Nodi con namespace (createElementNS): il validatore legge il documento direttamente dal DOM
         DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+        docFactory.setNamespaceAware(true);
         DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
         Document doc = docBuilder.newDocument();
 
         // Root element
-        Element root = doc.createElement("p:FatturaElettronica");
-        root.setAttribute("xmlns:ds", "http://www.w3.org/2000/09/xmldsig#");
-        root.setAttribute("xmlns:p", "http://ivaservizi.agenziaentrate.gov.it/docs/xsd/fatture/v1.2");
-        root.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        root.setAttribute("versione", FATTURAPA_VERSION);
-        root.setAttribute("xsi:schemaLocation", 
-            "http://ivaservizi.agenziaentrate.gov.it/docs/xsd/fatture/v1.2 http://www.fatturapa.gov.it/export/fatturazione/sdi/fatturapa/v1.2/Schema_del_file_xml_FatturaPA_versione_1.2.xsd");
+        Element root = doc.createElementNS(NS_FATTURAPA, "p:FatturaElettronica");
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:ds", NS_XMLDSIG);
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:p", NS_FATTURAPA);
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+        root.setAttributeNS(null, "versione", FATTURAPA_VERSION);
+        root.setAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "xsi:schemaLocation", SCHEMA_LOCATION);
         doc.appendChild(root);
 
         // FatturaElettronicaHeader
-        Element header = doc.createElement("FatturaElettronicaHeader");
+        Element header = doc.createElementNS(null, "FatturaElettronicaHeader");
         root.appendChild(header);
 
         // DatiTrasmissione
@@ -64,7 +94,7 @@ public class XmlGeneratorService {
         aggiungiCessionarioCommittente(doc, header, request.getCessionario());
 
         // FatturaElettronicaBody
-        Element body = doc.createElement("FatturaElettronicaBody");
+        Element body = doc.createElementNS(null, "FatturaElettronicaBody");
         root.appendChild(body);
 
         // DatiGenerali
@@ -78,22 +108,24 @@ public class XmlGeneratorService {
             aggiungiDatiPagamento(doc, body, request.getDatiPagamento());
         }
 
-        // Salva il file XML
-        String fileName = generaNomeFile(request.getNumeroFattura());
-        String filePath = storagePath + "/" + fileName;
-        
-        File directory = new File(storagePath);
-        if (!directory.exists()) {
-            directory.mkdirs();
+        // Validazione XSD del documento in memoria, prima di scrivere il file e della firma
+        DOMSource source = new DOMSource(doc);
+        if (validatoreFatturaXml.isAttivo()) {
+            List<String> errori = validatoreFatturaXml.valida(source);
+            if (!errori.isEmpty()) {
+                throw new ValidazioneXmlException(errori);
+            }
         }
 
+        // Salva il file XML
+        String filePath = preparaPercorsoXml(request.getNumeroFattura());
+
         TransformerFactory transformerFactory = TransformerFactory.newInstance();
         Transformer transformer = transformerFactory.newTransformer();
         transformer.setOutputProperty(OutputKeys.INDENT, "yes");
         transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
         transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        
-        DOMSource source = new DOMSource(doc);
+
         StreamResult result = new StreamResult(new File(filePath));
         transformer.transform(source, result);
 
@@ -101,88 +133,163 @@ public class XmlGeneratorService {
         return filePath;
     }
 
+    private String generaXmlStax(FatturaRequestDTO request) throws Exception {
+        String filePath = preparaPercorsoXml(request.getNumeroFattura());
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filePath))) {
+            scriviXml(request, out);
+        } catch (Exception e) {
+            new File(filePath).delete();
+            throw e;
+        }
+
+        log.info("XML generato con successo (StAX): {}", filePath);
+        return filePath;
+    }
+
+    // Scrive la fattura direttamente sullo stream, senza costruire il DOM in memoria.
+    // Se lo schema è disponibile il documento viene validato durante la scrittura.
+    public void scriviXml(FatturaRequestDTO request, OutputStream out) throws XMLStreamException {
+        scriviLotto(List.of(request), out);
+    }
+
+    // Lotto di fatture: un solo header (stesso cedente e cessionario) e un FatturaElettronicaBody per fattura
+    public void scriviLotto(List<FatturaRequestDTO> richieste, OutputStream out) throws XMLStreamException {
+        FatturaRequestDTO intestazione = richieste.get(0);
+        ValidatoreFatturaXml.ErroriValidazione errori = new ValidatoreFatturaXml.ErroriValidazione();
+
+        try (FatturaXmlWriter xml = validatoreFatturaXml.isAttivo()
+                ? new FatturaXmlWriter(out, validatoreFatturaXml.handler(errori))
+                : new FatturaXmlWriter(out)) {
+            xml.apri("p", "FatturaElettronica", NS_FATTURAPA);
+            xml.namespace("p", NS_FATTURAPA);
+            xml.namespace("ds", NS_XMLDSIG);
+            xml.namespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            xml.attributo("versione", FATTURAPA_VERSION);
+            xml.attributo("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation", SCHEMA_LOCATION);
+
+            // FatturaElettronicaHeader
+            xml.apri("FatturaElettronicaHeader");
+            scriviDatiTrasmissione(xml, intestazione);
+            scriviCedentePrestatore(xml, intestazione.getCedente());
+            scriviCessionarioCommittente(xml, intestazione.getCessionario());
+            xml.chiudi();
+
+            // FatturaElettronicaBody
+            for (FatturaRequestDTO request : richieste) {
+                xml.apri("FatturaElettronicaBody");
+                scriviDatiGenerali(xml, request);
+                scriviDatiBeniServizi(xml, request);
+                if (request.getDatiPagamento() != null) {
+                    scriviDatiPagamento(xml, request.getDatiPagamento());
+                }
+                xml.chiudi();
+            }
+
+            xml.chiudi();
+            xml.fine();
+        } catch (XMLStreamException e) {
+            if (!errori.isVuoto()) {
+                throw new ValidazioneXmlException(errori.getErrori());
+            }
+            throw e;
+        }
+
+        if (!errori.isVuoto()) {
+            throw new ValidazioneXmlException(errori.getErrori());
+        }
+    }
+
+    public String preparaPercorsoXml(String numeroFattura) {
+        File directory = new File(storagePath);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return storagePath + "/" + generaNomeFile(numeroFattura);
+    }
+
     private void aggiungiDatiTrasmissione(Document doc, Element header, FatturaRequestDTO request) {
-        Element datiTrasmissione = doc.createElement("DatiTrasmissione");
+        Element datiTrasmissione = doc.createElementNS(null, "DatiTrasmissione");
         header.appendChild(datiTrasmissione);
 
         // IdTrasmittente
-        Element idTrasmittente = doc.createElement("IdTrasmittente");
+        Element idTrasmittente = doc.createElementNS(null, "IdTrasmittente");
         datiTrasmissione.appendChild(idTrasmittente);
         
-        Element idPaese = doc.createElement("IdPaese");
+        Element idPaese = doc.createElementNS(null, "IdPaese");
         idPaese.setTextContent("IT");
         idTrasmittente.appendChild(idPaese);
         
-        Element idCodice = doc.createElement("IdCodice");
+        Element idCodice = doc.createElementNS(null, "IdCodice");
         idCodice.setTextContent(codiceTrasmittente);
         idTrasmittente.appendChild(idCodice);
 
         // ProgressivoInvio
-        Element progressivo = doc.createElement("ProgressivoInvio");
+        Element progressivo = doc.createElementNS(null, "ProgressivoInvio");
         progressivo.setTextContent(generaProgressivoInvio());
         datiTrasmissione.appendChild(progressivo);
 
         // FormatoTrasmissione
-        Element formato = doc.createElement("FormatoTrasmissione");
+        Element formato = doc.createElementNS(null, "FormatoTrasmissione");
         formato.setTextContent(FORMATO_TRASMISSIONE);
         datiTrasmissione.appendChild(formato);
 
         // CodiceDestinatario
-        Element codiceDestinatario = doc.createElement("CodiceDestinatario");
+        Element codiceDestinatario = doc.createElementNS(null, "CodiceDestinatario");
         String codice = request.getCessionario().getCodiceDestinatario();
         codiceDestinatario.setTextContent(codice != null && !codice.isEmpty() ? codice : "0000000");
         datiTrasmissione.appendChild(codiceDestinatario);
 
         // PEC Destinatario (se presente)
         if (request.getCessionario().getPec() != null && !request.getCessionario().getPec().isEmpty()) {
-            Element pec = doc.createElement("PECDestinatario");
+            Element pec = doc.createElementNS(null, "PECDestinatario");
             pec.setTextContent(request.getCessionario().getPec());
             datiTrasmissione.appendChild(pec);
         }
     }
 
     private void aggiungiCedentePrestatore(Document doc, Element header, FatturaRequestDTO.CedenteDTO cedente) {
-        Element cedentePrestatore = doc.createElement("CedentePrestatore");
+        Element cedentePrestatore = doc.createElementNS(null, "CedentePrestatore");
         header.appendChild(cedentePrestatore);
 
         // DatiAnagrafici
-        Element datiAnagrafici = doc.createElement("DatiAnagrafici");
+        Element datiAnagrafici = doc.createElementNS(null, "DatiAnagrafici");
         cedentePrestatore.appendChild(datiAnagrafici);
 
         // IdFiscaleIVA
-        Element idFiscaleIVA = doc.createElement("IdFiscaleIVA");
+        Element idFiscaleIVA = doc.createElementNS(null, "IdFiscaleIVA");
         datiAnagrafici.appendChild(idFiscaleIVA);
         
-        Element idPaese = doc.createElement("IdPaese");
+        Element idPaese = doc.createElementNS(null, "IdPaese");
         idPaese.setTextContent("IT");
         idFiscaleIVA.appendChild(idPaese);
         
-        Element idCodice = doc.createElement("IdCodice");
+        Element idCodice = doc.createElementNS(null, "IdCodice");
         idCodice.setTextContent(cedente.getPartitaIva());
         idFiscaleIVA.appendChild(idCodice);
 
         // CodiceFiscale (se diverso da P.IVA)
         if (cedente.getCodiceFiscale() != null && !cedente.getCodiceFiscale().equals(cedente.getPartitaIva())) {
-            Element codiceFiscale = doc.createElement("CodiceFiscale");
+            Element codiceFiscale = doc.createElementNS(null, "CodiceFiscale");
             codiceFiscale.setTextContent(cedente.getCodiceFiscale());
             datiAnagrafici.appendChild(codiceFiscale);
         }
 
         // Anagrafica
-        Element anagrafica = doc.createElement("Anagrafica");
+        Element anagrafica = doc.createElementNS(null, "Anagrafica");
         datiAnagrafici.appendChild(anagrafica);
         
-        Element denominazione = doc.createElement("Denominazione");
+        Element denominazione = doc.createElementNS(null, "Denominazione");
         denominazione.setTextContent(cedente.getDenominazione());
         anagrafica.appendChild(denominazione);
 
         // RegimeFiscale
-        Element regimeFiscale = doc.createElement("RegimeFiscale");
+        Element regimeFiscale = doc.createElementNS(null, "RegimeFiscale");
         regimeFiscale.setTextContent("RF01"); // Regime ordinario
         datiAnagrafici.appendChild(regimeFiscale);
 
         // Sede
-        Element sede = doc.createElement("Sede");
+        Element sede = doc.createElementNS(null, "Sede");
         cedentePrestatore.appendChild(sede);
         
         aggiungiIndirizzo(doc, sede, cedente.getIndirizzo(), cedente.getCap(), 
@@ -190,17 +297,17 @@ public class XmlGeneratorService {
 
         // Contatti (opzionale)
         if (cedente.getTelefono() != null || cedente.getEmail() != null) {
-            Element contatti = doc.createElement("Contatti");
+            Element contatti = doc.createElementNS(null, "Contatti");
             cedentePrestatore.appendChild(contatti);
             
             if (cedente.getTelefono() != null) {
-                Element telefono = doc.createElement("Telefono");
+                Element telefono = doc.createElementNS(null, "Telefono");
                 telefono.setTextContent(cedente.getTelefono());
                 contatti.appendChild(telefono);
             }
             
             if (cedente.getEmail() != null) {
-                Element email = doc.createElement("Email");
+                Element email = doc.createElementNS(null, "Email");
                 email.setTextContent(cedente.getEmail());
                 contatti.appendChild(email);
             }
@@ -208,42 +315,42 @@ public class XmlGeneratorService {
     }
 
     private void aggiungiCessionarioCommittente(Document doc, Element header, FatturaRequestDTO.CessionarioDTO cessionario) {
-        Element cessionarioCommittente = doc.createElement("CessionarioCommittente");
+        Element cessionarioCommittente = doc.createElementNS(null, "CessionarioCommittente");
         header.appendChild(cessionarioCommittente);
 
         // DatiAnagrafici
-        Element datiAnagrafici = doc.createElement("DatiAnagrafici");
+        Element datiAnagrafici = doc.createElementNS(null, "DatiAnagrafici");
         cessionarioCommittente.appendChild(datiAnagrafici);
 
         // IdFiscaleIVA (se presente)
         if (cessionario.getPartitaIva() != null && !cessionario.getPartitaIva().isEmpty()) {
-            Element idFiscaleIVA = doc.createElement("IdFiscaleIVA");
+            Element idFiscaleIVA = doc.createElementNS(null, "IdFiscaleIVA");
             datiAnagrafici.appendChild(idFiscaleIVA);
             
-            Element idPaese = doc.createElement("IdPaese");
+            Element idPaese = doc.createElementNS(null, "IdPaese");
             idPaese.setTextContent("IT");
             idFiscaleIVA.appendChild(idPaese);
             
-            Element idCodice = doc.createElement("IdCodice");
+            Element idCodice = doc.createElementNS(null, "IdCodice");
             idCodice.setTextContent(cessionario.getPartitaIva());
             idFiscaleIVA.appendChild(idCodice);
         }
 
         // CodiceFiscale
-        Element codiceFiscale = doc.createElement("CodiceFiscale");
+        Element codiceFiscale = doc.createElementNS(null, "CodiceFiscale");
         codiceFiscale.setTextContent(cessionario.getCodiceFiscale());
         datiAnagrafici.appendChild(codiceFiscale);
 
         // Anagrafica
-        Element anagrafica = doc.createElement("Anagrafica");
+        Element anagrafica = doc.createElementNS(null, "Anagrafica");
         datiAnagrafici.appendChild(anagrafica);
         
-        Element denominazione = doc.createElement("Denominazione");
+        Element denominazione = doc.createElementNS(null, "Denominazione");
         denominazione.setTextContent(cessionario.getDenominazione());
         anagrafica.appendChild(denominazione);
 
         // Sede
-        Element sede = doc.createElement("Sede");
+        Element sede = doc.createElementNS(null, "Sede");
         cessionarioCommittente.appendChild(sede);
         
         aggiungiIndirizzo(doc, sede, cessionario.getIndirizzo(), cessionario.getCap(), 
@@ -251,47 +358,47 @@ public class XmlGeneratorService {
     }
 
     private void aggiungiDatiGenerali(Document doc, Element body, FatturaRequestDTO request) {
-        Element datiGenerali = doc.createElement("DatiGenerali");
+        Element datiGenerali = doc.createElementNS(null, "DatiGenerali");
         body.appendChild(datiGenerali);
 
-        Element datiGeneraliDocumento = doc.createElement("DatiGeneraliDocumento");
+        Element datiGeneraliDocumento = doc.createElementNS(null, "DatiGeneraliDocumento");
         datiGenerali.appendChild(datiGeneraliDocumento);
 
         // TipoDocumento
-        Element tipoDocumento = doc.createElement("TipoDocumento");
+        Element tipoDocumento = doc.createElementNS(null, "TipoDocumento");
         tipoDocumento.setTextContent("TD01"); // Fattura
         datiGeneraliDocumento.appendChild(tipoDocumento);
 
         // Divisa
-        Element divisa = doc.createElement("Divisa");
+        Element divisa = doc.createElementNS(null, "Divisa");
         divisa.setTextContent("EUR");
         datiGeneraliDocumento.appendChild(divisa);
 
         // Data
-        Element data = doc.createElement("Data");
+        Element data = doc.createElementNS(null, "Data");
         data.setTextContent(request.getDataFattura().format(DateTimeFormatter.ISO_DATE));
         datiGeneraliDocumento.appendChild(data);
 
         // Numero
-        Element numero = doc.createElement("Numero");
+        Element numero = doc.createElementNS(null, "Numero");
         numero.setTextContent(request.getNumeroFattura());
         datiGeneraliDocumento.appendChild(numero);
 
         // Importo Totale Documento
         BigDecimal totale = request.getRiepilogoIva().getImponibile()
                 .add(request.getRiepilogoIva().getImposta());
-        Element importoTotale = doc.createElement("ImportoTotaleDocumento");
+        Element importoTotale = doc.createElementNS(null, "ImportoTotaleDocumento");
         importoTotale.setTextContent(totale.setScale(2).toString());
         datiGeneraliDocumento.appendChild(importoTotale);
     }
 
     private void aggiungiDatiBeniServizi(Document doc, Element body, FatturaRequestDTO request) {
-        Element datiBeniServizi = doc.createElement("DatiBeniServizi");
+        Element datiBeniServizi = doc.createElementNS(null, "DatiBeniServizi");
         body.appendChild(datiBeniServizi);
 
         // DettaglioLinee
         for (FatturaRequestDTO.DettaglioRigaDTO riga : request.getDettaglioRighe()) {
-            Element dettaglioLinee = doc.createElement("DettaglioLinee");
+            Element dettaglioLinee = doc.createElementNS(null, "DettaglioLinee");
             datiBeniServizi.appendChild(dettaglioLinee);
 
             addElement(doc, dettaglioLinee, "NumeroLinea", riga.getNumeroLinea().toString());
@@ -306,7 +413,7 @@ public class XmlGeneratorService {
         }
 
         // DatiRiepilogo
-        Element datiRiepilogo = doc.createElement("DatiRiepilogo");
+        Element datiRiepilogo = doc.createElementNS(null, "DatiRiepilogo");
         datiBeniServizi.appendChild(datiRiepilogo);
 
         FatturaRequestDTO.RiepilogoIvaDTO riepilogo = request.getRiepilogoIva();
@@ -322,12 +429,12 @@ public class XmlGeneratorService {
     }
 
     private void aggiungiDatiPagamento(Document doc, Element body, FatturaRequestDTO.DatiPagamentoDTO datiPagamento) {
-        Element datiPagamentoElement = doc.createElement("DatiPagamento");
+        Element datiPagamentoElement = doc.createElementNS(null, "DatiPagamento");
         body.appendChild(datiPagamentoElement);
 
         addElement(doc, datiPagamentoElement, "CondizioniPagamento", datiPagamento.getCondizioniPagamento());
 
-        Element dettaglioPagamento = doc.createElement("DettaglioPagamento");
+        Element dettaglioPagamento = doc.createElementNS(null, "DettaglioPagamento");
         datiPagamentoElement.appendChild(dettaglioPagamento);
 
         FatturaRequestDTO.DettaglioPagamentoDTO dettaglio = datiPagamento.getDettaglioPagamento();
@@ -355,8 +462,171 @@ public class XmlGeneratorService {
         addElement(doc, parent, "Nazione", nazione);
     }
 
+    private void scriviDatiTrasmissione(FatturaXmlWriter xml, FatturaRequestDTO request) throws XMLStreamException {
+        xml.apri("DatiTrasmissione");
+
+        xml.apri("IdTrasmittente");
+        xml.elemento("IdPaese", "IT");
+        xml.elemento("IdCodice", codiceTrasmittente);
+        xml.chiudi();
+
+        xml.elemento("ProgressivoInvio", generaProgressivoInvio());
+        xml.elemento("FormatoTrasmissione", FORMATO_TRASMISSIONE);
+
+        String codice = request.getCessionario().getCodiceDestinatario();
+        xml.elemento("CodiceDestinatario", codice != null && !codice.isEmpty() ? codice : "0000000");
+
+        if (request.getCessionario().getPec() != null && !request.getCessionario().getPec().isEmpty()) {
+            xml.elemento("PECDestinatario", request.getCessionario().getPec());
+        }
+
+        xml.chiudi();
+    }
+
+    private void scriviCedentePrestatore(FatturaXmlWriter xml, FatturaRequestDTO.CedenteDTO cedente) throws XMLStreamException {
+        xml.apri("CedentePrestatore");
+
+        xml.apri("DatiAnagrafici");
+        xml.apri("IdFiscaleIVA");
+        xml.elemento("IdPaese", "IT");
+        xml.elemento("IdCodice", cedente.getPartitaIva());
+        xml.chiudi();
+
+        if (cedente.getCodiceFiscale() != null && !cedente.getCodiceFiscale().equals(cedente.getPartitaIva())) {
+            xml.elemento("CodiceFiscale", cedente.getCodiceFiscale());
+        }
+
+        xml.apri("Anagrafica");
+        xml.elemento("Denominazione", cedente.getDenominazione());
+        xml.chiudi();
+
+        xml.elemento("RegimeFiscale", "RF01"); // Regime ordinario
+        xml.chiudi();
+
+        xml.apri("Sede");
+        scriviIndirizzo(xml, cedente.getIndirizzo(), cedente.getCap(),
+                cedente.getComune(), cedente.getProvincia(), cedente.getNazione());
+        xml.chiudi();
+
+        if (cedente.getTelefono() != null || cedente.getEmail() != null) {
+            xml.apri("Contatti");
+            if (cedente.getTelefono() != null) {
+                xml.elemento("Telefono", cedente.getTelefono());
+            }
+            if (cedente.getEmail() != null) {
+                xml.elemento("Email", cedente.getEmail());
+            }
+            xml.chiudi();
+        }
+
+        xml.chiudi();
+    }
+
+    private void scriviCessionarioCommittente(FatturaXmlWriter xml, FatturaRequestDTO.CessionarioDTO cessionario) throws XMLStreamException {
+        xml.apri("CessionarioCommittente");
+
+        xml.apri("DatiAnagrafici");
+        if (cessionario.getPartitaIva() != null && !cessionario.getPartitaIva().isEmpty()) {
+            xml.apri("IdFiscaleIVA");
+            xml.elemento("IdPaese", "IT");
+            xml.elemento("IdCodice", cessionario.getPartitaIva());
+            xml.chiudi();
+        }
+
+        xml.elemento("CodiceFiscale", cessionario.getCodiceFiscale());
+
+        xml.apri("Anagrafica");
+        xml.elemento("Denominazione", cessionario.getDenominazione());
+        xml.chiudi();
+        xml.chiudi();
+
+        xml.apri("Sede");
+        scriviIndirizzo(xml, cessionario.getIndirizzo(), cessionario.getCap(),
+                cessionario.getComune(), cessionario.getProvincia(), cessionario.getNazione());
+        xml.chiudi();
+
+        xml.chiudi();
+    }
+
+    private void scriviDatiGenerali(FatturaXmlWriter xml, FatturaRequestDTO request) throws XMLStreamException {
+        xml.apri("DatiGenerali");
+        xml.apri("DatiGeneraliDocumento");
+
+        xml.elemento("TipoDocumento", "TD01"); // Fattura
+        xml.elemento("Divisa", "EUR");
+        xml.elemento("Data", request.getDataFattura().format(DateTimeFormatter.ISO_DATE));
+        xml.elemento("Numero", request.getNumeroFattura());
+
+        BigDecimal totale = request.getRiepilogoIva().getImponibile()
+                .add(request.getRiepilogoIva().getImposta());
+        xml.elemento("ImportoTotaleDocumento", totale.setScale(2).toString());
+
+        xml.chiudi();
+        xml.chiudi();
+    }
+
+    private void scriviDatiBeniServizi(FatturaXmlWriter xml, FatturaRequestDTO request) throws XMLStreamException {
+        xml.apri("DatiBeniServizi");
+
+        for (FatturaRequestDTO.DettaglioRigaDTO riga : request.getDettaglioRighe()) {
+            xml.apri("DettaglioLinee");
+            xml.elemento("NumeroLinea", riga.getNumeroLinea().toString());
+            xml.elemento("Descrizione", riga.getDescrizione());
+            xml.elemento("Quantita", riga.getQuantita().setScale(2).toString());
+            xml.elemento("UnitaMisura", riga.getUnitaMisura());
+            xml.elemento("PrezzoUnitario", riga.getPrezzoUnitario().setScale(2).toString());
+
+            BigDecimal prezzoTotale = riga.getQuantita().multiply(riga.getPrezzoUnitario());
+            xml.elemento("PrezzoTotale", prezzoTotale.setScale(2).toString());
+            xml.elemento("AliquotaIVA", riga.getAliquotaIva().setScale(2).toString());
+            xml.chiudi();
+        }
+
+        FatturaRequestDTO.RiepilogoIvaDTO riepilogo = request.getRiepilogoIva();
+        xml.apri("DatiRiepilogo");
+        xml.elemento("AliquotaIVA", riepilogo.getAliquotaIva().setScale(2).toString());
+        if (riepilogo.getNatura() != null) {
+            xml.elemento("Natura", riepilogo.getNatura());
+        }
+        xml.elemento("ImponibileImporto", riepilogo.getImponibile().setScale(2).toString());
+        xml.elemento("Imposta", riepilogo.getImposta().setScale(2).toString());
+        xml.elemento("EsigibilitaIVA", "I"); // Immediata
+        xml.chiudi();
+
+        xml.chiudi();
+    }
+
+    private void scriviDatiPagamento(FatturaXmlWriter xml, FatturaRequestDTO.DatiPagamentoDTO datiPagamento) throws XMLStreamException {
+        xml.apri("DatiPagamento");
+        xml.elemento("CondizioniPagamento", datiPagamento.getCondizioniPagamento());
+
+        FatturaRequestDTO.DettaglioPagamentoDTO dettaglio = datiPagamento.getDettaglioPagamento();
+        xml.apri("DettaglioPagamento");
+        xml.elemento("ModalitaPagamento", dettaglio.getModalitaPagamento());
+        xml.elemento("DataScadenzaPagamento", dettaglio.getDataScadenza().format(DateTimeFormatter.ISO_DATE));
+        xml.elemento("ImportoPagamento", dettaglio.getImportoPagamento().setScale(2).toString());
+        if (dettaglio.getIban() != null) {
+            xml.elemento("IBAN", dettaglio.getIban());
+        }
+        if (dettaglio.getIstitutoFinanziario() != null) {
+            xml.elemento("IstitutoFinanziario", dettaglio.getIstitutoFinanziario());
+        }
+        xml.chiudi();
+
+        xml.chiudi();
+    }
+
+    private void scriviIndirizzo(FatturaXmlWriter xml, String indirizzo, String cap,
+                                 String comune, String provincia, String nazione) throws XMLStreamException {
+        xml.elemento("Indirizzo", indirizzo);
+        xml.elemento("CAP", cap);
+        xml.elemento("Comune", comune);
+        xml.elemento("Provincia", provincia);
+        xml.elemento("Nazione", nazione);
+    }
+
     private void addElement(Document doc, Element parent, String name, String value) {
-        Element element = doc.createElement(name);
+        Element element = doc.createElementNS(null, name);
         element.setTextContent(value);
         parent.appendChild(element);
     }
@@ -367,6 +637,6 @@ public class XmlGeneratorService {
     }
 
     private String generaProgressivoInvio() {
-        return String.format("%05d", System.currentTimeMillis() % 100000);
+        return progressivoInvioService.prossimo(codiceTrasmittente);
     }
 }
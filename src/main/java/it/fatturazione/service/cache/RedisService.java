@@ -8,4 +8,5 @@ public interface RedisService {
     Object get(String key);
     boolean exists(String key);
     boolean delete(String key);
+    long increment(String key, long delta);
 }
@@ -40,4 +40,9 @@ public class RedisServiceImpl implements RedisService {
     public boolean delete(String key) {
         return redisTemplate.delete(key);
     }
+
+    @Override
+    public long increment(String key, long delta) {
+        return redisTemplate.opsForValue().increment(key, delta);
+    }
 }
@@ -0,0 +1,79 @@
+package it.fatturazione.service.firma;
+
+import it.fatturazione.service.metriche.MetricheProvider;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Esiti di verifica per impronta SHA-256 del .p7m e seriale del certificato firmatario, con politica LRU.
+// Entrambi vengono letti nello stesso passaggio della verifica: un hit evita la verifica RSA
+@Component
+@Slf4j
+public class CacheVerificaFirma implements MetricheProvider {
+
+    private final Map<Chiave, Boolean> esiti;
+    private final int massimo;
+    private final AtomicLong hit = new AtomicLong();
+    private final AtomicLong miss = new AtomicLong();
+    private final AtomicLong invalidazioni = new AtomicLong();
+
+    public CacheVerificaFirma(@Value("${firma.verifica.cache.max-entries:10000}") int massimo) {
+        this.massimo = massimo;
+        this.esiti = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Chiave, Boolean> eldest) {
+                return size() > CacheVerificaFirma.this.massimo;
+            }
+        };
+    }
+
+    public synchronized Boolean cerca(String sha256, BigInteger serialeCertificato) {
+        Boolean esito = esiti.get(new Chiave(sha256, serialeCertificato));
+        if (esito == null) {
+            miss.incrementAndGet();
+            return null;
+        }
+        hit.incrementAndGet();
+        return esito;
+    }
+
+    public synchronized void registra(String sha256, BigInteger serialeCertificato, boolean valida) {
+        if (massimo > 0) {
+            esiti.put(new Chiave(sha256, serialeCertificato), valida);
+        }
+    }
+
+    // Alla rotazione del certificato vengono rimossi gli esiti delle firme fatte con il precedente
+    public synchronized int invalidaCertificato(BigInteger serialeCertificato) {
+        int prima = esiti.size();
+        esiti.keySet().removeIf(chiave -> serialeCertificato.equals(chiave.serialeCertificato()));
+        int rimossi = prima - esiti.size();
+        invalidazioni.addAndGet(rimossi);
+        log.info("Cache verifica firma: rimossi {} esiti del certificato {}", rimossi, serialeCertificato);
+        return rimossi;
+    }
+
+    @Override
+    public String nome() {
+        return "firma.verifica.cache";
+    }
+
+    @Override
+    public synchronized Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("hit", hit.get());
+        metriche.put("miss", miss.get());
+        metriche.put("dimensione", esiti.size());
+        metriche.put("massimo", massimo);
+        metriche.put("invalidazioni", invalidazioni.get());
+        return metriche;
+    }
+
+    private record Chiave(String sha256, BigInteger serialeCertificato) {
+    }
+}
@@ -0,0 +1,82 @@
+package it.fatturazione.service.firma;
+
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.Store;
+
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+// Materiale di firma di una chiave caricata: certificate store, digest provider e provider BC
+// vengono preparati una sola volta; il SignerInfoGenerator (che contiene il ContentSigner,
+// non thread-safe) è confinato per thread
+public class MaterialeFirma {
+
+    private static final String ALGORITMO_FIRMA = "SHA256withRSA";
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+    private final Provider provider;
+    private final Store<?> certStore;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final ThreadLocal<SignerInfoGenerator> signerPerThread;
+
+    public MaterialeFirma(PrivateKey privateKey, X509Certificate certificate, Provider provider)
+            throws CertificateEncodingException, OperatorCreationException {
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+        this.provider = provider;
+        this.certStore = new JcaCertStore(List.of(certificate));
+        this.digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder()
+                .setProvider(provider)
+                .build();
+        this.signerPerThread = ThreadLocal.withInitial(() -> {
+            try {
+                return nuovoSignerInfoGenerator();
+            } catch (OperatorCreationException | CertificateEncodingException e) {
+                throw new IllegalStateException("Impossibile creare il signer", e);
+            }
+        });
+    }
+
+    // Generatore per firme completate all'interno del thread chiamante
+    public CMSSignedDataGenerator generatore() throws CMSException {
+        CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+        generator.addSignerInfoGenerator(signerPerThread.get());
+        generator.addCertificates(certStore);
+        return generator;
+    }
+
+    // Lo stream di firma può essere chiuso da un altro thread o restare aperto insieme ad altri:
+    // riceve un signer dedicato
+    public CMSSignedDataStreamGenerator generatoreStream() throws CMSException, OperatorCreationException,
+            CertificateEncodingException {
+        CMSSignedDataStreamGenerator generator = new CMSSignedDataStreamGenerator();
+        generator.addSignerInfoGenerator(nuovoSignerInfoGenerator());
+        generator.addCertificates(certStore);
+        return generator;
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    private SignerInfoGenerator nuovoSignerInfoGenerator() throws OperatorCreationException,
+            CertificateEncodingException {
+        return new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider)
+                .build(new JcaContentSignerBuilder(ALGORITMO_FIRMA)
+                        .setProvider(provider)
+                        .build(privateKey), certificate);
+    }
+}
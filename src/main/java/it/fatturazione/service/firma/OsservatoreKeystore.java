@@ -0,0 +1,90 @@
+package it.fatturazione.service.firma;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Ricarica a caldo dei keystore su file tramite WatchService sulle loro directory. Ogni evento della directory
+// (anche la sostituzione atomica di un symlink, come nei secret montati) fa confrontare alle sorgenti la versione
+// del file: il contenuto viene riletto solo se è cambiato. Gli eventi ravvicinati vengono raccolti per attesaMs
+// prima di ricaricare, così un file scritto in più blocchi non viene letto a metà
+@Slf4j
+public class OsservatoreKeystore implements AutoCloseable {
+
+    private final WatchService watchService;
+    private final Map<WatchKey, List<SorgenteKeystore>> sorgentiPerDirectory = new LinkedHashMap<>();
+    private final long attesaMs;
+    private final Thread thread;
+
+    public OsservatoreKeystore(Collection<SorgenteKeystore> sorgenti, long attesaMs) throws IOException {
+        this.attesaMs = attesaMs;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        Map<Path, List<SorgenteKeystore>> perDirectory = new LinkedHashMap<>();
+        for (SorgenteKeystore sorgente : sorgenti) {
+            Path file = sorgente.fileOsservabile();
+            if (file == null) {
+                log.info("Keystore {} non su file system: ricarica a caldo non disponibile", sorgente.getKeystorePath());
+                continue;
+            }
+            perDirectory.computeIfAbsent(file.toAbsolutePath().getParent(), d -> new ArrayList<>()).add(sorgente);
+        }
+        try {
+            for (Map.Entry<Path, List<SorgenteKeystore>> directory : perDirectory.entrySet()) {
+                WatchKey chiave = directory.getKey().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                sorgentiPerDirectory.put(chiave, List.copyOf(directory.getValue()));
+                log.info("Osservazione keystore attiva su: {}", directory.getKey());
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+
+        thread = new Thread(this::osserva, "keystore-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void osserva() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<SorgenteKeystore> daControllare = new LinkedHashSet<>();
+                WatchKey chiave = watchService.take();
+                while (chiave != null) {
+                    chiave.pollEvents();
+                    daControllare.addAll(sorgentiPerDirectory.getOrDefault(chiave, List.of()));
+                    if (!chiave.reset()) {
+                        log.warn("Directory del keystore non più osservabile: {}", chiave.watchable());
+                    }
+                    chiave = watchService.poll(attesaMs, TimeUnit.MILLISECONDS);
+                }
+                daControllare.forEach(SorgenteKeystore::ricaricaSeModificato);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // chiusura allo shutdown
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
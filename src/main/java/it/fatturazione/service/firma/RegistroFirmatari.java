@@ -0,0 +1,106 @@
+package it.fatturazione.service.firma;
+
+import it.fatturazione.config.FirmaProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Provider;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Associa ogni partita IVA cedente al proprio alias di firma. Ogni keystore viene caricato una sola volta
+// anche se contiene gli alias di più cedenti; la risoluzione è una lettura di mappa, senza lock
+@Slf4j
+public class RegistroFirmatari {
+
+    private final Map<String, SorgenteKeystore> sorgenti = new LinkedHashMap<>();
+    private final Map<String, Firmatario> firmatariPerCedente = new LinkedHashMap<>();
+    private final Firmatario predefinito;
+
+    public RegistroFirmatari(FirmaProperties.Firmatario predefinito, Map<String, FirmaProperties.Firmatario> cedenti,
+                             Provider provider, Consumer<BigInteger> alCambioCertificato) {
+        Map<String, Map<String, String>> aliasPerKeystore = new LinkedHashMap<>();
+        Map<String, String> passwordKeystore = new LinkedHashMap<>();
+
+        aggiungi(aliasPerKeystore, passwordKeystore, predefinito, predefinito, "firma.key.alias");
+        cedenti.forEach((partitaIva, firmatario) -> aggiungi(aliasPerKeystore, passwordKeystore, firmatario,
+                predefinito, "firma.cedenti." + partitaIva + ".key-alias"));
+
+        aliasPerKeystore.forEach((path, alias) -> sorgenti.put(path,
+                new SorgenteKeystore(path, passwordKeystore.get(path), alias, provider, alCambioCertificato)));
+
+        this.predefinito = firmatario(predefinito, predefinito);
+        cedenti.forEach((partitaIva, firmatario) ->
+                firmatariPerCedente.put(partitaIva, firmatario(firmatario, predefinito)));
+    }
+
+    // Un cedente senza firmatario dedicato firma con il certificato predefinito (quello dell'intermediario)
+    public MaterialeFirma materiale(String partitaIvaCedente) throws Exception {
+        Firmatario firmatario = partitaIvaCedente != null
+                ? firmatariPerCedente.getOrDefault(partitaIvaCedente, predefinito)
+                : predefinito;
+        return firmatario.sorgente().materiale(firmatario.alias());
+    }
+
+    // Carica subito tutti i keystore; un keystore illeggibile viene riprovato al primo utilizzo,
+    // un alias scartato alla successiva modifica del file
+    public void caricaTutti() {
+        Map<String, Firmatario> tutti = new LinkedHashMap<>(firmatariPerCedente);
+        tutti.put(null, predefinito);
+        tutti.forEach((partitaIva, firmatario) -> {
+            try {
+                firmatario.sorgente().materiale(firmatario.alias());
+            } catch (Exception e) {
+                log.warn("Certificato {} non disponibile all'avvio: {}", firmatario.alias(), e.getMessage());
+            }
+        });
+    }
+
+    public void ricaricaSeModificati() {
+        sorgenti.values().forEach(SorgenteKeystore::ricaricaSeModificato);
+    }
+
+    // Avvia l'osservazione delle directory dei keystore per la ricarica a caldo
+    public OsservatoreKeystore osserva(long attesaMs) throws IOException {
+        return new OsservatoreKeystore(sorgenti.values(), attesaMs);
+    }
+
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        sorgenti.forEach((path, sorgente) -> metriche.put(path, sorgente.metriche()));
+        Map<String, String> cedenti = new LinkedHashMap<>();
+        firmatariPerCedente.forEach((partitaIva, firmatario) -> cedenti.put(partitaIva, firmatario.alias()));
+        metriche.put("cedenti", cedenti);
+        return metriche;
+    }
+
+    private void aggiungi(Map<String, Map<String, String>> aliasPerKeystore, Map<String, String> passwordKeystore,
+                          FirmaProperties.Firmatario firmatario, FirmaProperties.Firmatario predefinito,
+                          String proprietaAlias) {
+        if (firmatario.getKeyAlias() == null || firmatario.getKeyAlias().isBlank()) {
+            throw new IllegalStateException("Configurazione firma non valida: " + proprietaAlias + " mancante");
+        }
+        String path = valore(firmatario.getKeystorePath(), predefinito.getKeystorePath());
+        String password = valore(firmatario.getKeystorePassword(), predefinito.getKeystorePassword());
+        String registrata = passwordKeystore.putIfAbsent(path, password);
+        if (registrata != null && !registrata.equals(password)) {
+            throw new IllegalStateException("Password diverse configurate per il keystore " + path);
+        }
+        aliasPerKeystore.computeIfAbsent(path, p -> new LinkedHashMap<>())
+                .put(firmatario.getKeyAlias(), valore(firmatario.getKeyPassword(), password));
+    }
+
+    private Firmatario firmatario(FirmaProperties.Firmatario firmatario, FirmaProperties.Firmatario predefinito) {
+        String path = valore(firmatario.getKeystorePath(), predefinito.getKeystorePath());
+        return new Firmatario(sorgenti.get(path), firmatario.getKeyAlias());
+    }
+
+    private static String valore(String valore, String predefinito) {
+        return valore != null && !valore.isBlank() ? valore : predefinito;
+    }
+
+    private record Firmatario(SorgenteKeystore sorgente, String alias) {
+    }
+}
@@ -0,0 +1,244 @@
+package it.fatturazione.service.firma;
+
+import it.fatturazione.exception.FirmaDigitaleException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Keystore PKCS12 (file o classpath) con il materiale di firma di ogni alias pubblicato in un AtomicReference:
+// la ricarica costruisce il nuovo materiale a parte e lo sostituisce in un'unica operazione,
+// le firme in corso continuano con quello che hanno già letto
+@Slf4j
+public class SorgenteKeystore {
+
+    private static final String CLASSPATH = "classpath:";
+
+    private final String keystorePath;
+    private final String keystorePassword;
+    // Alias da caricare con la rispettiva password della chiave
+    private final Map<String, String> passwordChiavi;
+    private final Provider provider;
+    private final Consumer<BigInteger> alCambioCertificato;
+
+    private final AtomicReference<Map<String, MaterialeFirma>> materiali = new AtomicReference<>();
+    private final AtomicLong ricariche = new AtomicLong();
+    private final AtomicLong ricaricheFallite = new AtomicLong();
+    // Alias scartati all'ultimo caricamento con il motivo
+    private volatile Map<String, String> aliasNonCaricati = Map.of();
+    private volatile String versione;
+    private volatile Instant ultimaRicarica;
+
+    public SorgenteKeystore(String keystorePath, String keystorePassword, Map<String, String> passwordChiavi,
+                            Provider provider, Consumer<BigInteger> alCambioCertificato) {
+        this.keystorePath = keystorePath;
+        this.keystorePassword = keystorePassword;
+        this.passwordChiavi = Map.copyOf(passwordChiavi);
+        this.provider = provider;
+        this.alCambioCertificato = alCambioCertificato;
+    }
+
+    public MaterialeFirma materiale(String alias) throws Exception {
+        MaterialeFirma materiale = materiali().get(alias);
+        if (materiale == null) {
+            String motivo = aliasNonCaricati.get(alias);
+            throw new FirmaDigitaleException("Alias " + alias + " non caricato dal keystore " + keystorePath
+                    + (motivo != null ? ": " + motivo : ""));
+        }
+        return materiale;
+    }
+
+    private Map<String, MaterialeFirma> materiali() throws Exception {
+        Map<String, MaterialeFirma> correnti = materiali.get();
+        if (correnti == null) {
+            // Solo il primo utilizzo dopo un avvio senza certificato si serializza qui
+            synchronized (this) {
+                correnti = materiali.get();
+                if (correnti == null) {
+                    correnti = carica();
+                }
+            }
+        }
+        return correnti;
+    }
+
+    // Ricarica il keystore se il file è cambiato; in caso di errore resta attivo il materiale precedente
+    public synchronized boolean ricaricaSeModificato() {
+        String versioneCorrente = leggiVersione();
+        if (versioneCorrente == null || versioneCorrente.equals(versione)) {
+            return false;
+        }
+        try {
+            log.info("Keystore modificato, ricarica da: {}", keystorePath);
+            carica();
+            ricariche.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            ricaricheFallite.incrementAndGet();
+            log.error("Ricarica del keystore {} fallita, resta attivo il certificato precedente: {}",
+                    keystorePath, e.getMessage());
+            return false;
+        }
+    }
+
+    private Map<String, MaterialeFirma> carica() throws Exception {
+        log.info("Caricamento certificati {} da: {}", passwordChiavi.keySet(), keystorePath);
+
+        // Versione letta prima del contenuto: una modifica concorrente verrà rilevata al controllo successivo
+        String versioneLetta = leggiVersione();
+        byte[] contenuto;
+        try (InputStream is = apriKeystore()) {
+            contenuto = is.readAllBytes();
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(contenuto), keystorePassword.toCharArray());
+
+        // Chiamato sempre sotto il lock dell'istanza: i materiali precedenti non cambiano fino al set
+        Map<String, MaterialeFirma> precedenti = materiali.get();
+        Map<String, MaterialeFirma> nuovi = new LinkedHashMap<>();
+        Map<String, String> scartati = new LinkedHashMap<>();
+        for (Map.Entry<String, String> chiave : passwordChiavi.entrySet()) {
+            String alias = chiave.getKey();
+            try {
+                nuovi.put(alias, caricaAlias(keyStore, alias, chiave.getValue()));
+            } catch (Exception e) {
+                // Un alias non valido non blocca gli altri; se era già caricato resta attivo il materiale precedente
+                MaterialeFirma precedente = precedenti != null ? precedenti.get(alias) : null;
+                if (precedente != null) {
+                    nuovi.put(alias, precedente);
+                }
+                scartati.put(alias, e.getMessage());
+                log.error("Certificato {} non caricato dal keystore {}{}: {}", alias, keystorePath,
+                        precedente != null ? ", resta attivo il precedente" : "", e.getMessage());
+            }
+        }
+        if (nuovi.isEmpty()) {
+            throw new FirmaDigitaleException("Nessun certificato caricato dal keystore " + keystorePath
+                    + ": " + scartati);
+        }
+
+        materiali.set(Map.copyOf(nuovi));
+        aliasNonCaricati = Map.copyOf(scartati);
+        versione = versioneLetta;
+        ultimaRicarica = Instant.now();
+
+        if (precedenti != null) {
+            precedenti.forEach((alias, precedente) -> {
+                BigInteger seriale = precedente.getCertificate().getSerialNumber();
+                if (!seriale.equals(nuovi.get(alias).getCertificate().getSerialNumber())) {
+                    alCambioCertificato.accept(seriale);
+                }
+            });
+        }
+        return nuovi;
+    }
+
+    private MaterialeFirma caricaAlias(KeyStore keyStore, String alias, String keyPassword) throws Exception {
+        Key key = keyStore.getKey(alias, keyPassword.toCharArray());
+        if (!(key instanceof PrivateKey)) {
+            throw new FirmaDigitaleException("La chiave " + alias + " non è presente o non è una chiave privata");
+        }
+
+        Certificate cert = keyStore.getCertificate(alias);
+        if (!(cert instanceof X509Certificate)) {
+            throw new FirmaDigitaleException("Il certificato " + alias + " non è un X509Certificate");
+        }
+        X509Certificate certificate = (X509Certificate) cert;
+
+        log.info("Certificato {} caricato con successo. Subject: {}, scadenza: {}",
+                alias, certificate.getSubjectX500Principal(), certificate.getNotAfter());
+        return new MaterialeFirma((PrivateKey) key, certificate, provider);
+    }
+
+    private InputStream apriKeystore() throws IOException {
+        if (keystorePath.startsWith(CLASSPATH)) {
+            String path = keystorePath.substring(CLASSPATH.length());
+            InputStream is = getClass().getClassLoader().getResourceAsStream(path);
+            if (is == null) {
+                throw new FileNotFoundException("Keystore non trovato nel classpath: " + path);
+            }
+            return is;
+        }
+        return Files.newInputStream(Path.of(keystorePath));
+    }
+
+    // Data di modifica e dimensione del file; null se non osservabile (es. risorsa dentro un jar)
+    private String leggiVersione() {
+        try {
+            Path file = fileKeystore();
+            if (file == null || !Files.isRegularFile(file)) {
+                return null;
+            }
+            return Files.getLastModifiedTime(file).toMillis() + "/" + Files.size(file);
+        } catch (IOException | URISyntaxException e) {
+            log.debug("Impossibile leggere la versione del keystore {}: {}", keystorePath, e.getMessage());
+            return null;
+        }
+    }
+
+    // File del keystore da osservare per la ricarica a caldo; null se non è su file system
+    Path fileOsservabile() {
+        try {
+            return fileKeystore();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    String getKeystorePath() {
+        return keystorePath;
+    }
+
+    private Path fileKeystore() throws URISyntaxException {
+        if (!keystorePath.startsWith(CLASSPATH)) {
+            return Path.of(keystorePath);
+        }
+        URL url = getClass().getClassLoader().getResource(keystorePath.substring(CLASSPATH.length()));
+        return url != null && "file".equals(url.getProtocol()) ? Path.of(url.toURI()) : null;
+    }
+
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("ricariche", ricariche.get());
+        metriche.put("ricaricheFallite", ricaricheFallite.get());
+        metriche.put("ultimaRicarica", ultimaRicarica != null ? ultimaRicarica.toString() : null);
+        metriche.put("aliasNonCaricati", aliasNonCaricati);
+        Map<String, MaterialeFirma> correnti = materiali.get();
+        if (correnti != null) {
+            Map<String, Object> certificati = new LinkedHashMap<>();
+            correnti.forEach((alias, materiale) -> {
+                X509Certificate certificate = materiale.getCertificate();
+                Instant scadenza = certificate.getNotAfter().toInstant();
+                Map<String, Object> certificato = new LinkedHashMap<>();
+                certificato.put("subject", certificate.getSubjectX500Principal().getName());
+                certificato.put("seriale", certificate.getSerialNumber().toString(16));
+                certificato.put("scadenza", scadenza.toString());
+                certificato.put("giorniAllaScadenza", Duration.between(Instant.now(), scadenza).toDays());
+                certificati.put(alias, certificato);
+            });
+            metriche.put("certificati", certificati);
+        }
+        return metriche;
+    }
+}
@@ -0,0 +1,56 @@
+package it.fatturazione.service.metriche;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Ultime latenze in un buffer circolare di dimensione fissa: i percentili vengono calcolati
+// solo quando si leggono le metriche, la registrazione costa una scrittura nell'array
+public class FinestraLatenze {
+
+    private final long[] latenzeMicros;
+    private int prossimo;
+    private int registrate;
+    private long totale;
+
+    public FinestraLatenze(int campioni) {
+        this.latenzeMicros = new long[Math.max(1, campioni)];
+    }
+
+    public synchronized void registra(long durataNanos) {
+        latenzeMicros[prossimo] = TimeUnit.NANOSECONDS.toMicros(durataNanos);
+        prossimo = (prossimo + 1) % latenzeMicros.length;
+        registrate = Math.min(registrate + 1, latenzeMicros.length);
+        totale++;
+    }
+
+    public Map<String, Object> metriche() {
+        long[] ordinate;
+        long conteggio;
+        synchronized (this) {
+            ordinate = Arrays.copyOf(latenzeMicros, registrate);
+            conteggio = totale;
+        }
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("conteggio", conteggio);
+        if (ordinate.length > 0) {
+            Arrays.sort(ordinate);
+            metriche.put("p50Ms", millis(percentile(ordinate, 50)));
+            metriche.put("p95Ms", millis(percentile(ordinate, 95)));
+            metriche.put("p99Ms", millis(percentile(ordinate, 99)));
+            metriche.put("maxMs", millis(ordinate[ordinate.length - 1]));
+        }
+        return metriche;
+    }
+
+    // Nearest-rank su campioni ordinati
+    private static long percentile(long[] ordinate, int percentile) {
+        int indice = (int) Math.ceil(percentile / 100.0 * ordinate.length) - 1;
+        return ordinate[Math.max(0, Math.min(indice, ordinate.length - 1))];
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+}
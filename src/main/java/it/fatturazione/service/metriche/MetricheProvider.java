@@ -0,0 +1,8 @@
+package it.fatturazione.service.metriche;
+
+import java.util.Map;
+
+public interface MetricheProvider {
+    String nome();
+    Map<String, Object> metriche();
+}
@@ -0,0 +1,40 @@
+package it.fatturazione.service.metriche;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Durata delle fasi del ciclo di vita di una fattura (creazione, XML, firma, coda, invio, notifiche)
+// con percentili sulle ultime esecuzioni di ogni fase
+@Component
+public class TempiFasi implements MetricheProvider {
+
+    @Value("${fattura.metriche.campioni:1000}")
+    private int campioni;
+
+    private final Map<String, FinestraLatenze> fasi = new ConcurrentHashMap<>();
+
+    // Registra la durata della fase iniziata a inizioNanos (System.nanoTime)
+    public void registra(String fase, long inizioNanos) {
+        registraDurata(fase, System.nanoTime() - inizioNanos);
+    }
+
+    public void registraDurata(String fase, long durataNanos) {
+        fasi.computeIfAbsent(fase, f -> new FinestraLatenze(campioni)).registra(durataNanos);
+    }
+
+    @Override
+    public String nome() {
+        return "fatture.fasi";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new TreeMap<>();
+        fasi.forEach((fase, finestra) -> metriche.put(fase, finestra.metriche()));
+        return metriche;
+    }
+}
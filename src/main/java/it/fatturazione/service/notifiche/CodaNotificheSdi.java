@@ -0,0 +1,256 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.NotificaInArrivoSdi;
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.FatturaNotFoundException;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.repository.NotificaInArrivoSdiRepository;
+import it.fatturazione.repository.NotificaSdiRepository;
+import it.fatturazione.service.FatturaService;
+import it.fatturazione.service.metriche.MetricheProvider;
+import it.fatturazione.service.sdi.LettoreNotificaSdi;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Aggiornamenti delle fatture per le notifiche ricevute da SDI, applicati in background: l'endpoint
+// risponde appena il file è su disco e la notifica è registrata tra quelle in arrivo, che all'avvio
+// vengono rielaborate. Le notifiche vengono distribuite su corsie per IdentificativoSdI:
+// quelle di uno stesso invio vengono applicate nell'ordine di arrivo, quelle di invii diversi in
+// parallelo. A corsia piena la notifica viene rifiutata con un fault e SDI la ritrasmette più tardi.
+@Component
+@Slf4j
+public class CodaNotificheSdi implements MetricheProvider {
+
+    private final FatturaService fatturaService;
+    private final NotificaInArrivoSdiRepository notificheInArrivo;
+    private final NotificaSdiRepository notificaSdiRepository;
+
+    @Value("${fattura.storage.path}")
+    private String storagePath;
+
+    // All'avvio vengono cercati nella directory delle notifiche i file di questi ultimi giorni senza NotificaSdi
+    @Value("${sdi.notifiche.recupero-giorni:7}")
+    private int giorniRecupero;
+
+    @Value("${sdi.notifiche.corsie:8}")
+    private int numeroCorsie;
+
+    // Capacità complessiva, divisa in parti uguali tra le corsie
+    @Value("${sdi.notifiche.capacita:10000}")
+    private int capacita;
+
+    // La notifica può arrivare prima che l'IdentificativoSdI sia registrato sulla fattura
+    @Value("${sdi.notifiche.tentativi:5}")
+    private int tentativi;
+
+    // Attesa prima del secondo tentativo, raddoppiata a ogni tentativo successivo
+    @Value("${sdi.notifiche.ritardo-tentativo-ms:2000}")
+    private long ritardoTentativo;
+
+    private EsecutoreCorsie corsie;
+    private final AtomicInteger inAttesaTentativo = new AtomicInteger();
+    private final AtomicLong elaborate = new AtomicLong();
+    private final AtomicLong errori = new AtomicLong();
+    private final AtomicLong rifiutate = new AtomicLong();
+
+    public record Notifica(String identificativoSdi, String nomeFile, NotificaSdi.TipoNotifica tipo, String path) {
+    }
+
+    public CodaNotificheSdi(FatturaService fatturaService, NotificaInArrivoSdiRepository notificheInArrivo,
+                            NotificaSdiRepository notificaSdiRepository) {
+        this.fatturaService = fatturaService;
+        this.notificheInArrivo = notificheInArrivo;
+        this.notificaSdiRepository = notificaSdiRepository;
+    }
+
+    @PostConstruct
+    public void init() {
+        corsie = new EsecutoreCorsie("notifiche-sdi", numeroCorsie, Math.max(1, capacita / numeroCorsie));
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        corsie.shutdown();
+        if (!corsie.awaitTermination(10, TimeUnit.SECONDS)) {
+            // Restano tra le notifiche in arrivo e vengono applicate al prossimo avvio
+            log.warn("{} notifiche SDI non elaborate all'arresto", corsie.shutdownNow());
+        }
+    }
+
+    // Chiamato prima di rispondere a SDI: la notifica viene registrata tra quelle in arrivo, poi messa in corsia
+    public void accoda(Notifica notifica) {
+        registraInArrivo(notifica);
+        inCorsia(notifica);
+    }
+
+    // All'avvio rimette in corsia le notifiche confermate a SDI e non applicate prima dell'arresto, e i file
+    // recenti della directory delle notifiche senza NotificaSdi (ricevuti ma non ancora registrati in arrivo,
+    // o scaricati dal poller e non ancora registrati)
+    @EventListener(ApplicationReadyEvent.class)
+    public void recupera() {
+        Set<String> recuperate = new HashSet<>();
+        for (NotificaInArrivoSdi inArrivo : notificheInArrivo.findAll(Sort.by("id"))) {
+            recuperate.add(inArrivo.getXmlNotificaPath());
+            recupera(new Notifica(inArrivo.getIdentificativoSdi(), inArrivo.getNomeFile(),
+                    inArrivo.getTipoNotifica(), inArrivo.getXmlNotificaPath()), false);
+        }
+
+        Path cartella = Path.of(storagePath, "notifiche");
+        int daFile = 0;
+        if (Files.isDirectory(cartella)) {
+            Instant limite = Instant.now().minus(Duration.ofDays(giorniRecupero));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(cartella, "*.xml")) {
+                for (Path file : files) {
+                    String path = file.toString();
+                    if (recuperate.contains(path) || Files.getLastModifiedTime(file).toInstant().isBefore(limite)
+                            || notificaSdiRepository.existsByXmlNotificaPath(path)) {
+                        continue;
+                    }
+                    Notifica notifica = daFile(file);
+                    if (notifica != null) {
+                        recupera(notifica, true);
+                        daFile++;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Impossibile leggere la directory delle notifiche {}", cartella, e);
+            }
+        }
+        if (!recuperate.isEmpty() || daFile > 0) {
+            log.info("Notifiche SDI rimesse in coda all'avvio: {} in arrivo, {} file senza NotificaSdi",
+                    recuperate.size(), daFile);
+        }
+    }
+
+    private void inCorsia(Notifica notifica) {
+        try {
+            corsie.esegui(notifica.identificativoSdi(), () -> elabora(notifica));
+        } catch (RejectedExecutionException e) {
+            rifiutate.incrementAndGet();
+            throw new SdiException("Coda delle notifiche piena, notifica " + notifica.nomeFile() + " rifiutata");
+        }
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.notifiche";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("inCoda", corsie.inCoda());
+        metriche.put("corsieInAttesaTentativo", inAttesaTentativo.get());
+        metriche.put("elaborate", elaborate.get());
+        metriche.put("errori", errori.get());
+        metriche.put("rifiutate", rifiutate.get());
+        metriche.put("inArrivo", notificheInArrivo.count());
+        metriche.putAll(corsie.metriche());
+        return metriche;
+    }
+
+    // I tentativi restano nella corsia dell'invio, che resta ferma durante l'attesa: le notifiche
+    // successive dello stesso IdentificativoSdI non vengono applicate prima di questa
+    private void elabora(Notifica notifica) {
+        long ritardo = ritardoTentativo;
+        for (int tentativo = 1; ; tentativo++) {
+            try {
+                fatturaService.registraNotifica(notifica.identificativoSdi(), notifica.tipo(), notifica.path());
+                elaborate.incrementAndGet();
+                // Se la cancellazione non riesce la notifica viene riproposta all'avvio e riconosciuta come già registrata
+                notificheInArrivo.deleteByXmlNotificaPath(notifica.path());
+                return;
+            } catch (FatturaNotFoundException e) {
+                if (tentativo >= tentativi) {
+                    errori.incrementAndGet();
+                    log.error("Notifica {} non associata a nessuna fattura, verrà riproposta al prossimo avvio: {}",
+                            notifica.path(), e.getMessage());
+                    return;
+                }
+            } catch (Exception e) {
+                errori.incrementAndGet();
+                log.error("Errore nell'elaborazione della notifica {}", notifica.path(), e);
+                return;
+            }
+
+            inAttesaTentativo.incrementAndGet();
+            try {
+                Thread.sleep(ritardo);
+            } catch (InterruptedException e) {
+                // Arresto: la notifica resta tra quelle in arrivo e viene applicata al prossimo avvio
+                Thread.currentThread().interrupt();
+                log.warn("Tentativi della notifica {} interrotti all'arresto", notifica.path());
+                return;
+            } finally {
+                inAttesaTentativo.decrementAndGet();
+            }
+            ritardo *= 2;
+        }
+    }
+
+    private void registraInArrivo(Notifica notifica) {
+        try {
+            if (!notificheInArrivo.existsByXmlNotificaPath(notifica.path())) {
+                notificheInArrivo.save(NotificaInArrivoSdi.builder()
+                        .xmlNotificaPath(notifica.path())
+                        .identificativoSdi(notifica.identificativoSdi())
+                        .nomeFile(notifica.nomeFile())
+                        .tipoNotifica(notifica.tipo())
+                        .build());
+            }
+        } catch (DataIntegrityViolationException e) {
+            // Ritrasmissione concorrente dello stesso file: già registrata
+            log.debug("Notifica {} già registrata tra quelle in arrivo", notifica.path());
+        }
+    }
+
+    private void recupera(Notifica notifica, boolean registra) {
+        try {
+            if (registra) {
+                registraInArrivo(notifica);
+            }
+            inCorsia(notifica);
+        } catch (Exception e) {
+            log.error("Notifica {} non rimessa in coda all'avvio: {}", notifica.path(), e.getMessage());
+        }
+    }
+
+    // IdentificativoSdI dal contenuto del file, tipo dalla sigla nel nome
+    private static Notifica daFile(Path file) {
+        String nomeFile = file.getFileName().toString();
+        try (InputStream in = Files.newInputStream(file)) {
+            String identificativoSdi = LettoreNotificaSdi.leggi(in).identificativoSdi();
+            if (identificativoSdi == null) {
+                log.warn("File {} senza IdentificativoSdI: non recuperato", file);
+                return null;
+            }
+            return new Notifica(identificativoSdi, nomeFile, PollerNotificheSdi.tipo(nomeFile), file.toString());
+        } catch (Exception e) {
+            log.warn("File {} non riconosciuto come notifica SDI: {}", file, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package it.fatturazione.service.notifiche;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Esecutore a corsie: una chiave finisce sempre nella stessa corsia (hash modulo numero di corsie) e
+// ogni corsia è un solo thread con la propria coda limitata. I compiti di una chiave vengono eseguiti
+// nell'ordine di arrivo, quelli di chiavi in corsie diverse in parallelo.
+public class EsecutoreCorsie {
+
+    private final ThreadPoolExecutor[] corsie;
+    private final AtomicLong[] eseguiti;
+
+    public EsecutoreCorsie(String nome, int numeroCorsie, int capacitaPerCorsia) {
+        corsie = new ThreadPoolExecutor[numeroCorsie];
+        eseguiti = new AtomicLong[numeroCorsie];
+        for (int i = 0; i < numeroCorsie; i++) {
+            String nomeThread = nome + "-" + i;
+            corsie[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(capacitaPerCorsia), r -> {
+                        Thread t = new Thread(r, nomeThread);
+                        t.setDaemon(true);
+                        return t;
+                    });
+            eseguiti[i] = new AtomicLong();
+        }
+    }
+
+    // RejectedExecutionException se la coda della corsia è piena
+    public void esegui(String chiave, Runnable compito) {
+        int corsia = corsia(chiave);
+        AtomicLong contatore = eseguiti[corsia];
+        corsie[corsia].execute(() -> {
+            try {
+                compito.run();
+            } finally {
+                contatore.incrementAndGet();
+            }
+        });
+    }
+
+    int corsia(String chiave) {
+        // Bit alti mescolati con i bassi: identificativi numerici consecutivi si distribuiscono su tutte le corsie
+        int hash = chiave.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), corsie.length);
+    }
+
+    // Compiti in coda o in esecuzione su tutte le corsie
+    public int inCoda() {
+        int totale = 0;
+        for (ThreadPoolExecutor corsia : corsie) {
+            totale += corsia.getQueue().size() + corsia.getActiveCount();
+        }
+        return totale;
+    }
+
+    public Map<String, Object> metriche() {
+        List<Integer> inCodaPerCorsia = new ArrayList<>();
+        List<Long> eseguitiPerCorsia = new ArrayList<>();
+        int massimo = 0;
+        for (int i = 0; i < corsie.length; i++) {
+            int inCoda = corsie[i].getQueue().size() + corsie[i].getActiveCount();
+            inCodaPerCorsia.add(inCoda);
+            eseguitiPerCorsia.add(eseguiti[i].get());
+            massimo = Math.max(massimo, inCoda);
+        }
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("corsie", corsie.length);
+        metriche.put("inCodaMassimo", massimo);
+        metriche.put("inCodaPerCorsia", inCodaPerCorsia);
+        metriche.put("eseguitiPerCorsia", eseguitiPerCorsia);
+        return metriche;
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor corsia : corsie) {
+            corsia.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long scadenza = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor corsia : corsie) {
+            if (!corsia.awaitTermination(Math.max(0, scadenza - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Numero di compiti scartati
+    public int shutdownNow() {
+        int scartati = 0;
+        for (ThreadPoolExecutor corsia : corsie) {
+            scartati += corsia.shutdownNow().size();
+        }
+        return scartati;
+    }
+}
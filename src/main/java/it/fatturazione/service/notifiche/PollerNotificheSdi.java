@@ -0,0 +1,270 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.SdiNonDisponibileException;
+import it.fatturazione.repository.FatturaRepository;
+import it.fatturazione.service.FatturaService;
+import it.fatturazione.service.SdiService;
+import it.fatturazione.service.metriche.MetricheProvider;
+import it.fatturazione.service.sdi.LimitatoreSdi;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Riconciliazione delle fatture ferme da troppo tempo in attesa di notifiche: le INVIATA senza esito
+// della consegna (RC, NS, MC) e le CONSEGNATA a una PA senza esito del committente (NE, DT). Le scorre
+// a pagine per id, cerca da SDI le notifiche attese (una ricerca per IdentificativoSdI, al massimo
+// "concorrenza" in parallelo) e registra quelle trovate in una transazione per pagina. In memoria
+// resta una pagina.
+@Component
+@Slf4j
+public class PollerNotificheSdi implements MetricheProvider {
+
+    private final FatturaRepository fatturaRepository;
+    private final FatturaService fatturaService;
+    private final SdiService sdiService;
+    private final LimitatoreSdi limitatoreSdi;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${fattura.storage.path}")
+    private String storagePath;
+
+    // Nessuna verifica prima di questo tempo dall'invio: nel frattempo le notifiche arrivano su /ws
+    @Value("${sdi.notifiche.poller.attesa-ms:86400000}")
+    private long attesa;
+
+    @Value("${sdi.notifiche.poller.pagina:200}")
+    private int pagina;
+
+    @Value("${sdi.notifiche.poller.concorrenza:8}")
+    private int concorrenza;
+
+    // Sigle delle notifiche cercate per le fatture INVIATA, in ordine: il tipo di notifica è la sigla nel nome
+    @Value("${sdi.notifiche.poller.tipi:RC,NS,MC}")
+    private List<String> tipi;
+
+    // Fatture CONSEGNATA a una PA: esito del committente o decorrenza termini (15 giorni dalla consegna)
+    @Value("${sdi.notifiche.poller.attesa-esito-ms:1382400000}")
+    private long attesaEsito;
+
+    @Value("${sdi.notifiche.poller.tipi-esito:NE,DT}")
+    private List<String> tipiEsito;
+
+    // Progressivi del file di notifica provati per ogni sigla: SDI numera _001, _002, ... le notifiche
+    // ritrasmesse per lo stesso file
+    @Value("${sdi.notifiche.poller.progressivi:2}")
+    private int progressivi;
+
+    private final AtomicLong fattureVerificate = new AtomicLong();
+    private final AtomicLong notificheTrovate = new AtomicLong();
+    private final AtomicLong errori = new AtomicLong();
+    private volatile LocalDateTime ultimaEsecuzione;
+    private volatile long durataUltimaMs;
+
+    private record NotificaScaricata(String identificativoSdi, NotificaSdi.TipoNotifica tipo, Path path) {
+    }
+
+    public PollerNotificheSdi(FatturaRepository fatturaRepository, FatturaService fatturaService,
+                              SdiService sdiService, LimitatoreSdi limitatoreSdi,
+                              PlatformTransactionManager transactionManager) {
+        this.fatturaRepository = fatturaRepository;
+        this.fatturaService = fatturaService;
+        this.sdiService = sdiService;
+        this.limitatoreSdi = limitatoreSdi;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Scheduled(fixedDelayString = "${sdi.notifiche.poller.intervallo-ms:900000}",
+            initialDelayString = "${sdi.notifiche.poller.intervallo-ms:900000}")
+    public void verifica() {
+        if (!sdiService.verificaStatoServizio()) {
+            log.debug("SDI non disponibile: verifica delle fatture in attesa rimandata");
+            return;
+        }
+        long inizio = System.currentTimeMillis();
+        try {
+            Path cartella = Path.of(storagePath, "notifiche");
+            Files.createDirectories(cartella);
+            LocalDateTime ora = LocalDateTime.now();
+
+            LocalDateTime limiteConsegna = ora.minus(Duration.ofMillis(attesa));
+            riconcilia(dopoId -> fatturaRepository.findFattureInAttesaDiRisposta(limiteConsegna, dopoId,
+                    PageRequest.of(0, pagina)), suffissi(tipi), cartella);
+
+            LocalDateTime limiteEsito = ora.minus(Duration.ofMillis(attesaEsito));
+            riconcilia(dopoId -> fatturaRepository.findFattureInAttesaDiEsito(limiteEsito, dopoId,
+                    PageRequest.of(0, pagina)), suffissi(tipiEsito), cartella);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Errore durante la verifica delle fatture in attesa di notifiche", e);
+        } finally {
+            ultimaEsecuzione = LocalDateTime.now();
+            durataUltimaMs = System.currentTimeMillis() - inizio;
+        }
+    }
+
+    private void riconcilia(Function<Long, List<Fattura>> paginaDopo, List<String> suffissi, Path cartella)
+            throws InterruptedException {
+        long dopoId = 0;
+        while (true) {
+            List<Fattura> fatture = paginaDopo.apply(dopoId);
+            if (fatture.isEmpty()) {
+                return;
+            }
+            dopoId = fatture.get(fatture.size() - 1).getId();
+            fattureVerificate.addAndGet(fatture.size());
+            registra(cerca(fatture, suffissi, cartella));
+            if (fatture.size() < pagina) {
+                return;
+            }
+        }
+    }
+
+    // Prima il progressivo _001 di ogni sigla, poi le ritrasmissioni: la notifica di norma è la prima
+    private List<String> suffissi(List<String> sigle) {
+        List<String> suffissi = new ArrayList<>();
+        for (int progressivo = 1; progressivo <= Math.max(1, progressivi); progressivo++) {
+            for (String sigla : sigle) {
+                suffissi.add(String.format("%s_%03d", sigla.trim(), progressivo));
+            }
+        }
+        return suffissi;
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.notifiche.poller";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("ultimaEsecuzione", ultimaEsecuzione != null ? ultimaEsecuzione.toString() : null);
+        metriche.put("durataUltimaMs", durataUltimaMs);
+        metriche.put("fattureVerificate", fattureVerificate.get());
+        metriche.put("notificheTrovate", notificheTrovate.get());
+        metriche.put("errori", errori.get());
+        return metriche;
+    }
+
+    // Le fatture di un lotto condividono IdentificativoSdI e notifiche: una ricerca per identificativo
+    private List<NotificaScaricata> cerca(List<Fattura> fatture, List<String> suffissi, Path cartella)
+            throws InterruptedException {
+        Map<String, String> basePerIdentificativo = new LinkedHashMap<>();
+        for (Fattura fattura : fatture) {
+            if (fattura.getIdentificativoSdi() != null && fattura.getXmlFirmatoPath() != null) {
+                String nomeFile = new File(fattura.getXmlFirmatoPath()).getName();
+                int punto = nomeFile.indexOf('.');
+                basePerIdentificativo.putIfAbsent(fattura.getIdentificativoSdi(),
+                        punto > 0 ? nomeFile.substring(0, punto) : nomeFile);
+            }
+        }
+
+        // Mai più ricerche in volo di quante il limitatore ne lascerebbe passare
+        Semaphore permessi = new Semaphore(Math.max(1, Math.min(concorrenza, limitatoreSdi.limite())));
+        List<CompletableFuture<NotificaScaricata>> ricerche = new ArrayList<>();
+        for (Map.Entry<String, String> voce : basePerIdentificativo.entrySet()) {
+            permessi.acquire();
+            ricerche.add(cerca(voce.getKey(), voce.getValue(), suffissi, cartella, 0)
+                    .whenComplete((notifica, errore) -> permessi.release()));
+        }
+
+        List<NotificaScaricata> trovate = new ArrayList<>();
+        for (CompletableFuture<NotificaScaricata> ricerca : ricerche) {
+            try {
+                trovate.add(ricerca.join());
+            } catch (Exception e) {
+                errori.incrementAndGet();
+            }
+        }
+        trovate.removeIf(Objects::isNull);
+        return trovate;
+    }
+
+    // Prova i suffissi in ordine fino alla prima notifica presente. Un fault significa notifica non
+    // disponibile e si passa alla successiva; un guasto o SDI non disponibile chiude la ricerca.
+    private CompletableFuture<NotificaScaricata> cerca(String identificativoSdi, String base, List<String> suffissi,
+                                                       Path cartella, int indice) {
+        if (indice >= suffissi.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String nomeFile = base + "_" + suffissi.get(indice).trim() + ".xml";
+        return sdiService.scaricaNotificaAsync(identificativoSdi, nomeFile, cartella.resolve(nomeFile))
+                .thenApply(path -> new NotificaScaricata(identificativoSdi, tipo(nomeFile), path))
+                .exceptionallyCompose(errore -> LimitatoreSdi.guasto(errore) || nonDisponibile(errore)
+                        ? CompletableFuture.failedFuture(errore)
+                        : cerca(identificativoSdi, base, suffissi, cartella, indice + 1));
+    }
+
+    // Una transazione per pagina; se fallisce, le notifiche vengono registrate una alla volta
+    private void registra(List<NotificaScaricata> notifiche) {
+        if (notifiche.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> notifiche.forEach(this::registra));
+            notificheTrovate.addAndGet(notifiche.size());
+        } catch (Exception e) {
+            log.warn("Registrazione di {} notifiche fallita, nuovo tentativo una alla volta: {}",
+                    notifiche.size(), e.getMessage());
+            for (NotificaScaricata notifica : notifiche) {
+                try {
+                    registra(notifica);
+                    notificheTrovate.incrementAndGet();
+                } catch (Exception ex) {
+                    errori.incrementAndGet();
+                    log.error("Impossibile registrare la notifica {}", notifica.path(), ex);
+                }
+            }
+        }
+    }
+
+    private void registra(NotificaScaricata notifica) {
+        fatturaService.registraNotifica(notifica.identificativoSdi(), notifica.tipo(), notifica.path().toString());
+    }
+
+    private static boolean nonDisponibile(Throwable errore) {
+        for (Throwable causa = errore; causa != null; causa = causa.getCause()) {
+            if (causa instanceof SdiNonDisponibileException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Nome file SDI: <trasmittente>_<progressivo>_<tipo>_<progressivo notifica>.xml
+    static NotificaSdi.TipoNotifica tipo(String nomeFile) {
+        String[] parti = nomeFile.split("_");
+        String sigla = parti.length >= 2 ? parti[parti.length - 2] : "";
+        return switch (sigla) {
+            case "RC" -> NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA;
+            case "NS" -> NotificaSdi.TipoNotifica.NOTIFICA_SCARTO;
+            case "MC" -> NotificaSdi.TipoNotifica.NOTIFICA_MANCATA_CONSEGNA;
+            case "NE" -> NotificaSdi.TipoNotifica.NOTIFICA_ESITO;
+            case "AT" -> NotificaSdi.TipoNotifica.ATTESTAZIONE_TRASMISSIONE;
+            case "DT" -> NotificaSdi.TipoNotifica.NOTIFICA_DECORRENZA_TERMINI;
+            default -> throw new IllegalArgumentException("Tipo di notifica non riconosciuto nel nome " + nomeFile);
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.service.metriche.TempiFasi;
+import it.fatturazione.service.sdi.LettoreFileSdI;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.ws.mime.Attachment;
+import org.springframework.ws.soap.SoapMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Notifiche consegnate da SDI al servizio RicezioneNotifiche: il file viene scritto nello storage
+// mentre si legge il messaggio (base64 decodificato a blocchi o allegato MTOM copiato) e
+// l'aggiornamento della fattura va in coda, senza lo scaricamento separato da SDI. File e notifica
+// in arrivo sono persistiti prima della risposta: un arresto non perde notifiche già confermate
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RicezioneNotificheService {
+
+    private final CodaNotificheSdi codaNotificheSdi;
+    private final TempiFasi tempiFasi;
+
+    @Value("${fattura.storage.path}")
+    private String storagePath;
+
+    public void ricevi(NotificaSdi.TipoNotifica tipo, SoapMessage messaggio) throws IOException {
+        long inizio = System.nanoTime();
+        Path cartella = Path.of(storagePath, "notifiche");
+        Files.createDirectories(cartella);
+
+        // Il file compare con il nome definitivo solo quando è completo
+        Path temporaneo = Files.createTempFile(cartella, "ricezione", ".tmp");
+        try {
+            LettoreFileSdI.FileSdI file;
+            try (FileChannel canale = FileChannel.open(temporaneo, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(canale))) {
+                file = LettoreFileSdI.leggi(messaggio.getPayloadSource(), out);
+                if (file.contentId() != null) {
+                    copiaAllegato(messaggio, file.contentId(), out);
+                }
+                // Il file deve sopravvivere a un arresto: dopo la risposta SDI non lo ritrasmette
+                out.flush();
+                canale.force(true);
+            }
+            if (file.identificativoSdi() == null || file.identificativoSdi().isBlank()) {
+                throw new SdiException("IdentificativoSdI mancante nella notifica " + file.nomeFile());
+            }
+            Path destinazione = cartella.resolve(nomeFile(file.nomeFile()));
+            Files.move(temporaneo, destinazione, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Notifica {} ricevuta da SDI - IdentificativoSdI: {}, Tipo: {}",
+                    file.nomeFile(), file.identificativoSdi(), tipo);
+
+            codaNotificheSdi.accoda(new CodaNotificheSdi.Notifica(file.identificativoSdi(), file.nomeFile(), tipo,
+                    destinazione.toString()));
+            tempiFasi.registra("ricezioneNotifica", inizio);
+        } finally {
+            Files.deleteIfExists(temporaneo);
+        }
+    }
+
+    private static void copiaAllegato(SoapMessage messaggio, String contentId, OutputStream out) throws IOException {
+        Attachment allegato = messaggio.getAttachment("<" + contentId + ">");
+        if (allegato == null) {
+            allegato = messaggio.getAttachment(contentId);
+        }
+        if (allegato == null) {
+            throw new SdiException("Allegato MTOM " + contentId + " non trovato nella notifica");
+        }
+        try (InputStream in = allegato.getInputStream()) {
+            in.transferTo(out);
+        }
+    }
+
+    // Solo il nome: il valore arriva dall'esterno e non deve uscire dalla directory delle notifiche
+    private static String nomeFile(String nomeFile) {
+        if (nomeFile == null || nomeFile.isBlank()) {
+            throw new SdiException("NomeFile mancante nella notifica");
+        }
+        Path nome = Path.of(nomeFile.trim()).getFileName();
+        if (nome == null || nome.toString().startsWith(".")) {
+            throw new SdiException("NomeFile non valido nella notifica: " + nomeFile);
+        }
+        return nome.toString();
+    }
+}
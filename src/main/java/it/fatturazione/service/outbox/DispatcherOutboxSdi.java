@@ -0,0 +1,102 @@
+package it.fatturazione.service.outbox;
+
+import it.fatturazione.entity.OutboxSdi;
+import it.fatturazione.service.SdiService;
+import it.fatturazione.service.metriche.TempiFasi;
+import it.fatturazione.service.sdi.LimitatoreSdi;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Svuota la coda degli invii a SDI: prenota un blocco di record in una transazione breve, li invia
+// in parallelo con il client non bloccante e registra ogni esito in una transazione separata.
+// Nessuna transazione resta aperta durante le chiamate SOAP.
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class DispatcherOutboxSdi {
+
+    private final OutboxSdiService outboxSdiService;
+    private final SdiService sdiService;
+    private final LimitatoreSdi limitatoreSdi;
+    private final TempiFasi tempiFasi;
+
+    @Value("${sdi.outbox.batch:10}")
+    private int batch;
+
+    @Scheduled(fixedDelayString = "${sdi.outbox.intervallo-ms:2000}",
+            initialDelayString = "${sdi.outbox.intervallo-ms:2000}")
+    public void invia() {
+        // Con SDI non raggiungibile secondo l'ultima verifica gli invii restano in coda
+        if (!sdiService.verificaStatoServizio()) {
+            log.debug("SDI non disponibile: svuotamento della coda rimandato");
+            return;
+        }
+        try {
+            while (true) {
+                // Blocchi non più grandi del limite di concorrenza verso SDI: il resto verrebbe rifiutato
+                int limite = Math.max(1, Math.min(batch, limitatoreSdi.limite()));
+                List<OutboxSdi> prenotati = outboxSdiService.prenota(limite);
+                if (prenotati.isEmpty()) {
+                    return;
+                }
+                inviaBlocco(prenotati);
+                if (prenotati.size() < limite) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("Errore durante lo svuotamento della coda di invio SDI", e);
+        }
+    }
+
+    private void inviaBlocco(List<OutboxSdi> prenotati) {
+        List<CompletableFuture<SdiService.EsitoInvioArchivio>> invii = new ArrayList<>();
+        LocalDateTime ora = LocalDateTime.now();
+        for (OutboxSdi outbox : prenotati) {
+            if (outbox.getTentativi() == 0) {
+                tempiFasi.registraDurata("attesaInCoda", Duration.between(outbox.getDataCreazione(), ora).toNanos());
+            }
+            long inizio = System.nanoTime();
+            invii.add(invia(outbox).whenComplete((esito, errore) -> tempiFasi.registra("invioSdi", inizio)));
+        }
+        CompletableFuture.allOf(invii.toArray(CompletableFuture[]::new)).exceptionally(errore -> null).join();
+
+        for (int i = 0; i < prenotati.size(); i++) {
+            OutboxSdi outbox = prenotati.get(i);
+            try {
+                SdiService.EsitoInvioArchivio esito;
+                try {
+                    esito = invii.get(i).join();
+                } catch (CompletionException e) {
+                    outboxSdiService.registraErrore(outbox.getId(), e.getCause() != null ? e.getCause() : e);
+                    continue;
+                }
+                outboxSdiService.registraInvio(outbox.getId(), esito.identificativoSdi(), esito.fileScartati());
+            } catch (Exception e) {
+                // Il record resta IN_CORSO: alla scadenza della prenotazione passa DA_VERIFICARE
+                log.error("Impossibile registrare l'esito dell'invio {}", outbox.getNomeFile(), e);
+            }
+        }
+    }
+
+    // Singolo file e archivio passano entrambi dal limitatore; il singolo file ha un esito senza scarti
+    private CompletableFuture<SdiService.EsitoInvioArchivio> invia(OutboxSdi outbox) {
+        if (outbox.isArchivio()) {
+            return sdiService.inviaArchivioAsync(outbox.getFileArchivio(), outbox.getNomeFile());
+        }
+        return sdiService.inviaFatturaAsync(outbox.getXmlFirmatoPath(), outbox.getNomeFile())
+                .thenApply(identificativoSdi -> new SdiService.EsitoInvioArchivio(identificativoSdi,
+                        List.of(outbox.getXmlFirmatoPath()), Map.of()));
+    }
+}
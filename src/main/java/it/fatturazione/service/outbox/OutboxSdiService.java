@@ -0,0 +1,34 @@
+package it.fatturazione.service.outbox;
+
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.OutboxSdi;
+
+import java.util.List;
+import java.util.Map;
+
+public interface OutboxSdiService {
+
+    // Mette in coda l'invio del file firmato condiviso dalle fatture, nella transazione del chiamante
+    void accoda(List<Fattura> fatture);
+
+    // Mette in coda l'invio in un unico archivio ZIP dei file firmati delle fatture, nella transazione del chiamante
+    void accodaArchivio(List<Fattura> fatture, List<String> fileFirmati, String nomeArchivio);
+
+    // Prenota fino a limite invii scaduti: restano IN_CORSO fino all'esito. Quelli con la prenotazione scaduta
+    // passano DA_VERIFICARE invece di essere ripresi
+    List<OutboxSdi> prenota(int limite);
+
+    void registraInvio(Long outboxId, String identificativoSdi);
+
+    // Esito di un archivio: le fatture dei file esclusi dall'archivio passano in errore con il motivo
+    void registraInvio(Long outboxId, String identificativoSdi, Map<String, String> fileScartati);
+
+    // Guasti prima dell'invio: nuovo tentativo con backoff. Esito incerto (SDI può aver ricevuto il file):
+    // invio e fatture DA_VERIFICARE, senza nuovi tentativi. Errori di SDI: scartato
+    void registraErrore(Long outboxId, Throwable errore);
+
+    // Notifica con un IdentificativoSdI sconosciuto: le fatture del file nomeFile DA_VERIFICARE, o inviate in
+    // un archivio con l'identificativo dell'archivio, vengono associate all'identificativo del file (le prime
+    // tornano INVIATA). Vuota se nessuna fattura attende quel file
+    List<Fattura> associaNotifica(String identificativoSdi, String nomeFile);
+}
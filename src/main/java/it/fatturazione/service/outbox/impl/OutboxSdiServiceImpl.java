@@ -0,0 +1,331 @@
+package it.fatturazione.service.outbox.impl;
+
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.OutboxSdi;
+import it.fatturazione.exception.SdiNonDisponibileException;
+import it.fatturazione.repository.FatturaRepository;
+import it.fatturazione.repository.OutboxSdiRepository;
+import it.fatturazione.service.metriche.MetricheProvider;
+import it.fatturazione.service.outbox.OutboxSdiService;
+import it.fatturazione.service.sdi.LimitatoreSdi;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+@Service
+@Slf4j
+public class OutboxSdiServiceImpl implements OutboxSdiService, MetricheProvider {
+
+    private static final Set<OutboxSdi.StatoOutbox> IN_SOSPESO =
+            Set.of(OutboxSdi.StatoOutbox.IN_ATTESA, OutboxSdi.StatoOutbox.IN_CORSO);
+
+    private final OutboxSdiRepository outboxSdiRepository;
+    private final FatturaRepository fatturaRepository;
+
+    // Tentativi prima di spostare l'invio tra gli scartati (dead letter)
+    @Value("${sdi.outbox.max-tentativi:8}")
+    private int maxTentativi;
+
+    @Value("${sdi.outbox.backoff-iniziale-ms:5000}")
+    private long backoffIniziale;
+
+    @Value("${sdi.outbox.backoff-massimo-ms:3600000}")
+    private long backoffMassimo;
+
+    // Durata della prenotazione: deve coprire l'invio di un blocco, oltre il record passa DA_VERIFICARE
+    @Value("${sdi.outbox.prenotazione-ms:300000}")
+    private long prenotazione;
+
+    public OutboxSdiServiceImpl(OutboxSdiRepository outboxSdiRepository, FatturaRepository fatturaRepository) {
+        this.outboxSdiRepository = outboxSdiRepository;
+        this.fatturaRepository = fatturaRepository;
+    }
+
+    @Override
+    @Transactional
+    public void accoda(List<Fattura> fatture) {
+        String xmlFirmatoPath = fatture.get(0).getXmlFirmatoPath();
+        fatture.forEach(OutboxSdiServiceImpl::preparaInvio);
+        fatturaRepository.saveAll(fatture);
+
+        if (outboxSdiRepository.existsByXmlFirmatoPathAndStatoIn(xmlFirmatoPath, IN_SOSPESO)) {
+            log.debug("Invio di {} già in coda", xmlFirmatoPath);
+            return;
+        }
+        outboxSdiRepository.save(OutboxSdi.builder()
+                .xmlFirmatoPath(xmlFirmatoPath)
+                .nomeFile(new File(xmlFirmatoPath).getName())
+                .stato(OutboxSdi.StatoOutbox.IN_ATTESA)
+                .tentativi(0)
+                .prossimoTentativo(LocalDateTime.now())
+                .build());
+        log.info("Invio a SDI in coda: {} ({} fatture)", xmlFirmatoPath, fatture.size());
+    }
+
+    @Override
+    @Transactional
+    public void accodaArchivio(List<Fattura> fatture, List<String> fileFirmati, String nomeArchivio) {
+        fatture.forEach(OutboxSdiServiceImpl::preparaInvio);
+        fatturaRepository.saveAll(fatture);
+
+        // Il nome dell'archivio (con il suo progressivo) resta lo stesso a ogni tentativo
+        outboxSdiRepository.save(OutboxSdi.builder()
+                .xmlFirmatoPath(nomeArchivio)
+                .nomeFile(nomeArchivio)
+                .fileArchivio(new ArrayList<>(fileFirmati))
+                .stato(OutboxSdi.StatoOutbox.IN_ATTESA)
+                .tentativi(0)
+                .prossimoTentativo(LocalDateTime.now())
+                .build());
+        log.info("Invio a SDI in coda: archivio {} ({} file, {} fatture)", nomeArchivio, fileFirmati.size(),
+                fatture.size());
+    }
+
+    @Override
+    @Transactional
+    public List<OutboxSdi> prenota(int limite) {
+        LocalDateTime ora = LocalDateTime.now();
+        List<OutboxSdi> prenotati = new ArrayList<>();
+        for (OutboxSdi outbox : outboxSdiRepository.findDaInviareForUpdate(ora, limite)) {
+            if (outbox.getStato() == OutboxSdi.StatoOutbox.IN_CORSO) {
+                // Chi l'aveva prenotato può aver inviato il file senza registrarne l'esito
+                daVerificare(outbox, "prenotazione scaduta senza esito registrato");
+                continue;
+            }
+            outbox.setStato(OutboxSdi.StatoOutbox.IN_CORSO);
+            outbox.setProssimoTentativo(ora.plus(prenotazione, ChronoUnit.MILLIS));
+            prenotati.add(outbox);
+        }
+        return outboxSdiRepository.saveAll(prenotati);
+    }
+
+    @Override
+    @Transactional
+    public void registraInvio(Long outboxId, String identificativoSdi) {
+        registraInvio(outboxId, identificativoSdi, Map.of());
+    }
+
+    @Override
+    @Transactional
+    public void registraInvio(Long outboxId, String identificativoSdi, Map<String, String> fileScartati) {
+        OutboxSdi outbox = trova(outboxId);
+        outbox.setStato(OutboxSdi.StatoOutbox.INVIATO);
+        outbox.setIdentificativoSdi(identificativoSdi);
+        outbox.setTentativi(outbox.getTentativi() + 1);
+        outbox.setUltimoErrore(null);
+        outboxSdiRepository.save(outbox);
+
+        // Anche le fatture passate DA_VERIFICARE per la prenotazione scaduta: l'esito ora è noto
+        LocalDateTime dataInvio = LocalDateTime.now();
+        List<Fattura> fatture = inCoda(outbox, Fattura.StatoFattura.IN_CODA_INVIO, Fattura.StatoFattura.DA_VERIFICARE);
+        for (Fattura fattura : fatture) {
+            String motivo = fileScartati.get(fattura.getXmlFirmatoPath());
+            if (motivo != null) {
+                fattura.setStato(Fattura.StatoFattura.ERRORE);
+                fattura.setNoteErrore(StringUtils.abbreviate("File escluso dall'archivio SDI: " + motivo, 2000));
+                continue;
+            }
+            // Le notifiche del primo invio restano associate al suo identificativo
+            if (fattura.getIdentificativoSdi() != null && !fattura.getIdentificativoSdi().equals(identificativoSdi)) {
+                log.error("Fattura ID {} già associata all'IdentificativoSdI {}: {} non viene registrato",
+                        fattura.getId(), fattura.getIdentificativoSdi(), identificativoSdi);
+                continue;
+            }
+            fattura.setIdentificativoSdi(identificativoSdi);
+            fattura.setDataInvio(dataInvio);
+            fattura.setStato(Fattura.StatoFattura.INVIATA);
+            fattura.setNoteErrore(null);
+        }
+        fatturaRepository.saveAll(fatture);
+        log.info("Fatture inviate a SDI: {} - IdentificativoSdI: {}", outbox.getNomeFile(), identificativoSdi);
+    }
+
+    @Override
+    @Transactional
+    public void registraErrore(Long outboxId, Throwable errore) {
+        OutboxSdi outbox = trova(outboxId);
+        String messaggio = StringUtils.abbreviate(errore.getMessage(), 2000);
+        if (outbox.getStato() == OutboxSdi.StatoOutbox.DA_VERIFICARE) {
+            // Prenotazione scaduta durante l'invio: l'esito del tentativo precedente resta da verificare
+            log.warn("Invio {} già da verificare, errore non registrato: {}", outbox.getNomeFile(), messaggio);
+            return;
+        }
+        outbox.setUltimoErrore(messaggio);
+
+        if (errore instanceof SdiNonDisponibileException) {
+            // Rifiutato dal limitatore o dal circuito: SDI non è stato chiamato, il tentativo non si conta
+            outbox.setStato(OutboxSdi.StatoOutbox.IN_ATTESA);
+            outbox.setProssimoTentativo(prossimoTentativo(Math.max(1, outbox.getTentativi())));
+            outboxSdiRepository.save(outbox);
+            log.debug("Invio {} rimandato: {}", outbox.getNomeFile(), messaggio);
+            return;
+        }
+
+        outbox.setTentativi(outbox.getTentativi() + 1);
+        // Timeout o connessione persa in attesa della risposta: se SDI ha accettato il file, un nuovo invio
+        // avrebbe un altro IdentificativoSdI e verrebbe scartato come duplicato. L'invio resta da verificare
+        if (LimitatoreSdi.guasto(errore) && !LimitatoreSdi.richiestaNonInviata(errore)) {
+            daVerificare(outbox, messaggio);
+            return;
+        }
+
+        // Un errore restituito da SDI (fault, risposta non valida) si ripeterebbe uguale a ogni tentativo
+        if (LimitatoreSdi.guasto(errore) && outbox.getTentativi() < maxTentativi) {
+            outbox.setStato(OutboxSdi.StatoOutbox.IN_ATTESA);
+            outbox.setProssimoTentativo(prossimoTentativo(outbox.getTentativi()));
+            outboxSdiRepository.save(outbox);
+            log.warn("Invio {} fallito (tentativo {} di {}), nuovo tentativo alle {}: {}", outbox.getNomeFile(),
+                    outbox.getTentativi(), maxTentativi, outbox.getProssimoTentativo(), messaggio);
+            return;
+        }
+
+        outbox.setStato(OutboxSdi.StatoOutbox.SCARTATO);
+        outboxSdiRepository.save(outbox);
+        List<Fattura> fatture = inCoda(outbox);
+        for (Fattura fattura : fatture) {
+            fattura.setStato(Fattura.StatoFattura.ERRORE);
+            fattura.setNoteErrore(StringUtils.abbreviate("Errore invio SDI dopo " + outbox.getTentativi()
+                    + " tentativi: " + messaggio, 2000));
+        }
+        fatturaRepository.saveAll(fatture);
+        log.error("Invio {} scartato dopo {} tentativi: {}", outbox.getNomeFile(), outbox.getTentativi(), messaggio);
+    }
+
+    private void daVerificare(OutboxSdi outbox, String messaggio) {
+        outbox.setStato(OutboxSdi.StatoOutbox.DA_VERIFICARE);
+        outbox.setUltimoErrore(StringUtils.abbreviate(messaggio, 2000));
+        outboxSdiRepository.save(outbox);
+        List<Fattura> fatture = inCoda(outbox);
+        for (Fattura fattura : fatture) {
+            fattura.setStato(Fattura.StatoFattura.DA_VERIFICARE);
+            fattura.setNoteErrore(StringUtils.abbreviate("Esito dell'invio a SDI non noto: " + messaggio
+                    + ". Verificare su SDI prima di reinviare", 2000));
+        }
+        fatturaRepository.saveAll(fatture);
+        log.error("Invio {} da verificare, SDI può aver ricevuto il file: {}", outbox.getNomeFile(), messaggio);
+    }
+
+    @Override
+    @Transactional
+    public List<Fattura> associaNotifica(String identificativoSdi, String nomeFile) {
+        List<Fattura> fatture = fatturaRepository.findAllByStatoInAndNomeFilePerAggiornamento(
+                        List.of(Fattura.StatoFattura.DA_VERIFICARE, Fattura.StatoFattura.INVIATA), nomeFile).stream()
+                .filter(fattura -> nomeFile.equals(new File(fattura.getXmlFirmatoPath()).getName()))
+                .filter(fattura -> fattura.getStato() == Fattura.StatoFattura.DA_VERIFICARE
+                        ? fattura.getIdentificativoSdi() == null
+                        : fileDiArchivio(fattura))
+                .toList();
+        if (fatture.isEmpty()) {
+            return fatture;
+        }
+
+        LocalDateTime dataInvio = LocalDateTime.now();
+        for (Fattura fattura : fatture) {
+            fattura.setIdentificativoSdi(identificativoSdi);
+            if (fattura.getStato() == Fattura.StatoFattura.DA_VERIFICARE) {
+                fattura.setDataInvio(dataInvio);
+                fattura.setStato(Fattura.StatoFattura.INVIATA);
+                fattura.setNoteErrore(null);
+            }
+        }
+        fatturaRepository.saveAll(fatture);
+
+        // SDI ha ricevuto l'invio; di un archivio non è noto l'identificativo, solo quello del file
+        for (OutboxSdi outbox : outboxSdiRepository.findAllByStatoAndFile(OutboxSdi.StatoOutbox.DA_VERIFICARE,
+                fatture.get(0).getXmlFirmatoPath())) {
+            outbox.setStato(OutboxSdi.StatoOutbox.INVIATO);
+            outbox.setUltimoErrore(null);
+            if (!outbox.isArchivio()) {
+                outbox.setIdentificativoSdi(identificativoSdi);
+            }
+            outboxSdiRepository.save(outbox);
+        }
+        log.info("File {} associato da SDI all'IdentificativoSdI {} ({} fatture)", nomeFile,
+                identificativoSdi, fatture.size());
+        return fatture;
+    }
+
+    // SDI assegna a ogni file di un archivio un proprio IdentificativoSdI e lo notifica con il suo NomeFile:
+    // quello restituito per l'archivio resta sulla fattura solo fino alla prima notifica del file
+    private boolean fileDiArchivio(Fattura fattura) {
+        return fattura.getIdentificativoSdi() != null
+                && outboxSdiRepository.existsArchivioByIdentificativoSdi(fattura.getIdentificativoSdi());
+    }
+
+    // Una fattura già ricevuta da SDI non viene reinviata: il secondo IdentificativoSdI sostituirebbe il primo
+    // e SDI scarterebbe il file come duplicato. Dopo uno scarto l'invio riparte da capo
+    private static void preparaInvio(Fattura fattura) {
+        if (fattura.getStato() == Fattura.StatoFattura.DA_VERIFICARE) {
+            throw new IllegalStateException("Esito del precedente invio della fattura " + fattura.getNumeroFattura()
+                    + " da verificare su SDI prima di reinviarla");
+        }
+        if (fattura.getIdentificativoSdi() != null) {
+            if (fattura.getStato() != Fattura.StatoFattura.SCARTATA) {
+                throw new IllegalStateException("Fattura " + fattura.getNumeroFattura()
+                        + " già ricevuta da SDI con IdentificativoSdI " + fattura.getIdentificativoSdi());
+            }
+            fattura.setIdentificativoSdi(null);
+            fattura.setDataInvio(null);
+            fattura.setDataRicevutaConsegna(null);
+        }
+        fattura.setStato(Fattura.StatoFattura.IN_CODA_INVIO);
+        fattura.setNoteErrore(null);
+    }
+
+    private OutboxSdi trova(Long outboxId) {
+        return outboxSdiRepository.findById(outboxId)
+                .orElseThrow(() -> new IllegalStateException("Invio in coda non trovato con ID: " + outboxId));
+    }
+
+    private List<Fattura> inCoda(OutboxSdi outbox) {
+        return inCoda(outbox, Fattura.StatoFattura.IN_CODA_INVIO);
+    }
+
+    private List<Fattura> inCoda(OutboxSdi outbox, Fattura.StatoFattura... stati) {
+        Set<Fattura.StatoFattura> ammessi = Set.of(stati);
+        List<Fattura> fatture = outbox.isArchivio()
+                ? fatturaRepository.findAllByXmlFirmatoPathIn(outbox.getFileArchivio())
+                : fatturaRepository.findAllByXmlFirmatoPath(outbox.getXmlFirmatoPath());
+        return fatture.stream()
+                .filter(fattura -> ammessi.contains(fattura.getStato()))
+                .toList();
+    }
+
+    private LocalDateTime prossimoTentativo(int tentativi) {
+        return LocalDateTime.now().plus(ritardo(tentativi, backoffIniziale, backoffMassimo), ChronoUnit.MILLIS);
+    }
+
+    // Backoff esponenziale con jitter: metà del ritardo è fissa, l'altra metà casuale,
+    // così gli invii falliti insieme non si ripresentano insieme
+    static long ritardo(int tentativi, long iniziale, long massimo) {
+        long esponenziale = Math.min(massimo, iniziale << Math.min(tentativi - 1, 30));
+        long meta = esponenziale / 2;
+        return meta + ThreadLocalRandom.current().nextLong(esponenziale - meta + 1);
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.outbox";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        for (OutboxSdi.StatoOutbox stato : OutboxSdi.StatoOutbox.values()) {
+            metriche.put(stato.name().toLowerCase(), outboxSdiRepository.countByStato(stato));
+        }
+        return metriche;
+    }
+}
@@ -0,0 +1,5 @@
+package it.fatturazione.service.progressivo;
+
+public interface ProgressivoInvioService {
+    String prossimo(final String codiceTrasmittente);
+}
@@ -0,0 +1,76 @@
+package it.fatturazione.service.progressivo.impl;
+
+import it.fatturazione.service.cache.RedisService;
+import it.fatturazione.service.progressivo.ProgressivoInvioService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Service
+@Slf4j
+public class ProgressivoInvioServiceImpl implements ProgressivoInvioService {
+
+    private static final String CHIAVE_PREFISSO = "progressivo-invio:";
+    private static final int LUNGHEZZA = 5;
+    // 36^5 valori alfanumerici su 5 caratteri, poi la numerazione ricomincia
+    static final long MODULO = 60_466_176L;
+
+    private final RedisService redisService;
+    private final ConcurrentHashMap<String, AtomicReference<Blocco>> blocchi = new ConcurrentHashMap<>();
+
+    // Quanti progressivi riservare su Redis con un solo INCRBY
+    @Value("${fattura.progressivo.blocco:1000}")
+    private int dimensioneBlocco;
+
+    public ProgressivoInvioServiceImpl(RedisService redisService) {
+        this.redisService = redisService;
+    }
+
+    @Override
+    public String prossimo(String codiceTrasmittente) {
+        AtomicReference<Blocco> corrente = blocchi.computeIfAbsent(codiceTrasmittente,
+                codice -> new AtomicReference<>(Blocco.ESAURITO));
+        while (true) {
+            Blocco blocco = corrente.get();
+            long valore = blocco.prossimo.getAndIncrement();
+            if (valore <= blocco.ultimo) {
+                return formatta(valore);
+            }
+            rinnova(codiceTrasmittente, corrente, blocco);
+        }
+    }
+
+    // Solo il thread che trova il blocco esaurito va su Redis, gli altri riprovano sul nuovo blocco
+    private void rinnova(String codiceTrasmittente, AtomicReference<Blocco> corrente, Blocco esaurito) {
+        synchronized (corrente) {
+            if (corrente.get() != esaurito) {
+                return;
+            }
+            long ultimo = redisService.increment(CHIAVE_PREFISSO + codiceTrasmittente, dimensioneBlocco);
+            corrente.set(new Blocco(ultimo - dimensioneBlocco + 1, ultimo));
+            log.debug("Riservato blocco progressivi {}-{} per trasmittente {}",
+                    ultimo - dimensioneBlocco + 1, ultimo, codiceTrasmittente);
+        }
+    }
+
+    static String formatta(long valore) {
+        String base36 = Long.toString(valore % MODULO, 36).toUpperCase();
+        return "0".repeat(LUNGHEZZA - base36.length()) + base36;
+    }
+
+    private static final class Blocco {
+        private static final Blocco ESAURITO = new Blocco(1, 0);
+
+        private final AtomicLong prossimo;
+        private final long ultimo;
+
+        private Blocco(long primo, long ultimo) {
+            this.prossimo = new AtomicLong(primo);
+            this.ultimo = ultimo;
+        }
+    }
+}
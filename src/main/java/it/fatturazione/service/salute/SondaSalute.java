@@ -0,0 +1,180 @@
+package it.fatturazione.service.salute;
+
+import it.fatturazione.service.FirmaDigitaleService;
+import it.fatturazione.service.SdiService;
+import it.fatturazione.service.metriche.FinestraLatenze;
+import it.fatturazione.service.metriche.MetricheProvider;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Verifica periodica in background di SDI, database, Redis e keystore di firma. Per ogni componente
+// conserva le ultime latenze (percentili su finestra mobile) e l'esito dell'ultima verifica;
+// health check e verificaStatoServizio leggono il verdetto in cache senza chiamare le dipendenze.
+@Component
+@Slf4j
+public class SondaSalute implements MetricheProvider {
+
+    public enum Stato { OK, LENTO, KO }
+
+    // Campioni per il calcolo dei percentili
+    @Value("${salute.campioni:100}")
+    private int campioni;
+
+    // Oltre questa latenza il componente è LENTO: resta pronto ma il verdetto lo segnala
+    @Value("${salute.soglia-lenta-ms:2000}")
+    private long sogliaLenta;
+
+    @Value("${salute.timeout-db-s:5}")
+    private int timeoutDb;
+
+    // SDI non raggiungibile non toglie l'istanza dal bilanciatore: gli invii restano in coda
+    @Value("${salute.sdi.obbligatorio:false}")
+    private boolean sdiObbligatorio;
+
+    private final List<Componente> componenti;
+    private volatile boolean pronto;
+
+    public SondaSalute(SdiService sdiService, DataSource dataSource, RedisConnectionFactory redisConnectionFactory,
+                       FirmaDigitaleService firmaDigitaleService) {
+        this.componenti = List.of(
+                new Componente("db", true, () -> verificaDb(dataSource)),
+                new Componente("redis", true, () -> verificaRedis(redisConnectionFactory)),
+                new Componente("keystore", true, firmaDigitaleService::verificaCertificato),
+                // Ultimo: è l'unico che può attendere il timeout di rete
+                new Componente("sdi", false, sdiService::sondaServizio));
+    }
+
+    @Scheduled(fixedDelayString = "${salute.intervallo-ms:10000}")
+    public void verifica() {
+        boolean tuttiPronti = true;
+        for (Componente componente : componenti) {
+            Esito esito = componente.misura(sogliaLenta);
+            boolean obbligatorio = componente.obbligatorio || ("sdi".equals(componente.nome) && sdiObbligatorio);
+            if (obbligatorio && esito.stato() == Stato.KO) {
+                tuttiPronti = false;
+            }
+        }
+        if (tuttiPronti != pronto) {
+            log.info("Verdetto di salute cambiato: {}", tuttiPronti ? "pronto" : "non pronto");
+        }
+        pronto = tuttiPronti;
+    }
+
+    // Falso fino alla prima verifica completa
+    public boolean pronto() {
+        return pronto;
+    }
+
+    private void verificaDb(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            if (!connection.isValid(timeoutDb)) {
+                throw new SQLException("Connessione al database non valida");
+            }
+        }
+    }
+
+    private void verificaRedis(RedisConnectionFactory redisConnectionFactory) {
+        try (RedisConnection connection = redisConnectionFactory.getConnection()) {
+            connection.ping();
+        }
+    }
+
+    @Override
+    public String nome() {
+        return "salute";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("pronto", pronto);
+        for (Componente componente : componenti) {
+            metriche.put(componente.nome, componente.metriche());
+        }
+        return metriche;
+    }
+
+    @FunctionalInterface
+    private interface Verifica {
+        void esegui() throws Exception;
+    }
+
+    private record Esito(Stato stato, long latenzaMs, String errore, Instant verificatoIl) {
+    }
+
+    private final class Componente {
+
+        private final String nome;
+        private final boolean obbligatorio;
+        private final Verifica verifica;
+        private final AtomicLong fallite = new AtomicLong();
+        private volatile FinestraLatenze latenze;
+        private volatile Esito ultimo;
+
+        Componente(String nome, boolean obbligatorio, Verifica verifica) {
+            this.nome = nome;
+            this.obbligatorio = obbligatorio;
+            this.verifica = verifica;
+        }
+
+        // Eseguita solo dal thread dello scheduler
+        Esito misura(long sogliaLenta) {
+            if (latenze == null) {
+                latenze = new FinestraLatenze(campioni);
+            }
+            long inizio = System.nanoTime();
+            String errore = null;
+            try {
+                verifica.esegui();
+            } catch (Exception e) {
+                errore = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                fallite.incrementAndGet();
+            }
+            long durata = System.nanoTime() - inizio;
+            latenze.registra(durata);
+            long latenzaMs = TimeUnit.NANOSECONDS.toMillis(durata);
+
+            Stato stato = errore != null ? Stato.KO : latenzaMs > sogliaLenta ? Stato.LENTO : Stato.OK;
+            Esito precedente = ultimo;
+            if (precedente == null || precedente.stato() != stato) {
+                if (stato == Stato.KO) {
+                    log.warn("Verifica {} fallita in {} ms: {}", nome, latenzaMs, errore);
+                } else {
+                    log.info("Verifica {}: {} ({} ms)", nome, stato, latenzaMs);
+                }
+            }
+            Esito esito = new Esito(stato, latenzaMs, errore, Instant.now());
+            ultimo = esito;
+            return esito;
+        }
+
+        Map<String, Object> metriche() {
+            Map<String, Object> metriche = new LinkedHashMap<>();
+            Esito esito = ultimo;
+            metriche.put("stato", esito != null ? esito.stato().name() : null);
+            metriche.put("ultimaLatenzaMs", esito != null ? esito.latenzaMs() : null);
+            metriche.put("errore", esito != null ? esito.errore() : null);
+            metriche.put("verificatoIl", esito != null ? esito.verificatoIl().toString() : null);
+            metriche.put("verificheFallite", fallite.get());
+            FinestraLatenze finestra = latenze;
+            if (finestra != null) {
+                metriche.putAll(finestra.metriche());
+            }
+            return metriche;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package it.fatturazione.service.sdi;
+
+import org.apache.hc.client5.http.async.methods.AbstractBinResponseConsumer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Riceve il corpo sul thread di I/O copiandolo in RispostaHttp, senza interpretarlo
+class ConsumerRispostaHttp extends AbstractBinResponseConsumer<RispostaHttp> {
+
+    private static final int FINESTRA = 64 * 1024;
+
+    private final byte[] copia = new byte[8 * 1024];
+    private RispostaHttp risposta;
+    private boolean consegnata;
+
+    @Override
+    protected void start(HttpResponse response, ContentType contentType) {
+        // Header originale: i parametri boundary e start servono per le risposte MTOM
+        Header header = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        risposta = new RispostaHttp(response.getCode(), response.getReasonPhrase(),
+                header != null ? header.getValue() : null);
+    }
+
+    @Override
+    protected int capacityIncrement() {
+        return FINESTRA;
+    }
+
+    @Override
+    protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+        if (src.hasArray()) {
+            risposta.scrivi(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+        while (src.hasRemaining()) {
+            int quanti = Math.min(src.remaining(), copia.length);
+            src.get(copia, 0, quanti);
+            risposta.scrivi(copia, 0, quanti);
+        }
+    }
+
+    @Override
+    protected RispostaHttp buildResult() {
+        try {
+            risposta.completa();
+        } catch (IOException e) {
+            risposta.close();
+            throw new IllegalStateException("Impossibile completare la risposta SDI", e);
+        }
+        consegnata = true;
+        return risposta;
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        releaseResources();
+    }
+
+    @Override
+    public void releaseResources() {
+        // Dopo buildResult la risposta appartiene al chiamante; qui si libera solo quella incompleta
+        if (risposta != null && !consegnata) {
+            risposta.close();
+            risposta = null;
+        }
+    }
+}
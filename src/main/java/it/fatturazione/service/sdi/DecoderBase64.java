@@ -0,0 +1,59 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Decodifica incrementale: i caratteri base64 arrivano in segmenti di lunghezza arbitraria,
+// vengono decodificati i gruppi completi di 4 e il resto passa al segmento successivo
+final class DecoderBase64 {
+
+    private static final int BLOCCO = 4 * 4096;
+
+    private final OutputStream out;
+    private final byte[] ingresso = new byte[BLOCCO];
+    private final byte[] uscita = new byte[BLOCCO / 4 * 3];
+    private int lunghezza;
+
+    DecoderBase64(OutputStream out) {
+        this.out = out;
+    }
+
+    void scrivi(char[] caratteri, int inizio, int quanti) throws IOException {
+        for (int i = inizio; i < inizio + quanti; i++) {
+            char c = caratteri[i];
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                continue;
+            }
+            ingresso[lunghezza++] = (byte) c;
+            if (lunghezza == BLOCCO) {
+                decodifica();
+            }
+        }
+    }
+
+    void chiudi() throws IOException {
+        if (lunghezza % 4 != 0) {
+            throw new SdiException("Contenuto base64 del File non valido");
+        }
+        decodifica();
+    }
+
+    private void decodifica() throws IOException {
+        if (lunghezza == 0) {
+            return;
+        }
+        try {
+            // Solo l'ultimo blocco, più corto, richiede una copia
+            byte[] blocco = lunghezza == BLOCCO ? ingresso : Arrays.copyOf(ingresso, lunghezza);
+            int decodificati = Base64.getDecoder().decode(blocco, uscita);
+            out.write(uscita, 0, decodificati);
+        } catch (IllegalArgumentException e) {
+            throw new SdiException("Contenuto base64 del File non valido", e);
+        }
+        lunghezza = 0;
+    }
+}
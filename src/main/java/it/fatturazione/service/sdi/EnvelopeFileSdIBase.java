@@ -0,0 +1,170 @@
+package it.fatturazione.service.sdi;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.EntityTemplate;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.io.IOCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Corpo HTTP della richiesta fileSdIBase scritto come template di byte: il contenuto dell'elemento File
+// viene codificato in base64 a blocchi mentre viene scritto sulla connessione, con memoria costante.
+// In modalità MTOM il file viaggia invece come parte MIME binaria referenziata da xop:Include.
+public final class EnvelopeFileSdIBase {
+
+    public static final ContentType CONTENT_TYPE = ContentType.create("text/xml", StandardCharsets.UTF_8);
+
+    private static final String NS_SOAP = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String NS_TRASMISSIONE = "http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0";
+    private static final String NS_XOP = "http://www.w3.org/2004/08/xop/include";
+    private static final String ID_ENVELOPE = "fileSdIBase@fatturazione.it";
+    private static final String ID_FILE = "file@fatturazione.it";
+    // Multiplo di 3: ogni blocco diventa base64 senza padding intermedio
+    private static final int BLOCCO = 3 * 16 * 1024;
+
+    private EnvelopeFileSdIBase() {
+    }
+
+    // Lunghezza nota in anticipo: la richiesta viene inviata con Content-Length
+    public static HttpEntity daFile(String nomeFile, Path file) throws IOException {
+        long dimensione = Files.size(file);
+        return crea(nomeFile, dimensione, out -> copia(file, out));
+    }
+
+    // Lo ZIP viene scritto direttamente nell'encoder base64: richiesta in chunked encoding
+    public static HttpEntity daArchivio(String nomeArchivio, List<Path> files) {
+        return crea(nomeArchivio, -1, out -> scriviZip(files, out));
+    }
+
+    // MTOM/XOP: l'elemento File contiene solo un riferimento, i byte del file viaggiano senza
+    // codifica in una parte MIME binaria dopo l'envelope
+    public static HttpEntity mtomDaFile(String nomeFile, Path file) throws IOException {
+        long dimensione = Files.size(file);
+        return creaMtom(nomeFile, dimensione, out -> copia(file, out));
+    }
+
+    public static HttpEntity mtomDaArchivio(String nomeArchivio, List<Path> files) {
+        return creaMtom(nomeArchivio, -1, out -> scriviZip(files, out));
+    }
+
+    // Stesso corpo di daFile/mtomDaFile per il client asincrono non bloccante
+    public static AsyncEntityProducer asyncDaFile(String nomeFile, Path file) throws IOException {
+        byte[] prefisso = prefisso(nomeFile);
+        byte[] suffisso = suffisso();
+        long lunghezza = prefisso.length + 4 * ((Files.size(file) + 2) / 3) + suffisso.length;
+        return new ProduttoreFileSdIBase(prefisso, file, suffisso, true, CONTENT_TYPE.toString(), lunghezza);
+    }
+
+    public static AsyncEntityProducer asyncMtomDaFile(String nomeFile, Path file) throws IOException {
+        Mtom mtom = Mtom.crea(nomeFile);
+        long lunghezza = mtom.prima().length + Files.size(file) + mtom.dopo().length;
+        return new ProduttoreFileSdIBase(mtom.prima(), file, mtom.dopo(), false, mtom.contentType().toString(), lunghezza);
+    }
+
+    public static byte[] prefisso(String nomeFile) {
+        return ("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"" + NS_SOAP + "\" xmlns:tra=\"" + NS_TRASMISSIONE + "\">"
+                + "<SOAP-ENV:Header/><SOAP-ENV:Body><tra:fileSdIBase>"
+                + "<tra:IdentificativoSdI>0</tra:IdentificativoSdI>"
+                + "<tra:NomeFile>" + escape(nomeFile) + "</tra:NomeFile>"
+                + "<tra:File>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] suffisso() {
+        return "</tra:File></tra:fileSdIBase></SOAP-ENV:Body></SOAP-ENV:Envelope>".getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static HttpEntity crea(String nomeFile, long dimensione, IOCallback<OutputStream> contenuto) {
+        byte[] prefisso = prefisso(nomeFile);
+        byte[] suffisso = suffisso();
+        long lunghezza = dimensione >= 0
+                ? prefisso.length + 4 * ((dimensione + 2) / 3) + suffisso.length
+                : -1;
+
+        return new EntityTemplate(lunghezza, CONTENT_TYPE, null, out -> {
+            out.write(prefisso);
+            // La chiusura dell'encoder scrive il padding finale senza chiudere la connessione
+            try (OutputStream base64 = Base64.getEncoder().wrap(CloseShieldOutputStream.wrap(out))) {
+                contenuto.execute(base64);
+            }
+            out.write(suffisso);
+        });
+    }
+
+    private static HttpEntity creaMtom(String nomeFile, long dimensione, IOCallback<OutputStream> contenuto) {
+        Mtom mtom = Mtom.crea(nomeFile);
+        long lunghezza = dimensione >= 0 ? mtom.prima().length + dimensione + mtom.dopo().length : -1;
+        return new EntityTemplate(lunghezza, mtom.contentType(), null, out -> {
+            out.write(mtom.prima());
+            contenuto.execute(CloseShieldOutputStream.wrap(out));
+            out.write(mtom.dopo());
+        });
+    }
+
+    // Byte del messaggio multipart/related prima e dopo il contenuto binario del file
+    private record Mtom(byte[] prima, byte[] dopo, ContentType contentType) {
+
+        static Mtom crea(String nomeFile) {
+            String boundary = "uuid:" + UUID.randomUUID();
+            ByteArrayOutputStream intestazione = new ByteArrayOutputStream();
+            intestazione.writeBytes(("--" + boundary + "\r\n"
+                    + "Content-Type: application/xop+xml; charset=UTF-8; type=\"text/xml\"\r\n"
+                    + "Content-Transfer-Encoding: 8bit\r\n"
+                    + "Content-ID: <" + ID_ENVELOPE + ">\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            intestazione.writeBytes(prefisso(nomeFile));
+            intestazione.writeBytes(("<xop:Include xmlns:xop=\"" + NS_XOP + "\" href=\"cid:" + ID_FILE + "\"/>")
+                    .getBytes(StandardCharsets.US_ASCII));
+            intestazione.writeBytes(suffisso());
+            intestazione.writeBytes(("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Transfer-Encoding: binary\r\n"
+                    + "Content-ID: <" + ID_FILE + ">\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] dopo = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            ContentType contentType = ContentType.parse("multipart/related; type=\"application/xop+xml\"; boundary=\""
+                    + boundary + "\"; start=\"<" + ID_ENVELOPE + ">\"; start-info=\"text/xml\"");
+            return new Mtom(intestazione.toByteArray(), dopo, contentType);
+        }
+    }
+
+    private static String escape(String testo) {
+        return testo.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static void scriviZip(List<Path> files, OutputStream out) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(CloseShieldOutputStream.wrap(out))) {
+            for (Path file : files) {
+                zip.putNextEntry(new ZipEntry(file.getFileName().toString()));
+                copia(file, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static void copia(Path file, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCCO);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                if (!buffer.hasRemaining()) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Lettura dei messaggi fileSdI (IdentificativoSdI, NomeFile, File) con cui SDI consegna le notifiche:
+// il payload viene percorso come sequenza di eventi SAX e il contenuto base64 dell'elemento File
+// viene decodificato a blocchi in out, senza copie intermedie del file in memoria
+public final class LettoreFileSdI {
+
+    private static final String NS_XOP = "http://www.w3.org/2004/08/xop/include";
+
+    private static final TransformerFactory FACTORY = creaFactory();
+
+    // contentId valorizzato se File contiene un xop:Include: il contenuto è nell'allegato MTOM
+    public record FileSdI(String identificativoSdi, String nomeFile, String contentId) {
+    }
+
+    private LettoreFileSdI() {
+    }
+
+    public static FileSdI leggi(Source payload, OutputStream out) throws IOException {
+        Gestore gestore = new Gestore(out);
+        try {
+            FACTORY.newTransformer().transform(payload, new SAXResult(gestore));
+        } catch (TransformerException e) {
+            for (Throwable causa = e.getCause(); causa != null; causa = causa.getCause()) {
+                if (causa instanceof IOException io) {
+                    throw io;
+                }
+                if (causa instanceof SdiException sdi) {
+                    throw sdi;
+                }
+            }
+            throw new SdiException("Messaggio SDI non valido: " + e.getMessage(), e);
+        }
+        if (!gestore.fileTrovato) {
+            throw new SdiException("File non trovato nel messaggio SDI");
+        }
+        return new FileSdI(gestore.identificativoSdi, gestore.nomeFile, gestore.contentId);
+    }
+
+    private static TransformerFactory creaFactory() {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+        return factory;
+    }
+
+    private static final class Gestore extends DefaultHandler {
+
+        private final DecoderBase64 decoder;
+        private final StringBuilder testo = new StringBuilder();
+        private String campo;
+        private boolean inFile;
+
+        private String identificativoSdi;
+        private String nomeFile;
+        private String contentId;
+        private boolean fileTrovato;
+
+        Gestore(OutputStream out) {
+            this.decoder = new DecoderBase64(out);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributi) throws SAXException {
+            if (inFile) {
+                if (!"Include".equals(localName) || !NS_XOP.equals(uri)) {
+                    throw new SdiException("Elemento inatteso nel File della notifica: " + localName);
+                }
+                contentId = LettoreMultipartRelated.normalizzaContentId(attributi.getValue("href"));
+                return;
+            }
+            switch (localName) {
+                case "IdentificativoSdI", "NomeFile" -> {
+                    campo = localName;
+                    testo.setLength(0);
+                }
+                case "File" -> {
+                    inFile = true;
+                    fileTrovato = true;
+                }
+                default -> {
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] caratteri, int inizio, int quanti) throws SAXException {
+            if (inFile) {
+                if (contentId == null) {
+                    try {
+                        decoder.scrivi(caratteri, inizio, quanti);
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                }
+            } else if (campo != null) {
+                testo.append(caratteri, inizio, quanti);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (inFile) {
+                if ("File".equals(localName)) {
+                    inFile = false;
+                    if (contentId == null) {
+                        try {
+                            decoder.chiudi();
+                        } catch (IOException e) {
+                            throw new SAXException(e);
+                        }
+                    }
+                }
+                return;
+            }
+            if (localName.equals(campo)) {
+                if ("IdentificativoSdI".equals(campo)) {
+                    identificativoSdi = testo.toString().trim();
+                } else {
+                    nomeFile = testo.toString().trim();
+                }
+                campo = null;
+            }
+        }
+    }
+}
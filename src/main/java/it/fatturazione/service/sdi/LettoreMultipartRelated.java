@@ -0,0 +1,174 @@
+package it.fatturazione.service.sdi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Lettura in streaming di un corpo multipart/related (MTOM/XOP): ogni parte viene esposta come
+// InputStream che termina al delimitatore successivo, senza bufferizzare gli allegati in memoria
+public class LettoreMultipartRelated {
+
+    private final BufferedInputStream in;
+    private final byte[] delimitatore;
+    private CorpoParte parteCorrente;
+    private boolean terminato;
+
+    public LettoreMultipartRelated(InputStream in, String boundary) {
+        // Il CRLF iniziale permette di riconoscere il primo delimitatore come tutti gli altri
+        this.in = new BufferedInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(new byte[]{'\r', '\n'}), in));
+        this.delimitatore = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        // Il preambolo viene trattato come una parte da scartare
+        this.parteCorrente = new CorpoParte();
+    }
+
+    // Parte successiva, o null dopo il delimitatore di chiusura. Il contenuto non letto della
+    // parte precedente viene scartato.
+    public Parte prossima() throws IOException {
+        if (parteCorrente != null) {
+            parteCorrente.transferTo(OutputStream.nullOutputStream());
+            parteCorrente = null;
+        }
+        if (terminato) {
+            return null;
+        }
+        Map<String, String> intestazioni = leggiIntestazioni();
+        parteCorrente = new CorpoParte();
+        return new Parte(intestazioni, parteCorrente);
+    }
+
+    // Valore del parametro boundary (o start) di un Content-Type multipart
+    public static String parametro(String contentType, String nome) {
+        for (String parte : contentType.split(";")) {
+            String[] chiaveValore = parte.trim().split("=", 2);
+            if (chiaveValore.length == 2 && chiaveValore[0].trim().equalsIgnoreCase(nome)) {
+                String valore = chiaveValore[1].trim();
+                if (valore.length() >= 2 && valore.startsWith("\"") && valore.endsWith("\"")) {
+                    valore = valore.substring(1, valore.length() - 1);
+                }
+                return valore;
+            }
+        }
+        return null;
+    }
+
+    // Content-ID senza parentesi angolari, per il confronto con gli href "cid:" di xop:Include
+    public static String normalizzaContentId(String contentId) {
+        if (contentId == null) {
+            return null;
+        }
+        String id = contentId.trim();
+        if (id.startsWith("cid:")) {
+            id = id.substring(4);
+        }
+        if (id.startsWith("<") && id.endsWith(">")) {
+            id = id.substring(1, id.length() - 1);
+        }
+        return URLDecoder.decode(id, StandardCharsets.UTF_8);
+    }
+
+    private Map<String, String> leggiIntestazioni() throws IOException {
+        Map<String, String> intestazioni = new HashMap<>();
+        String riga;
+        while (!(riga = leggiRiga()).isEmpty()) {
+            int separatore = riga.indexOf(':');
+            if (separatore > 0) {
+                intestazioni.put(riga.substring(0, separatore).trim().toLowerCase(),
+                        riga.substring(separatore + 1).trim());
+            }
+        }
+        return intestazioni;
+    }
+
+    private String leggiRiga() throws IOException {
+        ByteArrayOutputStream riga = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Messaggio multipart troncato");
+            }
+            if (b != '\r') {
+                riga.write(b);
+            }
+        }
+        return riga.toString(StandardCharsets.UTF_8);
+    }
+
+    public record Parte(Map<String, String> intestazioni, InputStream contenuto) {
+
+        public String contentId() {
+            return normalizzaContentId(intestazioni.get("content-id"));
+        }
+
+        public String contentType() {
+            return intestazioni.get("content-type");
+        }
+    }
+
+    private class CorpoParte extends InputStream {
+
+        private boolean fine;
+
+        @Override
+        public int read() throws IOException {
+            if (fine) {
+                return -1;
+            }
+            in.mark(delimitatore.length);
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Messaggio multipart troncato");
+            }
+            if (b == delimitatore[0]) {
+                int i = 1;
+                while (i < delimitatore.length && in.read() == delimitatore[i]) {
+                    i++;
+                }
+                if (i == delimitatore.length) {
+                    fine = true;
+                    chiudiDelimitatore();
+                    return -1;
+                }
+                in.reset();
+                in.read();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int lunghezza) throws IOException {
+            if (lunghezza == 0) {
+                return 0;
+            }
+            int letti = 0;
+            while (letti < lunghezza) {
+                int b = read();
+                if (b == -1) {
+                    break;
+                }
+                buffer[offset + letti++] = (byte) b;
+            }
+            return letti == 0 ? -1 : letti;
+        }
+
+        // Dopo il delimitatore: "--" chiude il messaggio, altrimenti il resto della riga va scartato
+        private void chiudiDelimitatore() throws IOException {
+            int primo = in.read();
+            int secondo = in.read();
+            if (primo == '-' && secondo == '-') {
+                terminato = true;
+            } else if (primo != '\r' || secondo != '\n') {
+                leggiRiga();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.entity.NotificaSdi;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Lettura in un solo passaggio dei file di notifica SDI (MessaggiTypes: RicevutaConsegna, NotificaScarto,
+// NotificaMancataConsegna, NotificaEsito, AttestazioneTrasmissioneFattura, NotificaDecorrenzaTermini).
+// Gli elementi vengono riconosciuti dal nome locale e dal padre: Descrizione compare sia negli errori
+// di scarto sia nell'esito del committente sia nel destinatario della ricevuta.
+public final class LettoreNotificaSdi {
+
+    private static final XMLInputFactory FACTORY = creaFactory();
+
+    public record Errore(String codice, String descrizione, String suggerimento) {
+    }
+
+    public record ContenutoNotifica(String identificativoSdi, String nomeFile, String messageId,
+                                    LocalDateTime dataOraRicezione, LocalDateTime dataOraConsegna,
+                                    String esito, String descrizione, List<Errore> errori, String note) {
+
+        public static ContenutoNotifica vuoto() {
+            return new ContenutoNotifica(null, null, null, null, null, null, null, List.of(), null);
+        }
+
+        // Messaggio leggibile della notifica: esito del committente, errori di scarto o note
+        public String messaggio(NotificaSdi.TipoNotifica tipo) {
+            String testo = note != null ? note : descrizione;
+            return switch (tipo) {
+                case NOTIFICA_ESITO -> "EC01".equals(esito)
+                        ? "Fattura accettata dal committente (EC01)"
+                        : "Fattura rifiutata dal committente (" + esito + ")" + (testo != null ? ": " + testo : "");
+                case NOTIFICA_SCARTO -> "File scartato da SDI: " + errori.stream()
+                        .map(e -> e.codice() != null ? e.codice() + " - " + e.descrizione() : e.descrizione())
+                        .collect(Collectors.joining("; "));
+                default -> testo;
+            };
+        }
+    }
+
+    private LettoreNotificaSdi() {
+    }
+
+    public static ContenutoNotifica leggi(InputStream in) throws XMLStreamException {
+        String identificativoSdi = null;
+        String nomeFile = null;
+        String messageId = null;
+        LocalDateTime dataOraRicezione = null;
+        LocalDateTime dataOraConsegna = null;
+        String esito = null;
+        String descrizione = null;
+        String note = null;
+        List<Errore> errori = new ArrayList<>();
+        String codice = null;
+        String descrizioneErrore = null;
+        String suggerimento = null;
+
+        // Elementi aperti e non ancora chiusi; i campi letti con getElementText non vengono aggiunti
+        Deque<String> percorso = new ArrayDeque<>();
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                int evento = reader.next();
+                if (evento == XMLStreamConstants.END_ELEMENT) {
+                    if ("Errore".equals(percorso.pop())) {
+                        errori.add(new Errore(codice, descrizioneErrore, suggerimento));
+                        codice = null;
+                        descrizioneErrore = null;
+                        suggerimento = null;
+                    }
+                    continue;
+                }
+                if (evento != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String nome = reader.getLocalName();
+                if (percorso.isEmpty()) {
+                    percorso.push(nome);
+                    continue;
+                }
+                // La radice cambia nome con il tipo di notifica: per i suoi figli diretti il padre è ""
+                String padre = percorso.size() == 1 ? "" : percorso.peek();
+                switch (padre) {
+                    case "" -> {
+                        switch (nome) {
+                            case "IdentificativoSdI" -> identificativoSdi = testo(reader);
+                            case "NomeFile" -> nomeFile = testo(reader);
+                            case "MessageId" -> messageId = testo(reader);
+                            case "DataOraRicezione" -> dataOraRicezione = dataOra(testo(reader));
+                            case "DataOraConsegna" -> dataOraConsegna = dataOra(testo(reader));
+                            case "Esito" -> esito = testo(reader);
+                            case "Descrizione" -> descrizione = testo(reader);
+                            case "Note" -> note = testo(reader);
+                            default -> percorso.push(nome);
+                        }
+                    }
+                    case "EsitoCommittente" -> {
+                        switch (nome) {
+                            case "Esito" -> esito = testo(reader);
+                            case "Descrizione" -> descrizione = testo(reader);
+                            default -> percorso.push(nome);
+                        }
+                    }
+                    case "Errore" -> {
+                        switch (nome) {
+                            case "Codice" -> codice = testo(reader);
+                            case "Descrizione" -> descrizioneErrore = testo(reader);
+                            case "Suggerimento" -> suggerimento = testo(reader);
+                            default -> percorso.push(nome);
+                        }
+                    }
+                    default -> percorso.push(nome);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ContenutoNotifica(identificativoSdi, nomeFile, messageId, dataOraRicezione, dataOraConsegna,
+                esito, descrizione, List.copyOf(errori), note);
+    }
+
+    private static String testo(XMLStreamReader reader) throws XMLStreamException {
+        String testo = reader.getElementText().trim();
+        return testo.isEmpty() ? null : testo;
+    }
+
+    // xs:dateTime di SDI, di norma con offset (2026-01-15T10:30:00.000+01:00), nel fuso del server
+    static LocalDateTime dataOra(String testo) {
+        if (testo == null) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(testo).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(testo);
+            } catch (DateTimeParseException ex) {
+                return null;
+            }
+        }
+    }
+
+    private static XMLInputFactory creaFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
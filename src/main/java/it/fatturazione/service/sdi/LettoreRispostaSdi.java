@@ -0,0 +1,116 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Lettura in un solo passaggio delle risposte SOAP di SDI con un parser StAX: fault, IdentificativoSdI
+// e contenuto dell'elemento File, decodificato da base64 a blocchi senza costruire il DOM del messaggio
+public final class LettoreRispostaSdi {
+
+    private static final String NS_SOAP_11 = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String NS_SOAP_12 = "http://www.w3.org/2003/05/soap-envelope";
+    private static final String NS_XOP = "http://www.w3.org/2004/08/xop/include";
+
+    private static final XMLInputFactory FACTORY = creaFactory();
+
+    private LettoreRispostaSdi() {
+    }
+
+    // IdentificativoSdI della risposta a fileSdIBase, null se assente
+    public static String leggiIdentificativoSdi(InputStream envelope) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(envelope);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    verificaFault(reader);
+                    if ("IdentificativoSdI".equals(reader.getLocalName())) {
+                        return reader.getElementText().trim();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Decodifica il contenuto base64 dell'elemento File in out. Se l'elemento contiene un xop:Include
+    // non scrive nulla e restituisce il Content-ID dell'allegato da copiare.
+    public static String leggiFile(InputStream envelope, OutputStream out) throws XMLStreamException, IOException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(envelope);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    verificaFault(reader);
+                    if ("File".equals(reader.getLocalName())) {
+                        return copiaFile(reader, out);
+                    }
+                }
+            }
+            throw new SdiException("File non trovato nella risposta della notifica");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String copiaFile(XMLStreamReader reader, OutputStream out) throws XMLStreamException, IOException {
+        DecoderBase64 decoder = new DecoderBase64(out);
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE ->
+                        decoder.scrivi(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                case XMLStreamConstants.START_ELEMENT -> {
+                    if ("Include".equals(reader.getLocalName()) && NS_XOP.equals(reader.getNamespaceURI())) {
+                        return LettoreMultipartRelated.normalizzaContentId(reader.getAttributeValue(null, "href"));
+                    }
+                    throw new SdiException("Elemento inatteso nel File della notifica: " + reader.getLocalName());
+                }
+                case XMLStreamConstants.END_ELEMENT -> {
+                    decoder.chiudi();
+                    return null;
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    // SOAP 1.1 (faultstring) e 1.2 (Reason/Text)
+    private static void verificaFault(XMLStreamReader reader) throws XMLStreamException {
+        if (!"Fault".equals(reader.getLocalName())
+                || !(NS_SOAP_11.equals(reader.getNamespaceURI()) || NS_SOAP_12.equals(reader.getNamespaceURI()))) {
+            return;
+        }
+        String faultString = null;
+        int profondita = 1;
+        while (profondita > 0 && reader.hasNext()) {
+            int evento = reader.next();
+            if (evento == XMLStreamConstants.START_ELEMENT) {
+                String nome = reader.getLocalName();
+                if (faultString == null && ("faultstring".equals(nome) || "Text".equals(nome))) {
+                    faultString = reader.getElementText().trim();
+                } else {
+                    profondita++;
+                }
+            } else if (evento == XMLStreamConstants.END_ELEMENT) {
+                profondita--;
+            }
+        }
+        throw new SdiException("Errore SDI: " + faultString);
+    }
+
+    private static XMLInputFactory creaFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
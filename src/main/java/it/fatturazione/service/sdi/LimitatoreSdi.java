@@ -0,0 +1,238 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiNonDisponibileException;
+import it.fatturazione.service.metriche.MetricheProvider;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.core5.http.ConnectionRequestTimeoutException;
+import org.apache.hc.core5.http.RequestNotExecutedException;
+import org.apache.hc.core5.util.DeadlineTimeoutException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// Limite adattivo di chiamate concorrenti a SDI (AIMD) e circuit breaker. Il limite cresce di uno per
+// "giro" di risposte entro la latenza obiettivo e viene ridotto di un fattore quando le risposte
+// rallentano o falliscono per guasti di rete/HTTP. Dopo troppi guasti consecutivi il circuito si apre:
+// le chiamate falliscono subito con SdiNonDisponibileException finché una chiamata di prova non riesce.
+@Component
+@Slf4j
+public class LimitatoreSdi implements MetricheProvider {
+
+    public enum StatoCircuito { CHIUSO, APERTO, SEMIAPERTO }
+
+    @Value("${sdi.limitatore.limite-iniziale:10}")
+    private int limiteIniziale;
+
+    @Value("${sdi.limitatore.limite-minimo:1}")
+    private int limiteMinimo;
+
+    @Value("${sdi.limitatore.limite-massimo:50}")
+    private int limiteMassimo;
+
+    // Risposte più lente di così riducono il limite
+    @Value("${sdi.limitatore.latenza-obiettivo-ms:5000}")
+    private long latenzaObiettivo;
+
+    @Value("${sdi.limitatore.fattore-riduzione:0.7}")
+    private double fattoreRiduzione;
+
+    @Value("${sdi.circuito.errori-consecutivi:5}")
+    private int erroriPerApertura;
+
+    // Durata dell'apertura prima della chiamata di prova
+    @Value("${sdi.circuito.apertura-ms:30000}")
+    private long apertura;
+
+    private double limite;
+    private int inVolo;
+    private StatoCircuito stato = StatoCircuito.CHIUSO;
+    private int erroriConsecutivi;
+    private long apertoDa;
+    private boolean provaInCorso;
+    private long ultimaRiduzione;
+    private long ultimaLatenzaMs;
+    private long completate;
+    private long guasti;
+    private long rifiutateLimite;
+    private long rifiutateCircuito;
+
+    private record Permesso(long inizio, boolean prova) {
+    }
+
+    @PostConstruct
+    public void init() {
+        limite = Math.max(limiteMinimo, Math.min(limiteMassimo, limiteIniziale));
+        // Nessuna riduzione recente: la prima risposta lenta riduce subito il limite
+        ultimaRiduzione = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+
+    // Esegue la chiamata se il circuito e il limite lo permettono, altrimenti restituisce subito un future
+    // fallito con SdiNonDisponibileException. Latenza ed esito aggiornano limite e circuito.
+    public <T> CompletableFuture<T> esegui(Supplier<CompletableFuture<T>> chiamata) {
+        Permesso permesso;
+        try {
+            permesso = acquisisci();
+        } catch (SdiNonDisponibileException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> future;
+        try {
+            future = chiamata.get();
+        } catch (RuntimeException e) {
+            rilascia(permesso, e);
+            return CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((risultato, errore) -> rilascia(permesso, errore));
+    }
+
+    public synchronized StatoCircuito stato() {
+        return stato;
+    }
+
+    public synchronized int limite() {
+        return (int) limite;
+    }
+
+    private synchronized Permesso acquisisci() {
+        long ora = System.nanoTime();
+        if (stato == StatoCircuito.APERTO) {
+            long trascorsiMs = TimeUnit.NANOSECONDS.toMillis(ora - apertoDa);
+            if (trascorsiMs < apertura) {
+                rifiutateCircuito++;
+                throw new SdiNonDisponibileException("SDI non disponibile: chiamate sospese per altri "
+                        + (apertura - trascorsiMs) + " ms");
+            }
+            stato = StatoCircuito.SEMIAPERTO;
+            log.info("Circuito SDI semiaperto: chiamata di prova");
+        }
+        if (stato == StatoCircuito.SEMIAPERTO) {
+            // Una sola chiamata di prova alla volta
+            if (provaInCorso) {
+                rifiutateCircuito++;
+                throw new SdiNonDisponibileException("SDI non disponibile: chiamata di prova in corso");
+            }
+            provaInCorso = true;
+            inVolo++;
+            return new Permesso(ora, true);
+        }
+        if (inVolo >= (int) limite) {
+            rifiutateLimite++;
+            throw new SdiNonDisponibileException("Limite di chiamate concorrenti a SDI raggiunto: " + (int) limite);
+        }
+        inVolo++;
+        return new Permesso(ora, false);
+    }
+
+    private synchronized void rilascia(Permesso permesso, Throwable errore) {
+        long ora = System.nanoTime();
+        long latenza = ora - permesso.inizio();
+        inVolo--;
+        completate++;
+        ultimaLatenzaMs = TimeUnit.NANOSECONDS.toMillis(latenza);
+        if (permesso.prova()) {
+            provaInCorso = false;
+        }
+
+        if (errore != null && guasto(errore)) {
+            guasti++;
+            erroriConsecutivi++;
+            riduci(ora, latenza);
+            if (permesso.prova() || (stato == StatoCircuito.CHIUSO && erroriConsecutivi >= erroriPerApertura)) {
+                stato = StatoCircuito.APERTO;
+                apertoDa = ora;
+                log.warn("Circuito SDI aperto dopo {} errori consecutivi: chiamate sospese per {} ms",
+                        erroriConsecutivi, apertura);
+            }
+            return;
+        }
+
+        // Anche un fault SOAP è una risposta di SDI: il servizio è raggiungibile
+        erroriConsecutivi = 0;
+        if (permesso.prova()) {
+            stato = StatoCircuito.CHIUSO;
+            log.info("Circuito SDI chiuso: chiamata di prova riuscita");
+        }
+        if (ultimaLatenzaMs > latenzaObiettivo) {
+            riduci(ora, latenza);
+        } else if (inVolo + 1 >= limite / 2) {
+            // Crescita additiva solo se il limite attuale è davvero usato
+            limite = Math.min(limiteMassimo, limite + 1 / limite);
+        }
+    }
+
+    // Al massimo una riduzione per latenza osservata: le risposte lente di una stessa raffica
+    // non fanno crollare il limite
+    private void riduci(long ora, long latenza) {
+        if (ora - ultimaRiduzione < latenza) {
+            return;
+        }
+        double precedente = limite;
+        limite = Math.max(limiteMinimo, limite * fattoreRiduzione);
+        ultimaRiduzione = ora;
+        log.debug("Limite chiamate SDI ridotto da {} a {} (latenza {} ms)",
+                (int) precedente, (int) limite, TimeUnit.NANOSECONDS.toMillis(latenza));
+    }
+
+    // Guasti di rete, timeout ed errori HTTP; gli errori applicativi di SDI non contano
+    public static boolean guasto(Throwable errore) {
+        for (Throwable causa = errore; causa != null; causa = causa.getCause()) {
+            if (causa instanceof IOException || causa instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Guasto avvenuto prima che SDI potesse ricevere il file: connessione o handshake TLS falliti, nessuna
+    // connessione libera nel pool, oppure una risposta HTTP che rifiuta la richiesta. Ripetere l'invio è
+    // sicuro. Un timeout o una connessione chiusa in attesa della risposta, o un 502/504 del gateway,
+    // lasciano invece l'esito incerto: SDI può aver già accettato il file
+    public static boolean richiestaNonInviata(Throwable errore) {
+        for (Throwable causa = errore; causa != null; causa = causa.getCause()) {
+            if (causa instanceof ConnectException || causa instanceof ConnectTimeoutException
+                    || causa instanceof UnknownHostException || causa instanceof SSLHandshakeException
+                    || causa instanceof ConnectionRequestTimeoutException || causa instanceof DeadlineTimeoutException
+                    || causa instanceof RequestNotExecutedException) {
+                return true;
+            }
+            if (causa instanceof HttpResponseException http) {
+                return http.getStatusCode() != 502 && http.getStatusCode() != 504;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.limitatore";
+    }
+
+    @Override
+    public synchronized Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("limite", (int) limite);
+        metriche.put("inVolo", inVolo);
+        metriche.put("rifiutate", rifiutateLimite + rifiutateCircuito);
+        metriche.put("rifiutateLimite", rifiutateLimite);
+        metriche.put("rifiutateCircuito", rifiutateCircuito);
+        metriche.put("statoCircuito", stato.name());
+        metriche.put("erroriConsecutivi", erroriConsecutivi);
+        metriche.put("completate", completate);
+        metriche.put("guasti", guasti);
+        metriche.put("ultimaLatenzaMs", ultimaLatenzaMs);
+        return metriche;
+    }
+}
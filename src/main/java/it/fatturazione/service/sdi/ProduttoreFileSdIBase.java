@@ -0,0 +1,164 @@
+package it.fatturazione.service.sdi;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+
+// Corpo fileSdIBase per il client asincrono: il reactor chiede dati solo quando la connessione può
+// riceverli e il file viene letto (e codificato in base64) un blocco alla volta, senza thread dedicati
+// né copie complete in memoria. La lettura da disco locale di un blocco è abbastanza breve da poter
+// avvenire sul thread di I/O.
+@Slf4j
+class ProduttoreFileSdIBase implements AsyncEntityProducer {
+
+    // Multiplo di 3: ogni blocco diventa base64 senza padding intermedio
+    private static final int BLOCCO = 3 * 16 * 1024;
+
+    private enum Fase { PRIMA, FILE, DOPO, FINE }
+
+    private final byte[] prima;
+    private final Path file;
+    private final byte[] dopo;
+    private final boolean base64;
+    private final String contentType;
+    private final long lunghezza;
+
+    private final ByteBuffer lettura = ByteBuffer.allocate(BLOCCO);
+    private byte[] codificati;
+    private FileChannel channel;
+    private ByteBuffer inUscita;
+    private Fase fase = Fase.PRIMA;
+
+    ProduttoreFileSdIBase(byte[] prima, Path file, byte[] dopo, boolean base64, String contentType, long lunghezza) {
+        this.prima = prima;
+        this.file = file;
+        this.dopo = dopo;
+        this.base64 = base64;
+        this.contentType = contentType;
+        this.lunghezza = lunghezza;
+    }
+
+    @Override
+    public void produce(DataStreamChannel canale) throws IOException {
+        while (true) {
+            if (inUscita == null || !inUscita.hasRemaining()) {
+                inUscita = prossimoBlocco();
+                if (inUscita == null) {
+                    canale.endStream();
+                    return;
+                }
+            }
+            canale.write(inUscita);
+            if (inUscita.hasRemaining()) {
+                // Buffer della connessione pieno: il reactor richiamerà produce quando potrà scrivere
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer prossimoBlocco() throws IOException {
+        switch (fase) {
+            case PRIMA -> {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                fase = Fase.FILE;
+                return ByteBuffer.wrap(prima);
+            }
+            case FILE -> {
+                // Il blocco viene riempito del tutto per mantenere la lunghezza multipla di 3
+                lettura.clear();
+                int letti;
+                do {
+                    letti = channel.read(lettura);
+                } while (letti != -1 && lettura.hasRemaining());
+                if (lettura.position() == 0) {
+                    releaseResources();
+                    fase = Fase.DOPO;
+                    return prossimoBlocco();
+                }
+                lettura.flip();
+                return base64 ? codifica(lettura) : lettura;
+            }
+            case DOPO -> {
+                fase = Fase.FINE;
+                return ByteBuffer.wrap(dopo);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private ByteBuffer codifica(ByteBuffer blocco) {
+        if (codificati == null) {
+            codificati = new byte[BLOCCO / 3 * 4];
+        }
+        // Solo l'ultimo blocco, più corto, richiede una copia
+        byte[] sorgente = blocco.remaining() == BLOCCO
+                ? blocco.array()
+                : Arrays.copyOf(blocco.array(), blocco.remaining());
+        int scritti = Base64.getEncoder().encode(sorgente, codificati);
+        return ByteBuffer.wrap(codificati, 0, scritti);
+    }
+
+    @Override
+    public int available() {
+        return fase == Fase.FINE && (inUscita == null || !inUscita.hasRemaining()) ? 0 : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        log.debug("Invio del file {} a SDI interrotto: {}", file, cause.getMessage());
+        releaseResources();
+    }
+
+    @Override
+    public void releaseResources() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Impossibile chiudere il file {}", file, e);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        return lunghezza;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return lunghezza < 0;
+    }
+
+    @Override
+    public Set<String> getTrailerNames() {
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+package it.fatturazione.service.sdi;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+// Risposta ricevuta dal client asincrono. Il corpo resta in memoria fino alla soglia e oltre viene
+// scritto in un file temporaneo, così il parsing avviene dopo, fuori dai thread di I/O e senza
+// tenere in heap le notifiche grandi. Va chiusa per eliminare l'eventuale file temporaneo.
+@Slf4j
+public class RispostaHttp implements AutoCloseable {
+
+    private static final int SOGLIA_MEMORIA = 256 * 1024;
+
+    private final int codice;
+    private final String motivo;
+    private final String contentType;
+    private final DeferredFileOutputStream corpo;
+
+    RispostaHttp(int codice, String motivo, String contentType) {
+        this.codice = codice;
+        this.motivo = motivo;
+        this.contentType = contentType;
+        this.corpo = DeferredFileOutputStream.builder()
+                .setThreshold(SOGLIA_MEMORIA)
+                .setPrefix("sdi-risposta")
+                .setSuffix(".tmp")
+                .get();
+    }
+
+    void scrivi(byte[] dati, int offset, int lunghezza) throws IOException {
+        corpo.write(dati, offset, lunghezza);
+    }
+
+    void completa() throws IOException {
+        corpo.close();
+    }
+
+    public int getCodice() {
+        return codice;
+    }
+
+    public String getMotivo() {
+        return motivo;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public InputStream apriCorpo() throws IOException {
+        return corpo.toInputStream();
+    }
+
+    @Override
+    public void close() {
+        File file = corpo.getFile();
+        if (file != null) {
+            try {
+                corpo.close();
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.warn("Impossibile eliminare il file temporaneo {}", file, e);
+            }
+        }
+    }
+}
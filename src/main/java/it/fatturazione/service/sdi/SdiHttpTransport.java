@@ -0,0 +1,316 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.service.metriche.MetricheProvider;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.TrustAllStrategy;
+import org.apache.hc.core5.concurrent.DefaultThreadFactory;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.ssl.SSLContextBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ResourceUtils;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client HTTP unico verso SDI: connessioni in pool con keep-alive, SSLContext condiviso
+// (la cache delle sessioni TLS permette di riprendere le sessioni) e timeout da configurazione
+@Component
+@Slf4j
+public class SdiHttpTransport implements MetricheProvider {
+
+    @Value("${sdi.timeout}")
+    private int timeout;
+
+    @Value("${sdi.http.max-connessioni:20}")
+    private int maxConnessioni;
+
+    @Value("${sdi.http.max-connessioni-per-route:10}")
+    private int maxConnessioniPerRoute;
+
+    // Attesa massima di una connessione libera dal pool
+    @Value("${sdi.http.attesa-connessione-ms:5000}")
+    private long attesaConnessione;
+
+    @Value("${sdi.http.connessioni-inattive-ms:30000}")
+    private long connessioniInattive;
+
+    // Solo per l'ambiente di test SDI: nessuna verifica di certificato e hostname del server
+    @Value("${sdi.ssl.trust-all:false}")
+    private boolean trustAll;
+
+    @Value("${sdi.ssl.truststore.path:}")
+    private String truststorePath;
+
+    @Value("${sdi.ssl.truststore.password:}")
+    private String truststorePassword;
+
+    // Certificato client per l'autenticazione TLS verso SDI
+    @Value("${sdi.ssl.keystore.path:}")
+    private String keystorePath;
+
+    @Value("${sdi.ssl.keystore.password:}")
+    private String keystorePassword;
+
+    // Client asincrono: pochi thread di I/O servono tutte le richieste in volo, l'elaborazione delle
+    // risposte (parsing, scrittura su disco) avviene su un pool separato altrettanto piccolo
+    @Value("${sdi.http.async.thread-io:2}")
+    private int threadIo;
+
+    @Value("${sdi.http.async.thread-elaborazione:2}")
+    private int threadElaborazione;
+
+    // Le richieste asincrone in coda per una connessione non occupano thread: l'attesa può essere più lunga
+    @Value("${sdi.http.async.attesa-connessione-ms:60000}")
+    private long attesaConnessioneAsync;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private PoolingAsyncClientConnectionManager asyncConnectionManager;
+    private CloseableHttpAsyncClient asyncClient;
+    private ExecutorService elaborazione;
+
+    private final AtomicLong richieste = new AtomicLong();
+    private final AtomicLong errori = new AtomicLong();
+    private final AtomicLong handshake = new AtomicLong();
+    private final AtomicInteger inVoloAsync = new AtomicInteger();
+
+    @PostConstruct
+    public void init() throws Exception {
+        SSLContext sslContext = creaSslContext();
+        HostnameVerifier hostnameVerifier = trustAll ? NoopHostnameVerifier.INSTANCE : null;
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(timeout))
+                .setSocketTimeout(Timeout.ofMilliseconds(timeout))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(attesaConnessione))
+                .setResponseTimeout(Timeout.ofMilliseconds(timeout))
+                .build();
+
+        connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setSSLSocketFactory(creaSocketFactory(sslContext, hostnameVerifier))
+                .setMaxConnTotal(maxConnessioni)
+                .setMaxConnPerRoute(maxConnessioniPerRoute)
+                .setDefaultConnectionConfig(connectionConfig)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(connessioniInattive))
+                .disableAutomaticRetries()
+                .build();
+
+        asyncConnectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setTlsStrategy(creaTlsStrategy(sslContext, hostnameVerifier))
+                .setMaxConnTotal(maxConnessioni)
+                .setMaxConnPerRoute(maxConnessioniPerRoute)
+                .setDefaultConnectionConfig(connectionConfig)
+                .build();
+
+        asyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.copy(requestConfig)
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(attesaConnessioneAsync))
+                        .build())
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(threadIo)
+                        .setSoTimeout(Timeout.ofMilliseconds(timeout))
+                        .build())
+                .setThreadFactory(new DefaultThreadFactory("sdi-io", true))
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(connessioniInattive))
+                .disableAutomaticRetries()
+                .build();
+        asyncClient.start();
+
+        elaborazione = Executors.newFixedThreadPool(threadElaborazione, new DefaultThreadFactory("sdi-elaborazione", true));
+
+        log.info("Client HTTP SDI inizializzato: max {} connessioni ({} per route), timeout {} ms, "
+                        + "client asincrono con {} thread di I/O e {} di elaborazione{}",
+                maxConnessioni, maxConnessioniPerRoute, timeout, threadIo, threadElaborazione,
+                trustAll ? ", validazione SSL disattivata" : "");
+        if (trustAll) {
+            log.warn("sdi.ssl.trust-all attivo: il certificato del server SDI non viene verificato");
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        httpClient.close();
+        asyncClient.close(CloseMode.GRACEFUL);
+        elaborazione.shutdown();
+    }
+
+    // POST di un body SOAP; la risposta viene consumata dall'handler prima di restituire la connessione al pool
+    public <T> T post(String url, HttpEntity richiesta, HttpClientResponseHandler<T> handler) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setHeader("SOAPAction", "");
+        post.setEntity(richiesta);
+        richieste.incrementAndGet();
+        try {
+            return httpClient.execute(post, handler);
+        } catch (IOException | RuntimeException e) {
+            errori.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // GET leggera per le verifiche di raggiungibilità: restituisce il codice HTTP e scarta il corpo
+    public int get(String url) throws IOException {
+        richieste.incrementAndGet();
+        try {
+            return httpClient.execute(new HttpGet(url), response -> {
+                EntityUtils.consume(response.getEntity());
+                return response.getCode();
+            });
+        } catch (IOException | RuntimeException e) {
+            errori.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // POST non bloccante: il corpo viene prodotto e la risposta ricevuta dai thread di I/O, il future
+    // viene completato sul pool di elaborazione, dove girano anche le fasi successive della catena
+    public CompletableFuture<RispostaHttp> postAsync(String url, AsyncEntityProducer richiesta) {
+        AsyncRequestProducer post = AsyncRequestBuilder.post(url)
+                .setHeader("SOAPAction", "")
+                .setEntity(richiesta)
+                .build();
+        richieste.incrementAndGet();
+        inVoloAsync.incrementAndGet();
+
+        CompletableFuture<RispostaHttp> future = new CompletableFuture<>();
+        asyncClient.execute(post, new ConsumerRispostaHttp(), new FutureCallback<>() {
+            @Override
+            public void completed(RispostaHttp risposta) {
+                inVoloAsync.decrementAndGet();
+                try {
+                    elaborazione.execute(() -> future.complete(risposta));
+                } catch (RejectedExecutionException e) {
+                    risposta.close();
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                inVoloAsync.decrementAndGet();
+                errori.incrementAndGet();
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                inVoloAsync.decrementAndGet();
+                errori.incrementAndGet();
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    private SSLContext creaSslContext() throws Exception {
+        SSLContextBuilder builder = SSLContextBuilder.create();
+        if (trustAll) {
+            builder.loadTrustMaterial(TrustAllStrategy.INSTANCE);
+        } else if (StringUtils.isNotBlank(truststorePath)) {
+            builder.loadTrustMaterial(ResourceUtils.getURL(truststorePath), truststorePassword.toCharArray());
+        }
+        if (StringUtils.isNotBlank(keystorePath)) {
+            builder.loadKeyMaterial(ResourceUtils.getURL(keystorePath),
+                    keystorePassword.toCharArray(), keystorePassword.toCharArray());
+        }
+        return builder.build();
+    }
+
+    private SSLConnectionSocketFactory creaSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+        return new SSLConnectionSocketFactory(sslContext, hostnameVerifier) {
+            @Override
+            protected void prepareSocket(SSLSocket socket, HttpContext context) throws IOException {
+                socket.addHandshakeCompletedListener(event -> handshake.incrementAndGet());
+            }
+        };
+    }
+
+    // La sessione viene verificata una volta per ogni handshake completato
+    private TlsStrategy creaTlsStrategy(SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+        return new DefaultClientTlsStrategy(sslContext, hostnameVerifier) {
+            @Override
+            protected void verifySession(String hostname, SSLSession sslsession) throws SSLException {
+                handshake.incrementAndGet();
+                super.verifySession(hostname, sslsession);
+            }
+        };
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.http";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        PoolStats stats = connectionManager.getTotalStats();
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("richieste", richieste.get());
+        metriche.put("errori", errori.get());
+        metriche.put("handshakeTls", handshake.get());
+        metriche.put("connessioniInUso", stats.getLeased());
+        metriche.put("connessioniDisponibili", stats.getAvailable());
+        metriche.put("richiesteInAttesa", stats.getPending());
+        metriche.put("connessioniMassime", stats.getMax());
+        PoolStats statsAsync = asyncConnectionManager.getTotalStats();
+        metriche.put("async.richiesteInVolo", inVoloAsync.get());
+        metriche.put("async.connessioniInUso", statsAsync.getLeased());
+        metriche.put("async.connessioniDisponibili", statsAsync.getAvailable());
+        metriche.put("async.richiesteInAttesa", statsAsync.getPending());
+        return metriche;
+    }
+}
@@ -0,0 +1,382 @@
+package it.fatturazione.service.sdi.simulatore;
+
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.FatturaNotFoundException;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.service.FatturaService;
+import it.fatturazione.service.metriche.MetricheProvider;
+import it.fatturazione.service.sdi.LettoreMultipartRelated;
+import it.fatturazione.service.sdi.SdiHttpTransport;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SDI simulato in processo per test di carico offline: risponde a ricevi_file e ricevi_notifica
+// con latenza ed errori configurabili e, dopo ogni invio accettato, genera le notifiche previste
+// dallo script (es. RC,NE:EC01) consegnandole al servizio RicezioneNotifiche come farebbe SDI
+// oppure, senza notifiche-url, facendole scaricare all'applicazione
+@Service
+@ConditionalOnProperty(name = "sdi.simulatore.enabled", havingValue = "true")
+@Slf4j
+public class SimulatoreSdi implements MetricheProvider {
+
+    public static final String CONTENT_TYPE = "text/xml; charset=utf-8";
+
+    private static final String NS_SOAP = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String NS_TYPES = "http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types";
+    private static final String NS_MESSAGGI = "http://www.fatturapa.gov.it/sdi/messaggi/v1.0";
+    private static final int TENTATIVI_NOTIFICA = 5;
+
+    private static final XMLInputFactory FACTORY = creaFactory();
+
+    private final FatturaService fatturaService;
+    private final SdiHttpTransport sdiHttpTransport;
+
+    @Value("${sdi.simulatore.latenza-ms:200}")
+    private long latenza;
+
+    // Variazione casuale della latenza, in più o in meno
+    @Value("${sdi.simulatore.jitter-ms:100}")
+    private long jitter;
+
+    // Frazione di chiamate che ricevono HTTP 503 (errore ritentabile)
+    @Value("${sdi.simulatore.tasso-errore-http:0}")
+    private double tassoErroreHttp;
+
+    // Frazione di chiamate che ricevono un fault SOAP (errore applicativo di SDI)
+    @Value("${sdi.simulatore.tasso-fault:0}")
+    private double tassoFault;
+
+    // Notifiche generate per ogni file accettato, in ordine: RC, NS, MC, NE[:EC01|EC02], AT, DT
+    @Value("${sdi.simulatore.notifiche:RC,NE:EC01}")
+    private String script;
+
+    @Value("${sdi.simulatore.ritardo-notifiche-ms:2000}")
+    private long ritardoNotifiche;
+
+    // Servizio RicezioneNotifiche dell'applicazione: se vuoto le notifiche vengono scaricate da ricevi_notifica
+    @Value("${sdi.simulatore.notifiche-url:}")
+    private String notificheUrl;
+
+    // Ogni consegna scarica la notifica dal simulatore stesso e ne attende la latenza
+    @Value("${sdi.simulatore.thread-notifiche:8}")
+    private int threadNotifiche;
+
+    private final AtomicLong identificativi = new AtomicLong(System.currentTimeMillis());
+    private final Map<String, Notifica> daScaricare = new ConcurrentHashMap<>();
+    private final AtomicLong fileRicevuti = new AtomicLong();
+    private List<Passo> passi;
+    private ScheduledExecutorService notificatore;
+
+    public record Risposta(int codice, String contentType, byte[] corpo) {
+    }
+
+    private record Passo(String codice, String esito) {
+    }
+
+    private record Notifica(String identificativoSdi, String nomeFile, String nomeFileFattura, Passo passo) {
+    }
+
+    public SimulatoreSdi(FatturaService fatturaService, SdiHttpTransport sdiHttpTransport) {
+        this.fatturaService = fatturaService;
+        this.sdiHttpTransport = sdiHttpTransport;
+    }
+
+    @PostConstruct
+    public void init() {
+        passi = new ArrayList<>();
+        for (String voce : script.split(",")) {
+            if (voce.isBlank()) {
+                continue;
+            }
+            String[] parti = voce.trim().toUpperCase().split(":");
+            tipo(parti[0]);
+            passi.add(new Passo(parti[0], parti.length > 1 ? parti[1] : "EC01"));
+        }
+        AtomicLong thread = new AtomicLong();
+        notificatore = Executors.newScheduledThreadPool(threadNotifiche, r -> {
+            Thread t = new Thread(r, "simulatore-sdi-" + thread.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        log.warn("SDI simulato attivo: latenza {}±{} ms, errori HTTP {}, fault {}, notifiche {}",
+                latenza, jitter, tassoErroreHttp, tassoFault, passi);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        notificatore.shutdownNow();
+    }
+
+    public Risposta riceviFile(String contentType, InputStream corpo) throws IOException, XMLStreamException {
+        Map<String, String> campi = leggiEnvelope(contentType, corpo, Set.of("NomeFile"));
+        Risposta errore = simulaLatenzaEdErrori();
+        if (errore != null) {
+            return errore;
+        }
+        String nomeFile = campi.get("NomeFile");
+        if (nomeFile == null) {
+            return fault("NomeFile mancante");
+        }
+
+        String identificativoSdi = String.valueOf(identificativi.incrementAndGet());
+        fileRicevuti.incrementAndGet();
+        pianificaNotifiche(identificativoSdi, nomeFile);
+
+        return risposta("<ns2:RispostaSdIRiceviFile xmlns:ns2=\"" + NS_TYPES + "\">"
+                + "<IdentificativoSdI>" + identificativoSdi + "</IdentificativoSdI>"
+                + "<DataOraRicezione>" + OffsetDateTime.now() + "</DataOraRicezione>"
+                + "</ns2:RispostaSdIRiceviFile>");
+    }
+
+    public Risposta riceviNotifica(String contentType, InputStream corpo) throws IOException, XMLStreamException {
+        Map<String, String> campi = leggiEnvelope(contentType, corpo, Set.of("IdentificativoSdI", "NomeFile"));
+        Risposta errore = simulaLatenzaEdErrori();
+        if (errore != null) {
+            return errore;
+        }
+        Notifica notifica = daScaricare.get(campi.get("NomeFile"));
+        if (notifica == null || !notifica.identificativoSdi().equals(campi.get("IdentificativoSdI"))) {
+            return fault("Notifica " + campi.get("NomeFile") + " non trovata");
+        }
+
+        String file = Base64.getEncoder().encodeToString(messaggio(notifica).getBytes(StandardCharsets.UTF_8));
+        return risposta("<ns2:rispostaRiceviNotifica xmlns:ns2=\"" + NS_TYPES + "\">"
+                + "<NomeFile>" + notifica.nomeFile() + "</NomeFile>"
+                + "<File>" + file + "</File>"
+                + "</ns2:rispostaRiceviNotifica>");
+    }
+
+    @Override
+    public String nome() {
+        return "sdi.simulatore";
+    }
+
+    @Override
+    public Map<String, Object> metriche() {
+        Map<String, Object> metriche = new LinkedHashMap<>();
+        metriche.put("fileRicevuti", fileRicevuti.get());
+        metriche.put("notificheInSospeso", daScaricare.size());
+        return metriche;
+    }
+
+    private void pianificaNotifiche(String identificativoSdi, String nomeFileFattura) {
+        int punto = nomeFileFattura.indexOf('.');
+        String base = punto > 0 ? nomeFileFattura.substring(0, punto) : nomeFileFattura;
+        for (int i = 0; i < passi.size(); i++) {
+            Passo passo = passi.get(i);
+            String nomeFile = base + "_" + passo.codice() + "_" + String.format("%03d", i + 1) + ".xml";
+            Notifica notifica = new Notifica(identificativoSdi, nomeFile, nomeFileFattura, passo);
+            daScaricare.put(nomeFile, notifica);
+            notificatore.schedule(() -> consegna(notifica, 1), ritardoNotifiche * (i + 1), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // L'IdentificativoSdI viene registrato dopo la risposta: se la notifica arriva prima, si riprova.
+    // Come SDI, anche una consegna rifiutata dal servizio RicezioneNotifiche viene ritentata.
+    private void consegna(Notifica notifica, int tentativo) {
+        try {
+            Passo passo = notifica.passo();
+            if (StringUtils.isNotBlank(notificheUrl)) {
+                invia(notifica);
+            } else {
+                fatturaService.processaNotifica(notifica.identificativoSdi(), notifica.nomeFile(), tipo(passo.codice()),
+                        descrizione(passo));
+            }
+            daScaricare.remove(notifica.nomeFile());
+        } catch (FatturaNotFoundException | SdiException | IOException e) {
+            if (tentativo < TENTATIVI_NOTIFICA) {
+                notificatore.schedule(() -> consegna(notifica, tentativo + 1), ritardoNotifiche, TimeUnit.MILLISECONDS);
+            } else {
+                log.warn("Notifica simulata {} scartata: {}", notifica.nomeFile(), e.getMessage());
+                daScaricare.remove(notifica.nomeFile());
+            }
+        } catch (Exception e) {
+            log.error("Errore nella consegna della notifica simulata {}", notifica.nomeFile(), e);
+            daScaricare.remove(notifica.nomeFile());
+        }
+    }
+
+    // Messaggio fileSdI dell'operazione di RicezioneNotifiche corrispondente al tipo di notifica
+    private void invia(Notifica notifica) throws IOException {
+        String operazione = switch (notifica.passo().codice()) {
+            case "RC" -> "ricevutaConsegna";
+            case "NS" -> "notificaScarto";
+            case "MC" -> "notificaMancataConsegna";
+            case "NE" -> "notificaEsito";
+            case "AT" -> "attestazioneTrasmissioneFattura";
+            default -> "notificaDecorrenzaTermini";
+        };
+        String file = Base64.getEncoder().encodeToString(messaggio(notifica).getBytes(StandardCharsets.UTF_8));
+        byte[] corpo = envelope("<types:" + operazione + " xmlns:types=\"" + NS_TYPES + "\">"
+                + "<IdentificativoSdI>" + notifica.identificativoSdi() + "</IdentificativoSdI>"
+                + "<NomeFile>" + notifica.nomeFile() + "</NomeFile>"
+                + "<File>" + file + "</File>"
+                + "</types:" + operazione + ">");
+        int codice = sdiHttpTransport.post(notificheUrl,
+                new ByteArrayEntity(corpo, ContentType.create("text/xml", StandardCharsets.UTF_8)), risposta -> {
+                    EntityUtils.consume(risposta.getEntity());
+                    return risposta.getCode();
+                });
+        if (codice >= 300) {
+            throw new SdiException("Notifica " + notifica.nomeFile() + " rifiutata: HTTP " + codice);
+        }
+    }
+
+    private Risposta simulaLatenzaEdErrori() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long attesa = latenza + (jitter > 0 ? random.nextLong(-jitter, jitter + 1) : 0);
+        if (attesa > 0) {
+            try {
+                Thread.sleep(attesa);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double estrazione = random.nextDouble();
+        if (estrazione < tassoErroreHttp) {
+            return new Risposta(503, "text/plain; charset=utf-8",
+                    "Servizio temporaneamente non disponibile".getBytes(StandardCharsets.UTF_8));
+        }
+        if (estrazione < tassoErroreHttp + tassoFault) {
+            return fault("EI01 - Errore simulato");
+        }
+        return null;
+    }
+
+    private static Risposta risposta(String corpo) {
+        return new Risposta(200, CONTENT_TYPE, envelope(corpo));
+    }
+
+    private static Risposta fault(String messaggio) {
+        return new Risposta(500, CONTENT_TYPE, envelope("<soapenv:Fault><faultcode>soapenv:Server</faultcode>"
+                + "<faultstring>" + messaggio + "</faultstring></soapenv:Fault>"));
+    }
+
+    private static byte[] envelope(String corpo) {
+        return ("<soapenv:Envelope xmlns:soapenv=\"" + NS_SOAP + "\"><soapenv:Body>" + corpo
+                + "</soapenv:Body></soapenv:Envelope>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Messaggio SDI della notifica secondo lo schema MessaggiTypes
+    private static String messaggio(Notifica notifica) {
+        Passo passo = notifica.passo();
+        String radice = switch (passo.codice()) {
+            case "RC" -> "RicevutaConsegna";
+            case "NS" -> "NotificaScarto";
+            case "MC" -> "NotificaMancataConsegna";
+            case "NE" -> "NotificaEsito";
+            case "AT" -> "AttestazioneTrasmissioneFattura";
+            default -> "NotificaDecorrenzaTermini";
+        };
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<types:").append(radice).append(" xmlns:types=\"").append(NS_MESSAGGI).append("\" versione=\"1.0\">")
+                .append("<IdentificativoSdI>").append(notifica.identificativoSdi()).append("</IdentificativoSdI>")
+                .append("<NomeFile>").append(notifica.nomeFileFattura()).append("</NomeFile>")
+                .append("<DataOraRicezione>").append(OffsetDateTime.now()).append("</DataOraRicezione>");
+        switch (passo.codice()) {
+            case "NS" -> xml.append("<ListaErrori><Errore><Codice>00200</Codice>")
+                    .append("<Descrizione>File non conforme al formato</Descrizione></Errore></ListaErrori>");
+            case "NE" -> xml.append("<EsitoCommittente><IdentificativoFattura>")
+                    .append("<NumeroFattura>1</NumeroFattura><AnnoFattura>").append(OffsetDateTime.now().getYear())
+                    .append("</AnnoFattura></IdentificativoFattura><Esito>").append(passo.esito())
+                    .append("</Esito></EsitoCommittente>");
+            case "RC" -> xml.append("<DataOraConsegna>").append(OffsetDateTime.now()).append("</DataOraConsegna>");
+            default -> {
+            }
+        }
+        xml.append("<MessageId>").append(notifica.identificativoSdi()).append(passo.codice()).append("</MessageId>")
+                .append("</types:").append(radice).append(">");
+        return xml.toString();
+    }
+
+    private static String descrizione(Passo passo) {
+        return switch (passo.codice()) {
+            case "RC" -> "Fattura consegnata al destinatario";
+            case "NS" -> "File non conforme al formato (00200)";
+            case "MC" -> "Impossibile recapitare la fattura al destinatario";
+            case "NE" -> "EC01".equals(passo.esito())
+                    ? "Fattura accettata dal committente (EC01)"
+                    : "Fattura rifiutata dal committente (" + passo.esito() + ")";
+            case "AT" -> "Attestazione di avvenuta trasmissione con impossibilità di recapito";
+            default -> "Decorrenza termini";
+        };
+    }
+
+    private static NotificaSdi.TipoNotifica tipo(String codice) {
+        return switch (codice) {
+            case "RC" -> NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA;
+            case "NS" -> NotificaSdi.TipoNotifica.NOTIFICA_SCARTO;
+            case "MC" -> NotificaSdi.TipoNotifica.NOTIFICA_MANCATA_CONSEGNA;
+            case "NE" -> NotificaSdi.TipoNotifica.NOTIFICA_ESITO;
+            case "AT" -> NotificaSdi.TipoNotifica.ATTESTAZIONE_TRASMISSIONE;
+            case "DT" -> NotificaSdi.TipoNotifica.NOTIFICA_DECORRENZA_TERMINI;
+            default -> throw new IllegalArgumentException("Notifica simulata non supportata: " + codice);
+        };
+    }
+
+    // Legge i campi richiesti dall'envelope (anche MTOM) e consuma il resto della richiesta
+    private static Map<String, String> leggiEnvelope(String contentType, InputStream corpo, Set<String> nomi)
+            throws IOException, XMLStreamException {
+        InputStream envelope = corpo;
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/related")) {
+            LettoreMultipartRelated lettore = new LettoreMultipartRelated(corpo,
+                    LettoreMultipartRelated.parametro(contentType, "boundary"));
+            LettoreMultipartRelated.Parte parte = lettore.prossima();
+            if (parte == null) {
+                throw new IOException("Richiesta MTOM senza parti");
+            }
+            envelope = parte.contenuto();
+        }
+        Map<String, String> campi = new HashMap<>();
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(envelope);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && nomi.contains(reader.getLocalName())) {
+                    campi.put(reader.getLocalName(), reader.getElementText().trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        corpo.transferTo(OutputStream.nullOutputStream());
+        return campi;
+    }
+
+    private static XMLInputFactory creaFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,212 @@
+package it.fatturazione.service.xml;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Writer StAX con indentazione e escaping allineati all'output del Transformer usato dal motore DOM.
+// Se presente, ogni evento viene inoltrato anche al ContentHandler di validazione, così il documento
+// viene validato mentre viene scritto.
+public class FatturaXmlWriter implements AutoCloseable {
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final byte[] DICHIARAZIONE_XML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int INDENT_AMOUNT = 2;
+
+    private final XMLStreamWriter writer;
+    private final ContentHandler validazione;
+    private final Deque<String[]> elementiAperti = new ArrayDeque<>();
+    private final Deque<String> prefissiDichiarati = new ArrayDeque<>();
+    private String[] elementoInSospeso;
+    private AttributesImpl attributiInSospeso;
+    private int livello;
+
+    public FatturaXmlWriter(OutputStream out) throws XMLStreamException {
+        this(out, null);
+    }
+
+    public FatturaXmlWriter(OutputStream out, ContentHandler validazione) throws XMLStreamException {
+        try {
+            out.write(DICHIARAZIONE_XML);
+        } catch (IOException e) {
+            throw new XMLStreamException("Impossibile scrivere la dichiarazione XML", e);
+        }
+        this.writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        this.validazione = validazione;
+        if (validazione != null) {
+            sax(() -> validazione.startDocument());
+        }
+    }
+
+    public void apri(String nome) throws XMLStreamException {
+        apri("", nome, "");
+    }
+
+    public void apri(String prefisso, String nome, String namespace) throws XMLStreamException {
+        aCapo();
+        if (prefisso.isEmpty()) {
+            writer.writeStartElement(nome);
+        } else {
+            writer.writeStartElement(prefisso, nome, namespace);
+        }
+        livello++;
+
+        if (validazione != null) {
+            inviaElementoInSospeso();
+            elementoInSospeso = new String[]{namespace, nome, prefisso.isEmpty() ? nome : prefisso + ":" + nome};
+            attributiInSospeso = new AttributesImpl();
+        }
+    }
+
+    public void namespace(String prefisso, String namespace) throws XMLStreamException {
+        writer.writeNamespace(prefisso, namespace);
+        if (validazione != null) {
+            prefissiDichiarati.push(prefisso);
+            sax(() -> validazione.startPrefixMapping(prefisso, namespace));
+        }
+    }
+
+    public void attributo(String nome, String valore) throws XMLStreamException {
+        writer.writeAttribute(nome, valore);
+        if (validazione != null) {
+            attributiInSospeso.addAttribute("", nome, nome, "CDATA", valore);
+        }
+    }
+
+    public void attributo(String prefisso, String namespace, String nome, String valore) throws XMLStreamException {
+        writer.writeAttribute(prefisso, namespace, nome, valore);
+        if (validazione != null) {
+            attributiInSospeso.addAttribute(namespace, nome, prefisso + ":" + nome, "CDATA", valore);
+        }
+    }
+
+    public void chiudi() throws XMLStreamException {
+        livello--;
+        aCapo();
+        writer.writeEndElement();
+
+        if (validazione != null) {
+            inviaElementoInSospeso();
+            String[] elemento = elementiAperti.pop();
+            sax(() -> validazione.endElement(elemento[0], elemento[1], elemento[2]));
+        }
+    }
+
+    public void elemento(String nome, String valore) throws XMLStreamException {
+        aCapo();
+        if (valore == null || valore.isEmpty()) {
+            writer.writeEmptyElement(nome);
+        } else {
+            writer.writeStartElement(nome);
+            testo(valore);
+            writer.writeEndElement();
+        }
+
+        if (validazione != null) {
+            inviaElementoInSospeso();
+            sax(() -> {
+                validazione.startElement("", nome, nome, new AttributesImpl());
+                if (valore != null && !valore.isEmpty()) {
+                    validazione.characters(valore.toCharArray(), 0, valore.length());
+                }
+                validazione.endElement("", nome, nome);
+            });
+        }
+    }
+
+    public void fine() throws XMLStreamException {
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.flush();
+
+        if (validazione != null) {
+            sax(() -> {
+                while (!prefissiDichiarati.isEmpty()) {
+                    validazione.endPrefixMapping(prefissiDichiarati.pop());
+                }
+                validazione.endDocument();
+            });
+        }
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        writer.close();
+    }
+
+    private void aCapo() throws XMLStreamException {
+        char[] indent = new char[1 + livello * INDENT_AMOUNT];
+        indent[0] = '\n';
+        for (int i = 1; i < indent.length; i++) {
+            indent[i] = ' ';
+        }
+        writer.writeCharacters(indent, 0, indent.length);
+    }
+
+    // I caratteri che il Transformer serializza come riferimenti numerici vengono scritti allo stesso modo
+    private void testo(String valore) throws XMLStreamException {
+        char[] chars = valore.toCharArray();
+        int inizio = 0;
+        int i = 0;
+        while (i < chars.length) {
+            int codePoint = Character.codePointAt(chars, i);
+            int lunghezza = Character.charCount(codePoint);
+            if (richiedeRiferimento(codePoint)) {
+                if (i > inizio) {
+                    writer.writeCharacters(chars, inizio, i - inizio);
+                }
+                writer.writeEntityRef("#" + codePoint);
+                inizio = i + lunghezza;
+            }
+            i += lunghezza;
+        }
+        if (chars.length > inizio) {
+            writer.writeCharacters(chars, inizio, chars.length - inizio);
+        }
+    }
+
+    private static boolean richiedeRiferimento(int codePoint) {
+        return codePoint == '\r'
+                || (codePoint < 0x20 && codePoint != '\t' && codePoint != '\n')
+                || (codePoint >= 0x7F && codePoint <= 0x9F)
+                || codePoint > 0xFFFF;
+    }
+
+    // Lo startElement SAX viene inviato solo quando gli attributi dell'elemento sono completi
+    private void inviaElementoInSospeso() throws XMLStreamException {
+        if (elementoInSospeso == null) {
+            return;
+        }
+        String[] elemento = elementoInSospeso;
+        AttributesImpl attributi = attributiInSospeso;
+        elementoInSospeso = null;
+        attributiInSospeso = null;
+        elementiAperti.push(elemento);
+        sax(() -> validazione.startElement(elemento[0], elemento[1], elemento[2], attributi));
+    }
+
+    private void sax(EventoSax evento) throws XMLStreamException {
+        try {
+            evento.invia();
+        } catch (SAXException e) {
+            throw new XMLStreamException("Errore di validazione: " + e.getMessage(), e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface EventoSax {
+        void invia() throws SAXException;
+    }
+}
@@ -0,0 +1,168 @@
+package it.fatturazione.service.xml;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+@Slf4j
+public class ValidatoreFatturaXml {
+
+    private static final int MAX_ERRORI = 20;
+
+    // Copia di xmldsig distribuita con l'applicazione, usata se non c'è accanto allo schema principale
+    private static final String XMLDSIG_CLASSPATH = "classpath:schemi/xmldsig-core-schema.xsd";
+
+    // Disattivata di default: lo schema ufficiale non è distribuito con l'applicazione
+    @Value("${fattura.xml.validazione.enabled:false}")
+    private boolean validazioneAbilitata;
+
+    @Value("${fattura.xml.xsd.path:classpath:schemi/Schema_del_file_xml_FatturaPA_v1.2.2.xsd}")
+    private String xsdPath;
+
+    // Schema compilato una sola volta: è thread-safe, mentre Validator e ValidatorHandler no
+    private volatile Schema schema;
+
+    private final ThreadLocal<ValidatorHandler> validatorHandler =
+            ThreadLocal.withInitial(() -> schema.newValidatorHandler());
+
+    private final ThreadLocal<Validator> validator =
+            ThreadLocal.withInitial(() -> schema.newValidator());
+
+    @PostConstruct
+    public void init() {
+        if (!validazioneAbilitata) {
+            if (new DefaultResourceLoader().getResource(xsdPath).exists()) {
+                log.warn("Validazione XSD delle fatture disabilitata: gli XML generati non vengono validati "
+                        + "(fattura.xml.validazione.enabled=false)");
+            } else {
+                log.warn("Validazione XSD delle fatture disabilitata, schema FatturaPA non trovato in {}: "
+                        + "gli XML generati non vengono validati", xsdPath);
+            }
+            return;
+        }
+        // Con la validazione abilitata uno schema mancante blocca l'avvio: nessuna fattura parte non validata
+        try {
+            schema = compilaSchema();
+            log.info("Schema FatturaPA compilato da: {}", xsdPath);
+        } catch (Exception e) {
+            throw new IllegalStateException("Impossibile compilare lo schema FatturaPA da " + xsdPath + ": "
+                    + e.getMessage() + ". Configurare fattura.xml.xsd.path con lo schema ufficiale "
+                    + "oppure impostare fattura.xml.validazione.enabled=false", e);
+        }
+    }
+
+    public boolean isAttivo() {
+        return schema != null;
+    }
+
+    // Handler da collegare al writer StAX: il documento viene validato mentre viene generato
+    public ValidatorHandler handler(ErroriValidazione errori) {
+        ValidatorHandler handler = validatorHandler.get();
+        handler.setErrorHandler(errori);
+        return handler;
+    }
+
+    // Documento già in memoria (es. DOMSource del generatore DOM): nessuna nuova lettura
+    public List<String> valida(Source documento) throws Exception {
+        ErroriValidazione errori = new ErroriValidazione();
+        Validator v = validator.get();
+        v.setErrorHandler(errori);
+        try {
+            v.validate(documento);
+        } catch (SAXParseException e) {
+            // Errore fatale: già registrato dall'ErrorHandler
+        } finally {
+            v.reset();
+        }
+        return errori.getErrori();
+    }
+
+    private Schema compilaSchema() throws Exception {
+        Resource xsd = new DefaultResourceLoader().getResource(xsdPath);
+        if (!xsd.exists()) {
+            throw new IllegalStateException("Schema non trovato: " + xsdPath);
+        }
+
+        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schemaFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file,jar:file");
+        schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+
+        // Gli schemi importati via URL remoto (es. xmldsig) vengono cercati accanto allo schema principale
+        DOMImplementationLS domLs = (DOMImplementationLS) DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().getDOMImplementation();
+        schemaFactory.setResourceResolver((type, namespaceURI, publicId, systemId, baseURI) -> {
+            if (systemId == null || !systemId.startsWith("http")) {
+                return null;
+            }
+            try {
+                String nome = systemId.substring(systemId.lastIndexOf('/') + 1);
+                Resource locale = xsd.createRelative(nome);
+                if (!locale.exists()) {
+                    locale = new DefaultResourceLoader().getResource(XMLDSIG_CLASSPATH);
+                    if (!XMLDSIG_CLASSPATH.endsWith("/" + nome) || !locale.exists()) {
+                        return null;
+                    }
+                }
+                LSInput input = domLs.createLSInput();
+                input.setSystemId(locale.getURL().toExternalForm());
+                input.setByteStream(locale.getInputStream());
+                return input;
+            } catch (Exception e) {
+                return null;
+            }
+        });
+
+        return schemaFactory.newSchema(new StreamSource(xsd.getInputStream(), xsd.getURL().toExternalForm()));
+    }
+
+    public static class ErroriValidazione implements ErrorHandler {
+
+        private final List<String> errori = new ArrayList<>();
+
+        @Override
+        public void warning(SAXParseException e) {
+            log.debug("Avviso validazione XSD: {}", e.getMessage());
+        }
+
+        @Override
+        public void error(SAXParseException e) {
+            if (errori.size() < MAX_ERRORI) {
+                errori.add(e.getMessage());
+            }
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXParseException {
+            error(e);
+            throw e;
+        }
+
+        public boolean isVuoto() {
+            return errori.isEmpty();
+        }
+
+        public List<String> getErrori() {
+            return errori;
+        }
+    }
+}
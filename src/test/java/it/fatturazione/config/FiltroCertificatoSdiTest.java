@@ -0,0 +1,83 @@
+package it.fatturazione.config;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FiltroCertificatoSdiTest {
+
+    private static final String SUBJECT_SDI = "CN=SDI, O=Agenzia delle Entrate, C=IT";
+
+    private static X509Certificate certificatoSdi;
+    private static X509Certificate certificatoAltro;
+
+    @BeforeAll
+    static void creaCertificati() throws Exception {
+        certificatoSdi = certificato(SUBJECT_SDI);
+        certificatoAltro = certificato("CN=Altro, C=IT");
+    }
+
+    @Test
+    void testSoloIlCertificatoAmmessoRaggiungeIlServizio() throws Exception {
+        FiltroCertificatoSdi filtro = filtro(SUBJECT_SDI);
+
+        assertEquals(200, esegui(filtro, certificatoSdi).getStatus());
+        assertEquals(403, esegui(filtro, certificatoAltro).getStatus());
+        assertEquals(403, esegui(filtro, null).getStatus());
+    }
+
+    @Test
+    void testSenzaSubjectAmmessiOgniNotificaVieneRifiutata() throws Exception {
+        assertEquals(403, esegui(filtro(""), certificatoSdi).getStatus());
+    }
+
+    private static FiltroCertificatoSdi filtro(String subjectAmmessi) throws Exception {
+        FiltroCertificatoSdi filtro = new FiltroCertificatoSdi();
+        ReflectionTestUtils.setField(filtro, "abilitato", true);
+        ReflectionTestUtils.setField(filtro, "subjectAmmessi", subjectAmmessi);
+        ReflectionTestUtils.setField(filtro, "header", "");
+        ReflectionTestUtils.setField(filtro, "truststorePath", "");
+        filtro.init();
+        return filtro;
+    }
+
+    private static MockHttpServletResponse esegui(FiltroCertificatoSdi filtro, X509Certificate certificato)
+            throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/ws/ricezione-notifiche");
+        if (certificato != null) {
+            request.setAttribute("jakarta.servlet.request.X509Certificate", new X509Certificate[]{certificato});
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filtro.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private static X509Certificate certificato(String subject) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        // Codifica RFC 2253 come un certificato reale: l'ordine degli RDN è quello di X500Principal
+        X500Name nome = X500Name.getInstance(new X500Principal(subject).getEncoded());
+        Date inizio = new Date();
+        Date fine = new Date(inizio.getTime() + 24L * 60 * 60 * 1000);
+        return new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(nome, BigInteger.ONE, inizio, fine, nome, keyPair.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+}
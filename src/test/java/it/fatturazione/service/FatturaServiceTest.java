@@ -3,20 +3,30 @@ package it.fatturazione.service;
 import it.fatturazione.dto.FatturaRequestDTO;
 import it.fatturazione.dto.FatturaResponseDTO;
 import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.FirmaDigitaleException;
 import it.fatturazione.repository.FatturaRepository;
+import it.fatturazione.repository.NotificaSdiRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -25,6 +35,9 @@ class FatturaServiceTest {
     @Mock
     private FatturaRepository fatturaRepository;
 
+    @Mock
+    private NotificaSdiRepository notificaSdiRepository;
+
     @Mock
     private XmlGeneratorService xmlGeneratorService;
 
@@ -127,4 +140,55 @@ class FatturaServiceTest {
         assertEquals(1L, result.getId());
         assertEquals("2026/001", result.getNumeroFattura());
     }
+
+    @Test
+    void testRicevutaConsegnaDopoEsitoNonRiportaIndietroLoStato() {
+        // Arrange: l'esito del committente è stato applicato prima della ricevuta di consegna
+        fattura.setStato(Fattura.StatoFattura.ACCETTATA);
+        fattura.setIdentificativoSdi("100");
+        when(fatturaRepository.findAllByIdentificativoSdiPerAggiornamento("100")).thenReturn(List.of(fattura));
+
+        // Act
+        fatturaService.registraNotifica("100", NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA,
+                "/var/fatture/notifiche/IT01234567890_00001_RC_001.xml");
+
+        // Assert
+        assertEquals(Fattura.StatoFattura.ACCETTATA, fattura.getStato());
+        assertNotNull(fattura.getDataRicevutaConsegna());
+        verify(notificaSdiRepository).save(any(NotificaSdi.class));
+        verify(fatturaRepository).save(fattura);
+    }
+
+    @Test
+    void testNotificaEsitoDecisaDalFile(@TempDir Path tempDir) throws Exception {
+        // Arrange: esito EC01 nel file, nessuna parola "accettata" nelle note
+        Path file = tempDir.resolve("IT01234567890_00001_NE_001.xml");
+        Files.writeString(file, "<types:NotificaEsito xmlns:types=\"http://www.fatturapa.gov.it/sdi/messaggi/v1.0\">"
+                + "<IdentificativoSdI>100</IdentificativoSdI><EsitoCommittente><Esito>EC01</Esito></EsitoCommittente>"
+                + "<MessageId>42</MessageId><Note>Nessun rilievo</Note></types:NotificaEsito>");
+        fattura.setStato(Fattura.StatoFattura.CONSEGNATA);
+        when(fatturaRepository.findAllByIdentificativoSdiPerAggiornamento("100")).thenReturn(List.of(fattura));
+
+        // Act
+        fatturaService.registraNotifica("100", NotificaSdi.TipoNotifica.NOTIFICA_ESITO, file.toString());
+
+        // Assert
+        assertEquals(Fattura.StatoFattura.ACCETTATA, fattura.getStato());
+        ArgumentCaptor<NotificaSdi> notifica = ArgumentCaptor.forClass(NotificaSdi.class);
+        verify(notificaSdiRepository).save(notifica.capture());
+        assertEquals("EC01", notifica.getValue().getEsito());
+        assertEquals("42", notifica.getValue().getMessageIdSdi());
+        assertEquals("Fattura accettata dal committente (EC01)", notifica.getValue().getMessaggioNotifica());
+    }
+
+    @Test
+    void testScriviXmlFirmatoVerificaNelloStessoPassaggio() {
+        // Arrange: contenuto copiato, firma non valida
+        when(firmaDigitaleService.estraiContenuto(eq("/var/fatture/f.xml.p7m"), any(OutputStream.class))).thenReturn(false);
+
+        // Act & Assert
+        assertThrows(FirmaDigitaleException.class,
+                () -> fatturaService.scriviXmlFirmato("/var/fatture/f.xml.p7m", OutputStream.nullOutputStream()));
+        verify(firmaDigitaleService, never()).verificaFirma(anyString());
+    }
 }
@@ -0,0 +1,264 @@
+package it.fatturazione.service;
+
+import it.fatturazione.config.FirmaProperties;
+import it.fatturazione.service.firma.CacheVerificaFirma;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FirmaDigitaleServiceTest {
+
+    private static final String PASSWORD = "test";
+    private static final String ALIAS = "test";
+
+    @TempDir
+    Path dir;
+
+    private FirmaDigitaleService firmaDigitaleService;
+    private CacheVerificaFirma cacheVerificaFirma;
+    private FirmaProperties firmaProperties;
+    private Path keystore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cacheVerificaFirma = new CacheVerificaFirma(1000);
+        firmaProperties = new FirmaProperties();
+        keystore = creaKeystore("test.p12", ALIAS, BigInteger.ONE);
+        firmaDigitaleService = new FirmaDigitaleService(cacheVerificaFirma, firmaProperties);
+        ReflectionTestUtils.setField(firmaDigitaleService, "keystorePath", keystore.toString());
+        ReflectionTestUtils.setField(firmaDigitaleService, "keystorePassword", PASSWORD);
+        ReflectionTestUtils.setField(firmaDigitaleService, "keyAlias", ALIAS);
+        ReflectionTestUtils.setField(firmaDigitaleService, "keyPassword", PASSWORD);
+        firmaDigitaleService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        firmaDigitaleService.shutdown();
+    }
+
+    @Test
+    void testFirmaVerificaEdEstrazione() throws Exception {
+        byte[] xml = "<p:FatturaElettronica>città</p:FatturaElettronica>".getBytes(StandardCharsets.UTF_8);
+        Path xmlPath = Files.write(dir.resolve("IT01234567890_00001.xml"), xml);
+
+        String p7m = firmaDigitaleService.firmaFile(xmlPath.toString());
+
+        assertTrue(p7m.endsWith(".xml.p7m"));
+        assertTrue(firmaDigitaleService.verificaFirma(p7m));
+
+        ByteArrayOutputStream estratto = new ByteArrayOutputStream();
+        assertTrue(firmaDigitaleService.estraiContenuto(p7m, estratto));
+        assertArrayEquals(xml, estratto.toByteArray());
+    }
+
+    @Test
+    void testFirmaNonValidaSeIlContenutoEAlterato() throws Exception {
+        Path xmlPath = Files.write(dir.resolve("IT01234567890_00002.xml"),
+                "<p:FatturaElettronica>100.00</p:FatturaElettronica>".getBytes(StandardCharsets.UTF_8));
+        Path p7m = Path.of(firmaDigitaleService.firmaFile(xmlPath.toString()));
+
+        byte[] firmato = Files.readAllBytes(p7m);
+        String testo = new String(firmato, StandardCharsets.ISO_8859_1).replace("100.00", "900.00");
+        Files.write(p7m, testo.getBytes(StandardCharsets.ISO_8859_1));
+
+        assertFalse(firmaDigitaleService.verificaFirma(p7m.toString()));
+        assertFalse(firmaDigitaleService.estraiContenuto(p7m.toString(), OutputStream.nullOutputStream()));
+    }
+
+    @Test
+    void testVerificaRipetutaUsaLaCache() throws Exception {
+        Path xmlPath = Files.writeString(dir.resolve("IT01234567890_00006.xml"), "<c/>");
+        String p7m = firmaDigitaleService.firmaFile(xmlPath.toString());
+
+        assertTrue(firmaDigitaleService.verificaFirma(p7m));
+        assertTrue(firmaDigitaleService.verificaFirma(p7m));
+        assertTrue(firmaDigitaleService.estraiContenuto(p7m, OutputStream.nullOutputStream()));
+
+        assertEquals(2L, cacheVerificaFirma.metriche().get("hit"));
+        assertEquals(1L, cacheVerificaFirma.metriche().get("miss"));
+        assertEquals(1, cacheVerificaFirma.metriche().get("dimensione"));
+    }
+
+    @Test
+    void testRicaricaKeystoreModificato() throws Exception {
+        Path xmlPath = Files.writeString(dir.resolve("IT01234567890_00007.xml"), "<d/>");
+        assertTrue(firmaDigitaleService.verificaFirma(firmaDigitaleService.firmaFile(xmlPath.toString())));
+        assertEquals(1, cacheVerificaFirma.metriche().get("dimensione"));
+
+        // Nessuna modifica: il materiale resta quello caricato all'avvio
+        firmaDigitaleService.ricaricaKeystore();
+        assertEquals(0L, metricheKeystore().get("ricariche"));
+
+        creaKeystore("test.p12", ALIAS, BigInteger.TWO);
+        Files.setLastModifiedTime(keystore, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        firmaDigitaleService.ricaricaKeystore();
+
+        assertEquals(1L, metricheKeystore().get("ricariche"));
+        assertEquals("2", serialeAttivo(ALIAS));
+        assertEquals(0, cacheVerificaFirma.metriche().get("dimensione"));
+        assertTrue(firmaDigitaleService.verificaFirma(firmaDigitaleService.firmaFile(xmlPath.toString())));
+    }
+
+    @Test
+    void testRicaricaFallitaMantieneIlCertificatoPrecedente() throws Exception {
+        Files.writeString(keystore, "non è un keystore");
+        Files.setLastModifiedTime(keystore, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        firmaDigitaleService.ricaricaKeystore();
+
+        assertEquals(1L, metricheKeystore().get("ricaricheFallite"));
+        assertEquals("1", serialeAttivo(ALIAS));
+        Path xmlPath = Files.writeString(dir.resolve("IT01234567890_00008.xml"), "<e/>");
+        assertTrue(firmaDigitaleService.verificaFirma(firmaDigitaleService.firmaFile(xmlPath.toString())));
+    }
+
+    @Test
+    void testOsservatoreRicaricaIlKeystoreModificato() throws Exception {
+        firmaDigitaleService.shutdown();
+        ReflectionTestUtils.setField(firmaDigitaleService, "ricaricaACaldo", true);
+        ReflectionTestUtils.setField(firmaDigitaleService, "attesaRicaricaMs", 100L);
+        firmaDigitaleService.init();
+
+        creaKeystore("test.p12", ALIAS, BigInteger.TWO);
+
+        long limite = System.currentTimeMillis() + 10_000;
+        while (!"2".equals(serialeAttivo(ALIAS)) && System.currentTimeMillis() < limite) {
+            Thread.sleep(50);
+        }
+        assertEquals("2", serialeAttivo(ALIAS));
+    }
+
+    @Test
+    void testAliasNonValidoNonBloccaGliAltri() throws Exception {
+        firmaDigitaleService.shutdown();
+        FirmaProperties.Firmatario cedente = new FirmaProperties.Firmatario();
+        cedente.setKeyAlias("assente");
+        firmaProperties.getCedenti().put("01234567890", cedente);
+        firmaDigitaleService.init();
+
+        Path primo = Files.writeString(dir.resolve("IT01234567890_00011.xml"), "<h/>");
+        Path secondo = Files.writeString(dir.resolve("IT01234567890_00012.xml"), "<i/>");
+        Map<String, String> cedentePerFile = new LinkedHashMap<>();
+        cedentePerFile.put(primo.toString(), "01234567890");
+        cedentePerFile.put(secondo.toString(), "99999999999");
+
+        FirmaDigitaleService.EsitoFirmaBatch esito = firmaDigitaleService.firmaFiles(cedentePerFile);
+
+        assertTrue(esito.scartati().containsKey(primo.toString()));
+        assertTrue(firmaDigitaleService.verificaFirma(esito.firmati().get(secondo.toString())));
+        assertEquals("1", serialeAttivo(ALIAS));
+        assertTrue(((Map<?, ?>) metricheKeystore().get("aliasNonCaricati")).containsKey("assente"));
+    }
+
+    @Test
+    void testAliasMancanteEErroreDiConfigurazione() {
+        firmaDigitaleService.shutdown();
+        firmaProperties.getCedenti().put("01234567890", new FirmaProperties.Firmatario());
+
+        IllegalStateException errore = assertThrows(IllegalStateException.class, firmaDigitaleService::init);
+        assertTrue(errore.getMessage().contains("firma.cedenti.01234567890.key-alias"));
+    }
+
+    @Test
+    void testFirmaConIlCertificatoDelCedente() throws Exception {
+        firmaDigitaleService.shutdown();
+        FirmaProperties.Firmatario cedente = new FirmaProperties.Firmatario();
+        cedente.setKeystorePath(creaKeystore("cedente.p12", "cedente", BigInteger.valueOf(3)).toString());
+        cedente.setKeystorePassword(PASSWORD);
+        cedente.setKeyAlias("cedente");
+        firmaProperties.getCedenti().put("01234567890", cedente);
+        firmaDigitaleService.init();
+
+        Path primo = Files.writeString(dir.resolve("IT01234567890_00009.xml"), "<f/>");
+        Path secondo = Files.writeString(dir.resolve("IT01234567890_00010.xml"), "<g/>");
+        Map<String, String> cedentePerFile = new LinkedHashMap<>();
+        cedentePerFile.put(primo.toString(), "01234567890");
+        cedentePerFile.put(secondo.toString(), "99999999999");
+
+        FirmaDigitaleService.EsitoFirmaBatch esito = firmaDigitaleService.firmaFiles(cedentePerFile);
+
+        assertEquals(BigInteger.valueOf(3), serialeFirmatario(esito.firmati().get(primo.toString())));
+        assertEquals(BigInteger.ONE, serialeFirmatario(esito.firmati().get(secondo.toString())));
+        assertTrue(firmaDigitaleService.verificaFirma(esito.firmati().get(primo.toString())));
+        assertEquals(Map.of("01234567890", "cedente"), firmaDigitaleService.metriche().get("cedenti"));
+    }
+
+    @Test
+    void testFirmaBatchSeparaFileScartati() throws Exception {
+        Path primo = Files.writeString(dir.resolve("IT01234567890_00003.xml"), "<a/>");
+        Path secondo = Files.writeString(dir.resolve("IT01234567890_00004.xml"), "<b/>");
+        String mancante = dir.resolve("IT01234567890_00005.xml").toString();
+
+        FirmaDigitaleService.EsitoFirmaBatch esito = firmaDigitaleService.firmaFiles(
+                List.of(primo.toString(), mancante, secondo.toString()));
+
+        assertEquals(List.of(primo.toString(), secondo.toString()), List.copyOf(esito.firmati().keySet()));
+        assertTrue(esito.scartati().containsKey(mancante));
+        assertTrue(firmaDigitaleService.verificaFirma(esito.firmati().get(secondo.toString())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> metricheKeystore() {
+        return (Map<String, Object>) firmaDigitaleService.metriche().get(keystore.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private String serialeAttivo(String alias) {
+        Map<String, Object> certificati = (Map<String, Object>) metricheKeystore().get("certificati");
+        return (String) ((Map<String, Object>) certificati.get(alias)).get("seriale");
+    }
+
+    private BigInteger serialeFirmatario(String p7m) throws Exception {
+        CMSSignedData cms = new CMSSignedData(Files.readAllBytes(Path.of(p7m)));
+        return cms.getSignerInfos().getSigners().iterator().next().getSID().getSerialNumber();
+    }
+
+    private Path creaKeystore(String nomeFile, String alias, BigInteger seriale) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name subject = new X500Name("CN=Test Firma, O=Fatturazione, C=IT");
+        Date inizio = new Date();
+        Date fine = new Date(inizio.getTime() + 24L * 60 * 60 * 1000);
+        X509Certificate certificato = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(subject, seriale, inizio, fine, subject, keyPair.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(alias, keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificato});
+
+        Path keystorePath = dir.resolve(nomeFile);
+        try (OutputStream out = Files.newOutputStream(keystorePath)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+        return keystorePath;
+    }
+}
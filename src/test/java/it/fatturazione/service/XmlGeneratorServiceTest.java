@@ -0,0 +1,148 @@
+package it.fatturazione.service;
+
+import it.fatturazione.dto.FatturaRequestDTO;
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.exception.ValidazioneXmlException;
+import it.fatturazione.service.xml.ValidatoreFatturaXml;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XmlGeneratorServiceTest {
+
+    @TempDir
+    Path storageDir;
+
+    private XmlGeneratorService xmlGeneratorService;
+    private FatturaRequestDTO requestDTO;
+
+    @BeforeEach
+    void setUp() {
+        xmlGeneratorService = new XmlGeneratorService(new ValidatoreFatturaXml(), codice -> "00001");
+        ReflectionTestUtils.setField(xmlGeneratorService, "storagePath", storageDir.toString());
+        ReflectionTestUtils.setField(xmlGeneratorService, "codiceTrasmittente", "AAAAAA11A11A111A");
+
+        List<FatturaRequestDTO.DettaglioRigaDTO> righe = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            righe.add(FatturaRequestDTO.DettaglioRigaDTO.builder()
+                    .numeroLinea(i)
+                    .descrizione("Consulenza & supporto <fase " + i + "> \"città\" €\r\n")
+                    .quantita(new BigDecimal("1.5"))
+                    .unitaMisura("ore")
+                    .prezzoUnitario(new BigDecimal("100"))
+                    .aliquotaIva(new BigDecimal("22"))
+                    .build());
+        }
+
+        requestDTO = FatturaRequestDTO.builder()
+                .numeroFattura("2026/001")
+                .dataFattura(LocalDate.of(2026, 1, 15))
+                .cedente(FatturaRequestDTO.CedenteDTO.builder()
+                        .denominazione("Azienda Test SRL")
+                        .partitaIva("12345678901")
+                        .codiceFiscale("TSTZND80A01F205X")
+                        .indirizzo("Via Test 1")
+                        .cap("20100")
+                        .comune("Milano")
+                        .provincia("MI")
+                        .nazione("IT")
+                        .telefono("0212345678")
+                        .build())
+                .cessionario(FatturaRequestDTO.CessionarioDTO.builder()
+                        .denominazione("Cliente Test")
+                        .codiceFiscale("RSSMRA80A01H501U")
+                        .indirizzo("Via Cliente 1")
+                        .cap("00100")
+                        .comune("Roma")
+                        .provincia("RM")
+                        .nazione("IT")
+                        .pec("cliente@pec.it")
+                        .build())
+                .dettaglioRighe(righe)
+                .riepilogoIva(FatturaRequestDTO.RiepilogoIvaDTO.builder()
+                        .aliquotaIva(new BigDecimal("22.00"))
+                        .imponibile(new BigDecimal("450.00"))
+                        .imposta(new BigDecimal("99.00"))
+                        .build())
+                .datiPagamento(FatturaRequestDTO.DatiPagamentoDTO.builder()
+                        .condizioniPagamento("TP02")
+                        .dettaglioPagamento(FatturaRequestDTO.DettaglioPagamentoDTO.builder()
+                                .modalitaPagamento("MP05")
+                                .dataScadenza(LocalDate.of(2026, 2, 15))
+                                .importoPagamento(new BigDecimal("549.00"))
+                                .iban("IT60X0542811101000000123456")
+                                .build())
+                        .build())
+                .build();
+    }
+
+    @Test
+    void testMotoreStaxCompatibileConDom() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(xmlGeneratorService, "xmlEngine", "dom");
+        String xmlDom = Files.readString(Path.of(xmlGeneratorService.generaXml(requestDTO, new Fattura())));
+
+        ReflectionTestUtils.setField(xmlGeneratorService, "xmlEngine", "stax");
+        String xmlStax = Files.readString(Path.of(xmlGeneratorService.generaXml(requestDTO, new Fattura())));
+
+        // Assert
+        assertEquals(xmlDom, xmlStax);
+    }
+
+    @Test
+    void testValidazioneXsdDuranteGenerazione() {
+        // Arrange
+        ValidatoreFatturaXml validatore = new ValidatoreFatturaXml();
+        ReflectionTestUtils.setField(validatore, "validazioneAbilitata", true);
+        ReflectionTestUtils.setField(validatore, "xsdPath", "classpath:schemi/fatturapa-test.xsd");
+        validatore.init();
+        assertTrue(validatore.isAttivo());
+
+        XmlGeneratorService generatore = new XmlGeneratorService(validatore, codice -> "00001");
+        ReflectionTestUtils.setField(generatore, "storagePath", storageDir.toString());
+        ReflectionTestUtils.setField(generatore, "codiceTrasmittente", "AAAAAA11A11A111A");
+        requestDTO.setNumeroFattura("FT-001");
+
+        // Act & Assert: entrambi i motori rifiutano il documento prima di lasciare il file su disco
+        for (String motore : List.of("stax", "dom")) {
+            ReflectionTestUtils.setField(generatore, "xmlEngine", motore);
+            ValidazioneXmlException e = assertThrows(ValidazioneXmlException.class,
+                    () -> generatore.generaXml(requestDTO, new Fattura()));
+            assertTrue(e.getErrori().stream().anyMatch(errore -> errore.contains("FT-001")), motore);
+            assertFalse(Files.exists(storageDir.resolve("ITAAAAAA11A11A111A_FT_001.xml")), motore);
+        }
+
+        // Numero conforme: il documento DOM supera la validazione
+        requestDTO.setNumeroFattura("2026/001");
+        assertDoesNotThrow(() -> generatore.generaXml(requestDTO, new Fattura()));
+    }
+
+    @Test
+    void testSchemaMancanteBloccaLAvvio() {
+        ValidatoreFatturaXml validatore = new ValidatoreFatturaXml();
+        ReflectionTestUtils.setField(validatore, "validazioneAbilitata", true);
+        ReflectionTestUtils.setField(validatore, "xsdPath", "classpath:schemi/assente.xsd");
+
+        assertThrows(IllegalStateException.class, validatore::init);
+    }
+
+    @Test
+    void testValidazioneDisattivataSiAvviaSenzaSchema() {
+        ValidatoreFatturaXml validatore = new ValidatoreFatturaXml();
+        ReflectionTestUtils.setField(validatore, "validazioneAbilitata", false);
+        ReflectionTestUtils.setField(validatore, "xsdPath", "classpath:schemi/assente.xsd");
+
+        assertDoesNotThrow(validatore::init);
+        assertFalse(validatore.isAttivo());
+    }
+}
@@ -0,0 +1,103 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.NotificaInArrivoSdi;
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.FatturaNotFoundException;
+import it.fatturazione.repository.NotificaInArrivoSdiRepository;
+import it.fatturazione.repository.NotificaSdiRepository;
+import it.fatturazione.service.FatturaService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Sort;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CodaNotificheSdiTest {
+
+    @Mock
+    private FatturaService fatturaService;
+
+    @Mock
+    private NotificaInArrivoSdiRepository notificheInArrivo;
+
+    @Mock
+    private NotificaSdiRepository notificaSdiRepository;
+
+    @TempDir
+    Path tempDir;
+
+    private CodaNotificheSdi coda;
+
+    @BeforeEach
+    void setUp() {
+        coda = new CodaNotificheSdi(fatturaService, notificheInArrivo, notificaSdiRepository);
+        ReflectionTestUtils.setField(coda, "storagePath", tempDir.toString());
+        ReflectionTestUtils.setField(coda, "giorniRecupero", 7);
+        ReflectionTestUtils.setField(coda, "numeroCorsie", 2);
+        ReflectionTestUtils.setField(coda, "capacita", 100);
+        ReflectionTestUtils.setField(coda, "tentativi", 3);
+        ReflectionTestUtils.setField(coda, "ritardoTentativo", 50L);
+        coda.init();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        coda.shutdown();
+    }
+
+    @Test
+    void testIlTentativoSuccessivoNonVieneSorpassatoDalleNotificheDelloStessoInvio() {
+        // La ricevuta arriva prima che l'IdentificativoSdI sia registrato; l'esito arriva subito dopo
+        doThrow(new FatturaNotFoundException("Nessuna fattura con IdentificativoSdI 111")).doNothing()
+                .when(fatturaService).registraNotifica("111", NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, "rc.xml");
+
+        coda.accoda(new CodaNotificheSdi.Notifica("111", "rc.xml", NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, "rc.xml"));
+        coda.accoda(new CodaNotificheSdi.Notifica("111", "ne.xml", NotificaSdi.TipoNotifica.NOTIFICA_ESITO, "ne.xml"));
+
+        verify(notificheInArrivo, timeout(5000)).deleteByXmlNotificaPath("ne.xml");
+        InOrder ordine = inOrder(fatturaService);
+        ordine.verify(fatturaService, times(2)).registraNotifica("111", NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, "rc.xml");
+        ordine.verify(fatturaService).registraNotifica("111", NotificaSdi.TipoNotifica.NOTIFICA_ESITO, "ne.xml");
+    }
+
+    @Test
+    void testRecuperoAllAvvioDelleNotificheNonApplicate() throws Exception {
+        Path cartella = Files.createDirectories(tempDir.resolve("notifiche"));
+        Path inArrivo = Files.writeString(cartella.resolve("IT01234567890_00001_RC_001.xml"), "<RicevutaConsegna/>");
+        Path senzaRecord = Files.writeString(cartella.resolve("IT01234567890_00002_NS_001.xml"),
+                "<types:NotificaScarto xmlns:types=\"http://www.fatturapa.gov.it/sdi/messaggi/v1.0\">"
+                        + "<IdentificativoSdI>222</IdentificativoSdI></types:NotificaScarto>");
+        Path registrata = Files.writeString(cartella.resolve("IT01234567890_00003_RC_001.xml"), "<RicevutaConsegna/>");
+
+        when(notificheInArrivo.findAll(any(Sort.class))).thenReturn(List.of(NotificaInArrivoSdi.builder()
+                .xmlNotificaPath(inArrivo.toString()).identificativoSdi("111").nomeFile("IT01234567890_00001_RC_001.xml")
+                .tipoNotifica(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA).build()));
+        when(notificaSdiRepository.existsByXmlNotificaPath(anyString()))
+                .thenAnswer(invocation -> registrata.toString().equals(invocation.getArgument(0)));
+
+        coda.recupera();
+
+        verify(fatturaService, timeout(5000)).registraNotifica("111",
+                NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, inArrivo.toString());
+        verify(fatturaService, timeout(5000)).registraNotifica("222",
+                NotificaSdi.TipoNotifica.NOTIFICA_SCARTO, senzaRecord.toString());
+        verify(notificheInArrivo, timeout(5000)).deleteByXmlNotificaPath(senzaRecord.toString());
+        // Il file senza record viene registrato tra quelle in arrivo prima di essere rimesso in corsia
+        verify(notificheInArrivo).save(argThat(n -> n.getXmlNotificaPath().equals(senzaRecord.toString())));
+        verify(fatturaService, never()).registraNotifica(anyString(), any(), eq(registrata.toString()));
+    }
+}
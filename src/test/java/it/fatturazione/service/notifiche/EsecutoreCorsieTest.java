@@ -0,0 +1,85 @@
+package it.fatturazione.service.notifiche;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EsecutoreCorsieTest {
+
+    private EsecutoreCorsie esecutore;
+
+    @AfterEach
+    void tearDown() {
+        esecutore.shutdownNow();
+    }
+
+    @Test
+    void testStessaChiaveInOrdineChiaviDiverseInParallelo() throws Exception {
+        esecutore = new EsecutoreCorsie("test", 4, 100);
+        String bloccata = "100";
+        String libera = chiaveInAltraCorsia(bloccata);
+
+        // La corsia di "100" resta occupata: i compiti accodati dietro aspettano, l'altra corsia no
+        CountDownLatch sblocco = new CountDownLatch(1);
+        CountDownLatch liberaEseguita = new CountDownLatch(1);
+        List<Integer> ordine = new CopyOnWriteArrayList<>();
+        esecutore.esegui(bloccata, () -> {
+            try {
+                sblocco.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 50; i++) {
+            int n = i;
+            esecutore.esegui(bloccata, () -> ordine.add(n));
+        }
+        esecutore.esegui(libera, liberaEseguita::countDown);
+
+        assertTrue(liberaEseguita.await(5, TimeUnit.SECONDS));
+        assertTrue(ordine.isEmpty());
+        List<?> perCorsia = (List<?>) esecutore.metriche().get("inCodaPerCorsia");
+        assertEquals(51, perCorsia.get(esecutore.corsia(bloccata)));
+
+        sblocco.countDown();
+        esecutore.shutdown();
+        assertTrue(esecutore.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(50, ordine.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, ordine.get(i));
+        }
+        assertEquals(4, esecutore.metriche().get("corsie"));
+    }
+
+    @Test
+    void testCorsiaPienaRifiutaIlCompito() throws Exception {
+        esecutore = new EsecutoreCorsie("test", 1, 1);
+        CountDownLatch sblocco = new CountDownLatch(1);
+        esecutore.esegui("100", () -> {
+            try {
+                sblocco.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // Uno in esecuzione e uno in coda: il terzo non trova posto
+        esecutore.esegui("100", () -> { });
+        assertThrows(RejectedExecutionException.class, () -> esecutore.esegui("100", () -> { }));
+        sblocco.countDown();
+    }
+
+    private String chiaveInAltraCorsia(String chiave) {
+        for (int i = 101; ; i++) {
+            if (esecutore.corsia(String.valueOf(i)) != esecutore.corsia(chiave)) {
+                return String.valueOf(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.repository.FatturaRepository;
+import it.fatturazione.service.FatturaService;
+import it.fatturazione.service.SdiService;
+import it.fatturazione.service.sdi.LimitatoreSdi;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PollerNotificheSdiTest {
+
+    @Mock
+    private FatturaRepository fatturaRepository;
+
+    @Mock
+    private FatturaService fatturaService;
+
+    @Mock
+    private SdiService sdiService;
+
+    @Mock
+    private LimitatoreSdi limitatoreSdi;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    private PollerNotificheSdi poller;
+
+    @BeforeEach
+    void setUp() {
+        poller = new PollerNotificheSdi(fatturaRepository, fatturaService, sdiService, limitatoreSdi, transactionManager);
+        ReflectionTestUtils.setField(poller, "storagePath", tempDir.toString());
+        ReflectionTestUtils.setField(poller, "attesa", 86_400_000L);
+        ReflectionTestUtils.setField(poller, "pagina", 2);
+        ReflectionTestUtils.setField(poller, "concorrenza", 4);
+        ReflectionTestUtils.setField(poller, "tipi", List.of("RC", "NS", "MC"));
+        ReflectionTestUtils.setField(poller, "attesaEsito", 1_382_400_000L);
+        ReflectionTestUtils.setField(poller, "tipiEsito", List.of("NE", "DT"));
+        ReflectionTestUtils.setField(poller, "progressivi", 2);
+    }
+
+    @Test
+    void testPagineKeysetERicercaPerIdentificativo() throws Exception {
+        when(sdiService.verificaStatoServizio()).thenReturn(true);
+        when(limitatoreSdi.limite()).thenReturn(10);
+        // Pagina 1: un lotto (stesso IdentificativoSdI e file) e l'ultima fattura porta l'id di ripartenza
+        when(fatturaRepository.findFattureInAttesaDiRisposta(any(LocalDateTime.class), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(fattura(3L, "100", "LOTTO_1.xml.p7m"), fattura(7L, "100", "LOTTO_1.xml.p7m")));
+        when(fatturaRepository.findFattureInAttesaDiRisposta(any(LocalDateTime.class), eq(7L), any(Pageable.class)))
+                .thenReturn(List.of(fattura(9L, "200", "IT01234567890_00002.xml.p7m")));
+
+        // 100: consegnata; 200: nessuna RC, scartata
+        when(sdiService.scaricaNotificaAsync(eq("100"), eq("LOTTO_1_RC_001.xml"), any(Path.class)))
+                .thenAnswer(invocazione -> scritta(invocazione.getArgument(2), "<RicevutaConsegna/>"));
+        when(sdiService.scaricaNotificaAsync(eq("200"), eq("IT01234567890_00002_RC_001.xml"), any(Path.class)))
+                .thenReturn(CompletableFuture.failedFuture(new SdiException("Errore SDI: notifica non trovata")));
+        when(sdiService.scaricaNotificaAsync(eq("200"), eq("IT01234567890_00002_NS_001.xml"), any(Path.class)))
+                .thenAnswer(invocazione -> scritta(invocazione.getArgument(2),
+                        "<NotificaScarto><ListaErrori><Errore><Codice>00200</Codice>"
+                                + "<Descrizione>File non conforme</Descrizione></Errore></ListaErrori></NotificaScarto>"));
+
+        poller.verifica();
+
+        verify(sdiService, times(1)).scaricaNotificaAsync(eq("100"), anyString(), any(Path.class));
+        verify(sdiService, never()).scaricaNotificaAsync(eq("200"), eq("IT01234567890_00002_MC_001.xml"), any(Path.class));
+        verify(fatturaService).registraNotifica("100", NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA,
+                tempDir.resolve("notifiche/LOTTO_1_RC_001.xml").toString());
+        verify(fatturaService).registraNotifica("200", NotificaSdi.TipoNotifica.NOTIFICA_SCARTO,
+                tempDir.resolve("notifiche/IT01234567890_00002_NS_001.xml").toString());
+        // Una transazione per pagina con notifiche trovate
+        verify(transactionManager, times(2)).commit(any());
+        // Pagina 2 più corta della dimensione: nessuna terza query
+        verify(fatturaRepository, times(2)).findFattureInAttesaDiRisposta(any(LocalDateTime.class), anyLong(), any(Pageable.class));
+        assertEquals(3L, poller.metriche().get("fattureVerificate"));
+        assertEquals(2L, poller.metriche().get("notificheTrovate"));
+    }
+
+    @Test
+    void testFattureConsegnateCercanoEsitoERitrasmissioni() throws Exception {
+        when(sdiService.verificaStatoServizio()).thenReturn(true);
+        when(limitatoreSdi.limite()).thenReturn(10);
+        when(fatturaRepository.findFattureInAttesaDiEsito(any(LocalDateTime.class), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(fattura(5L, "300", "IT01234567890_00003.xml.p7m")));
+        when(sdiService.scaricaNotificaAsync(eq("300"), anyString(), any(Path.class)))
+                .thenReturn(CompletableFuture.failedFuture(new SdiException("Errore SDI: notifica non trovata")));
+        // Esito del committente ritrasmesso da SDI con il progressivo successivo
+        when(sdiService.scaricaNotificaAsync(eq("300"), eq("IT01234567890_00003_NE_002.xml"), any(Path.class)))
+                .thenAnswer(invocazione -> scritta(invocazione.getArgument(2), "<NotificaEsito/>"));
+
+        poller.verifica();
+
+        verify(sdiService).scaricaNotificaAsync(eq("300"), eq("IT01234567890_00003_NE_001.xml"), any(Path.class));
+        verify(sdiService).scaricaNotificaAsync(eq("300"), eq("IT01234567890_00003_DT_001.xml"), any(Path.class));
+        verify(sdiService, never()).scaricaNotificaAsync(eq("300"), eq("IT01234567890_00003_DT_002.xml"), any(Path.class));
+        verify(fatturaService).registraNotifica("300", NotificaSdi.TipoNotifica.NOTIFICA_ESITO,
+                tempDir.resolve("notifiche/IT01234567890_00003_NE_002.xml").toString());
+    }
+
+    @Test
+    void testTipoDalSuffissoDelNomeFile() {
+        assertEquals(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, PollerNotificheSdi.tipo("IT01234567890_00001_RC_001.xml"));
+        assertEquals(NotificaSdi.TipoNotifica.NOTIFICA_MANCATA_CONSEGNA, PollerNotificheSdi.tipo("LOTTO_F1_MC_A7B.xml"));
+        assertEquals(NotificaSdi.TipoNotifica.NOTIFICA_DECORRENZA_TERMINI, PollerNotificheSdi.tipo("IT0_1_DT_002.xml"));
+        assertThrows(IllegalArgumentException.class, () -> PollerNotificheSdi.tipo("IT01234567890_00001.xml"));
+    }
+
+    private static Fattura fattura(Long id, String identificativoSdi, String nomeFile) {
+        return Fattura.builder()
+                .id(id)
+                .identificativoSdi(identificativoSdi)
+                .xmlFirmatoPath("/var/fatture/" + nomeFile)
+                .stato(Fattura.StatoFattura.INVIATA)
+                .build();
+    }
+
+    private static CompletableFuture<Path> scritta(Path destinazione, String contenuto) throws Exception {
+        Files.writeString(destinazione, contenuto);
+        return CompletableFuture.completedFuture(destinazione);
+    }
+}
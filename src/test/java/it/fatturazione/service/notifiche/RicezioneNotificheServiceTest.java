@@ -0,0 +1,129 @@
+package it.fatturazione.service.notifiche;
+
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.service.metriche.TempiFasi;
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.MimeHeaders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.ws.soap.SoapMessage;
+import org.springframework.ws.soap.saaj.SaajSoapMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class RicezioneNotificheServiceTest {
+
+    private static final String NOTIFICA_ESITO = "<types:NotificaEsito xmlns:types=\"http://www.fatturapa.gov.it/sdi/messaggi/v1.0\">"
+            + "<IdentificativoSdI>111</IdentificativoSdI><NomeFile>IT01234567890_00001.xml.p7m</NomeFile>"
+            + "<EsitoCommittente><Esito>EC02</Esito></EsitoCommittente><Note>Importo errato</Note>"
+            + "</types:NotificaEsito>";
+
+    @Mock
+    private CodaNotificheSdi codaNotificheSdi;
+
+    @Mock
+    private TempiFasi tempiFasi;
+
+    @TempDir
+    Path tempDir;
+
+    private RicezioneNotificheService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new RicezioneNotificheService(codaNotificheSdi, tempiFasi);
+        ReflectionTestUtils.setField(service, "storagePath", tempDir.toString());
+    }
+
+    @Test
+    void testNotificaInlineSalvataEAccodata() throws Exception {
+        String file = Base64.getMimeEncoder().encodeToString(NOTIFICA_ESITO.getBytes(StandardCharsets.UTF_8));
+        SoapMessage messaggio = messaggio("text/xml; charset=utf-8", envelope(
+                "<IdentificativoSdI>111</IdentificativoSdI><NomeFile>IT01234567890_00001_NE_001.xml</NomeFile>"
+                        + "<File>" + file + "</File>"));
+
+        service.ricevi(NotificaSdi.TipoNotifica.NOTIFICA_ESITO, messaggio);
+
+        Path salvata = tempDir.resolve("notifiche/IT01234567890_00001_NE_001.xml");
+        assertEquals(NOTIFICA_ESITO, Files.readString(salvata));
+        ArgumentCaptor<CodaNotificheSdi.Notifica> notifica = ArgumentCaptor.forClass(CodaNotificheSdi.Notifica.class);
+        verify(codaNotificheSdi).accoda(notifica.capture());
+        assertEquals("111", notifica.getValue().identificativoSdi());
+        assertEquals(NotificaSdi.TipoNotifica.NOTIFICA_ESITO, notifica.getValue().tipo());
+        assertEquals(salvata.toString(), notifica.getValue().path());
+        try (var rimasti = Files.list(tempDir.resolve("notifiche"))) {
+            assertEquals(1, rimasti.count());
+        }
+    }
+
+    @Test
+    void testNotificaMtomCopiataDallAllegato() throws Exception {
+        String boundary = "uuid:confine";
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        corpo.writeBytes(("--" + boundary + "\r\n"
+                + "Content-Type: application/xop+xml; charset=UTF-8; type=\"text/xml\"\r\n"
+                + "Content-ID: <envelope@sdi>\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        corpo.writeBytes(envelope("<IdentificativoSdI>111</IdentificativoSdI>"
+                + "<NomeFile>IT01234567890_00001_RC_001.xml</NomeFile><File>"
+                + "<xop:Include xmlns:xop=\"http://www.w3.org/2004/08/xop/include\" href=\"cid:notifica@sdi\"/>"
+                + "</File>").getBytes(StandardCharsets.UTF_8));
+        corpo.writeBytes(("\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-ID: <notifica@sdi>\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        corpo.writeBytes(NOTIFICA_ESITO.getBytes(StandardCharsets.UTF_8));
+        corpo.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        SoapMessage messaggio = messaggio("multipart/related; type=\"application/xop+xml\"; boundary=\"" + boundary
+                + "\"; start=\"<envelope@sdi>\"; start-info=\"text/xml\"", corpo.toByteArray());
+
+        service.ricevi(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, messaggio);
+
+        assertEquals(NOTIFICA_ESITO, Files.readString(tempDir.resolve("notifiche/IT01234567890_00001_RC_001.xml")));
+        verify(codaNotificheSdi).accoda(any());
+    }
+
+    @Test
+    void testNomeFileFuoriDallaDirectoryRifiutato() throws Exception {
+        SoapMessage messaggio = messaggio("text/xml; charset=utf-8", envelope(
+                "<IdentificativoSdI>111</IdentificativoSdI><NomeFile>../../etc/..</NomeFile><File>QUJD</File>"));
+
+        assertThrows(SdiException.class, () -> service.ricevi(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA, messaggio));
+
+        verifyNoInteractions(codaNotificheSdi);
+        try (var rimasti = Files.list(tempDir.resolve("notifiche"))) {
+            assertEquals(0, rimasti.count());
+        }
+    }
+
+    private static String envelope(String campi) {
+        return "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+                + "<types:notificaEsito xmlns:types=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types\">"
+                + campi + "</types:notificaEsito></soapenv:Body></soapenv:Envelope>";
+    }
+
+    private static SoapMessage messaggio(String contentType, String corpo) throws Exception {
+        return messaggio(contentType, corpo.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SoapMessage messaggio(String contentType, byte[] corpo) throws Exception {
+        MimeHeaders intestazioni = new MimeHeaders();
+        intestazioni.addHeader("Content-Type", contentType);
+        return new SaajSoapMessage(MessageFactory.newInstance().createMessage(intestazioni, new ByteArrayInputStream(corpo)));
+    }
+}
@@ -0,0 +1,214 @@
+package it.fatturazione.service.outbox;
+
+import it.fatturazione.entity.Fattura;
+import it.fatturazione.entity.OutboxSdi;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.exception.SdiNonDisponibileException;
+import it.fatturazione.repository.FatturaRepository;
+import it.fatturazione.repository.OutboxSdiRepository;
+import it.fatturazione.service.outbox.impl.OutboxSdiServiceImpl;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class OutboxSdiServiceImplTest {
+
+    private static final String FILE = "/var/fatture/IT01234567890_00001.xml.p7m";
+
+    @Mock
+    private OutboxSdiRepository outboxSdiRepository;
+
+    @Mock
+    private FatturaRepository fatturaRepository;
+
+    private OutboxSdiServiceImpl outboxSdiService;
+    private OutboxSdi outbox;
+    private Fattura fattura;
+
+    @BeforeEach
+    void setUp() {
+        outboxSdiService = new OutboxSdiServiceImpl(outboxSdiRepository, fatturaRepository);
+        ReflectionTestUtils.setField(outboxSdiService, "maxTentativi", 3);
+        ReflectionTestUtils.setField(outboxSdiService, "backoffIniziale", 1000L);
+        ReflectionTestUtils.setField(outboxSdiService, "backoffMassimo", 60000L);
+        ReflectionTestUtils.setField(outboxSdiService, "prenotazione", 300000L);
+
+        outbox = OutboxSdi.builder().id(1L).xmlFirmatoPath(FILE).nomeFile("IT01234567890_00001.xml.p7m")
+                .stato(OutboxSdi.StatoOutbox.IN_CORSO).tentativi(0).prossimoTentativo(LocalDateTime.now()).build();
+        fattura = new Fattura();
+        fattura.setXmlFirmatoPath(FILE);
+        fattura.setStato(Fattura.StatoFattura.IN_CODA_INVIO);
+        lenient().when(outboxSdiRepository.findById(1L)).thenReturn(Optional.of(outbox));
+        lenient().when(fatturaRepository.findAllByXmlFirmatoPath(FILE)).thenReturn(List.of(fattura));
+    }
+
+    @Test
+    void testAccodaNonDuplicaUnInvioGiaInCoda() {
+        fattura.setStato(Fattura.StatoFattura.FIRMATA);
+        when(outboxSdiRepository.existsByXmlFirmatoPathAndStatoIn(eq(FILE), anyCollection())).thenReturn(false, true);
+
+        outboxSdiService.accoda(List.of(fattura));
+        outboxSdiService.accoda(List.of(fattura));
+
+        assertEquals(Fattura.StatoFattura.IN_CODA_INVIO, fattura.getStato());
+        verify(outboxSdiRepository, times(1)).save(any(OutboxSdi.class));
+    }
+
+    @Test
+    void testGuastoDiReteVieneRitentatoConBackoff() {
+        LocalDateTime prima = LocalDateTime.now();
+        outboxSdiService.registraErrore(1L, new SdiException("Errore durante l'invio della fattura",
+                new ConnectException("Connection refused")));
+
+        assertEquals(OutboxSdi.StatoOutbox.IN_ATTESA, outbox.getStato());
+        assertEquals(1, outbox.getTentativi());
+        // Primo tentativo: tra metà e tutto il backoff iniziale
+        assertFalse(outbox.getProssimoTentativo().isBefore(prima.plusNanos(500_000_000)));
+        assertFalse(outbox.getProssimoTentativo().isAfter(LocalDateTime.now().plusSeconds(1)));
+        assertEquals(Fattura.StatoFattura.IN_CODA_INVIO, fattura.getStato());
+    }
+
+    @Test
+    void testRifiutoDelLimitatoreNonConsumaTentativi() {
+        outboxSdiService.registraErrore(1L, new SdiNonDisponibileException("SDI non disponibile"));
+
+        assertEquals(OutboxSdi.StatoOutbox.IN_ATTESA, outbox.getStato());
+        assertEquals(0, outbox.getTentativi());
+    }
+
+    @Test
+    void testTentativiEsauritiOErroreSdiFinisconoTraGliScartati() {
+        outbox.setTentativi(2);
+        outboxSdiService.registraErrore(1L, new SdiException("Errore HTTP", new HttpResponseException(503, "Service Unavailable")));
+        assertEquals(OutboxSdi.StatoOutbox.SCARTATO, outbox.getStato());
+        assertEquals(Fattura.StatoFattura.ERRORE, fattura.getStato());
+
+        // Fault SOAP: nessun nuovo tentativo
+        outbox.setTentativi(0);
+        outbox.setStato(OutboxSdi.StatoOutbox.IN_CORSO);
+        fattura.setStato(Fattura.StatoFattura.IN_CODA_INVIO);
+        outboxSdiService.registraErrore(1L, new SdiException("Errore SDI: file non valido"));
+        assertEquals(OutboxSdi.StatoOutbox.SCARTATO, outbox.getStato());
+        assertEquals(1, outbox.getTentativi());
+        assertTrue(fattura.getNoteErrore().contains("file non valido"));
+    }
+
+    @Test
+    void testTimeoutInAttesaDellaRispostaNonVieneRitentato() {
+        outboxSdiService.registraErrore(1L, new SdiException("Errore durante l'invio della fattura",
+                new SocketTimeoutException("Read timed out")));
+
+        assertEquals(OutboxSdi.StatoOutbox.DA_VERIFICARE, outbox.getStato());
+        assertEquals(Fattura.StatoFattura.DA_VERIFICARE, fattura.getStato());
+        assertTrue(fattura.getNoteErrore().contains("Verificare su SDI"));
+        // Reinviare richiede la verifica dell'operatore
+        assertThrows(IllegalStateException.class, () -> outboxSdiService.accoda(List.of(fattura)));
+    }
+
+    @Test
+    void testPrenotazioneScadutaNonVieneReinviata() {
+        OutboxSdi nuovo = OutboxSdi.builder().id(2L).xmlFirmatoPath("/var/fatture/altro.xml.p7m").nomeFile("altro.xml.p7m")
+                .stato(OutboxSdi.StatoOutbox.IN_ATTESA).tentativi(0).prossimoTentativo(LocalDateTime.now()).build();
+        when(outboxSdiRepository.findDaInviareForUpdate(any(), eq(10))).thenReturn(List.of(outbox, nuovo));
+        when(outboxSdiRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        assertEquals(List.of(nuovo), outboxSdiService.prenota(10));
+
+        assertEquals(OutboxSdi.StatoOutbox.DA_VERIFICARE, outbox.getStato());
+        assertEquals(Fattura.StatoFattura.DA_VERIFICARE, fattura.getStato());
+        assertEquals(OutboxSdi.StatoOutbox.IN_CORSO, nuovo.getStato());
+    }
+
+    @Test
+    void testNotificaDelFileDaVerificareAssociaLIdentificativo() {
+        fattura.setStato(Fattura.StatoFattura.DA_VERIFICARE);
+        outbox.setStato(OutboxSdi.StatoOutbox.DA_VERIFICARE);
+        when(fatturaRepository.findAllByStatoInAndNomeFilePerAggiornamento(anyCollection(), eq("IT01234567890_00001.xml.p7m")))
+                .thenReturn(List.of(fattura));
+        when(outboxSdiRepository.findAllByStatoAndFile(OutboxSdi.StatoOutbox.DA_VERIFICARE, FILE)).thenReturn(List.of(outbox));
+
+        assertEquals(List.of(fattura), outboxSdiService.associaNotifica("123456", "IT01234567890_00001.xml.p7m"));
+
+        assertEquals("123456", fattura.getIdentificativoSdi());
+        assertEquals(Fattura.StatoFattura.INVIATA, fattura.getStato());
+        assertEquals(OutboxSdi.StatoOutbox.INVIATO, outbox.getStato());
+        assertEquals("123456", outbox.getIdentificativoSdi());
+    }
+
+    @Test
+    void testNotificaDelFileDiUnArchivioAssociaIlSuoIdentificativo() {
+        // SDI notifica ogni file dell'archivio con il suo NomeFile e un proprio IdentificativoSdI
+        fattura.setStato(Fattura.StatoFattura.INVIATA);
+        fattura.setIdentificativoSdi("100");
+        when(fatturaRepository.findAllByStatoInAndNomeFilePerAggiornamento(anyCollection(), eq("IT01234567890_00001.xml.p7m")))
+                .thenReturn(List.of(fattura));
+        when(outboxSdiRepository.existsArchivioByIdentificativoSdi("100")).thenReturn(true, false);
+
+        assertEquals(List.of(fattura), outboxSdiService.associaNotifica("101", "IT01234567890_00001.xml.p7m"));
+        assertEquals("101", fattura.getIdentificativoSdi());
+        assertEquals(Fattura.StatoFattura.INVIATA, fattura.getStato());
+
+        // Inviata da sola: l'identificativo di SDI non viene sostituito
+        fattura.setIdentificativoSdi("100");
+        assertTrue(outboxSdiService.associaNotifica("102", "IT01234567890_00001.xml.p7m").isEmpty());
+        assertEquals("100", fattura.getIdentificativoSdi());
+    }
+
+    @Test
+    void testFatturaGiaRicevutaDaSdiNonVieneReinviata() {
+        fattura.setStato(Fattura.StatoFattura.CONSEGNATA);
+        fattura.setIdentificativoSdi("123456");
+        assertThrows(IllegalStateException.class, () -> outboxSdiService.accoda(List.of(fattura)));
+        assertEquals("123456", fattura.getIdentificativoSdi());
+
+        // Dopo uno scarto l'invio riparte senza il vecchio identificativo
+        fattura.setStato(Fattura.StatoFattura.SCARTATA);
+        outboxSdiService.accoda(List.of(fattura));
+        assertEquals(Fattura.StatoFattura.IN_CODA_INVIO, fattura.getStato());
+        assertNull(fattura.getIdentificativoSdi());
+    }
+
+    @Test
+    void testInvioRiuscitoAggiornaLeFattureInCoda() {
+        outboxSdiService.registraInvio(1L, "123456");
+
+        assertEquals(OutboxSdi.StatoOutbox.INVIATO, outbox.getStato());
+        assertEquals(Fattura.StatoFattura.INVIATA, fattura.getStato());
+        assertEquals("123456", fattura.getIdentificativoSdi());
+        assertNotNull(fattura.getDataInvio());
+    }
+
+    @Test
+    void testInvioArchivioRiportaIFileScartati() {
+        String scartato = "/tmp/fatture/IT01234567890_00002.xml.p7m";
+        outbox.setXmlFirmatoPath("IT01234567890_00010.zip");
+        outbox.setFileArchivio(new ArrayList<>(List.of(FILE, scartato)));
+        Fattura esclusa = new Fattura();
+        esclusa.setXmlFirmatoPath(scartato);
+        esclusa.setStato(Fattura.StatoFattura.IN_CODA_INVIO);
+        when(fatturaRepository.findAllByXmlFirmatoPathIn(List.of(FILE, scartato))).thenReturn(List.of(fattura, esclusa));
+
+        outboxSdiService.registraInvio(1L, "123456", Map.of(scartato, "File firmato non trovato o non leggibile"));
+
+        assertEquals(Fattura.StatoFattura.INVIATA, fattura.getStato());
+        assertEquals(Fattura.StatoFattura.ERRORE, esclusa.getStato());
+        assertTrue(esclusa.getNoteErrore().contains("non trovato"));
+    }
+}
@@ -0,0 +1,93 @@
+package it.fatturazione.service.progressivo;
+
+import it.fatturazione.service.cache.RedisService;
+import it.fatturazione.service.progressivo.impl.ProgressivoInvioServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ProgressivoInvioServiceImplTest {
+
+    @Mock
+    private RedisService redisService;
+
+    private ProgressivoInvioServiceImpl progressivoInvioService;
+    private final ConcurrentHashMap<String, AtomicLong> contatori = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        progressivoInvioService = new ProgressivoInvioServiceImpl(redisService);
+        ReflectionTestUtils.setField(progressivoInvioService, "dimensioneBlocco", 10);
+        // INCRBY simulato: contatore separato per chiave
+        lenient().when(redisService.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                contatori.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong())
+                        .addAndGet(invocation.getArgument(1)));
+    }
+
+    @Test
+    void testProgressiviConsecutiviConUnIncrementoPerBlocco() {
+        List<String> progressivi = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            progressivi.add(progressivoInvioService.prossimo("AAAAAA11A11A111A"));
+        }
+
+        assertEquals("00001", progressivi.get(0));
+        assertEquals("0000A", progressivi.get(9));
+        assertEquals("0000P", progressivi.get(24));
+        verify(redisService, times(3)).increment("progressivo-invio:AAAAAA11A11A111A", 10);
+    }
+
+    @Test
+    void testNumerazioneSeparataPerTrasmittente() {
+        assertEquals("00001", progressivoInvioService.prossimo("AAAAAA11A11A111A"));
+        assertEquals("00001", progressivoInvioService.prossimo("BBBBBB22B22B222B"));
+        assertEquals("00002", progressivoInvioService.prossimo("AAAAAA11A11A111A"));
+    }
+
+    @Test
+    void testNessunDuplicatoTraThreadENodi() throws Exception {
+        // Due istanze sulla stessa chiave Redis simulano due nodi
+        ProgressivoInvioServiceImpl altroNodo = new ProgressivoInvioServiceImpl(redisService);
+        ReflectionTestUtils.setField(altroNodo, "dimensioneBlocco", 7);
+
+        Set<String> emessi = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                ProgressivoInvioService nodo = t % 2 == 0 ? progressivoInvioService : altroNodo;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        assertTrue(emessi.add(nodo.prossimo("AAAAAA11A11A111A")));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(16000, emessi.size());
+        assertTrue(emessi.stream().allMatch(p -> p.matches("[0-9A-Z]{5}")));
+    }
+}
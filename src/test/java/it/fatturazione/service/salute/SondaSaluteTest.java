@@ -0,0 +1,96 @@
+package it.fatturazione.service.salute;
+
+import it.fatturazione.service.FirmaDigitaleService;
+import it.fatturazione.service.SdiService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.net.ConnectException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class SondaSaluteTest {
+
+    @Mock
+    private SdiService sdiService;
+    @Mock
+    private DataSource dataSource;
+    @Mock
+    private Connection connection;
+    @Mock
+    private RedisConnectionFactory redisConnectionFactory;
+    @Mock
+    private RedisConnection redisConnection;
+    @Mock
+    private FirmaDigitaleService firmaDigitaleService;
+
+    private SondaSalute sonda;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sonda = new SondaSalute(sdiService, dataSource, redisConnectionFactory, firmaDigitaleService);
+        ReflectionTestUtils.setField(sonda, "campioni", 10);
+        ReflectionTestUtils.setField(sonda, "sogliaLenta", 2000L);
+        ReflectionTestUtils.setField(sonda, "timeoutDb", 1);
+        lenient().when(dataSource.getConnection()).thenReturn(connection);
+        lenient().when(connection.isValid(anyInt())).thenReturn(true);
+        lenient().when(redisConnectionFactory.getConnection()).thenReturn(redisConnection);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSdiNonRaggiungibileNonTogliePronto() throws Exception {
+        assertFalse(sonda.pronto());
+        doThrow(new ConnectException("Connection refused")).when(sdiService).sondaServizio();
+
+        sonda.verifica();
+
+        assertTrue(sonda.pronto());
+        Map<String, Object> sdi = (Map<String, Object>) sonda.metriche().get("sdi");
+        assertEquals("KO", sdi.get("stato"));
+        assertEquals("Connection refused", sdi.get("errore"));
+        assertEquals("OK", ((Map<String, Object>) sonda.metriche().get("redis")).get("stato"));
+        verify(redisConnection).ping();
+
+        ReflectionTestUtils.setField(sonda, "sdiObbligatorio", true);
+        sonda.verifica();
+        assertFalse(sonda.pronto());
+    }
+
+    @Test
+    void testDatabaseNonDisponibileTogliePronto() throws Exception {
+        sonda.verifica();
+        assertTrue(sonda.pronto());
+
+        when(dataSource.getConnection()).thenThrow(new SQLException("Connection refused"));
+        sonda.verifica();
+
+        assertFalse(sonda.pronto());
+        verify(sdiService, times(2)).sondaServizio();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testPercentiliSulleUltimeVerifiche() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            sonda.verifica();
+        }
+        Map<String, Object> db = (Map<String, Object>) sonda.metriche().get("db");
+        assertEquals(12L, db.get("conteggio"));
+        assertEquals(0L, db.get("verificheFallite"));
+        assertTrue((double) db.get("p99Ms") >= (double) db.get("p50Ms"));
+    }
+}
@@ -0,0 +1,87 @@
+package it.fatturazione.service.sdi;
+
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.SOAPConstants;
+import jakarta.xml.soap.SOAPElement;
+import jakarta.xml.soap.SOAPMessage;
+import org.apache.hc.core5.http.HttpEntity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnvelopeFileSdIBaseTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void daFileProduceEnvelopeLeggibileConContentLengthEsatta() throws Exception {
+        // Dimensioni che coprono tutti i casi di padding base64 e più blocchi di lettura
+        for (int dimensione : new int[]{0, 1, 2, 3, 100_000, 3 * 16 * 1024 + 1}) {
+            byte[] contenuto = new byte[dimensione];
+            new Random(dimensione).nextBytes(contenuto);
+            Path file = Files.write(tempDir.resolve("IT01234567890_" + dimensione + ".xml.p7m"), contenuto);
+
+            HttpEntity entity = EnvelopeFileSdIBase.daFile(file.getFileName().toString(), file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+
+            assertEquals(entity.getContentLength(), out.size());
+            SOAPElement fileSdIBase = leggiFileSdIBase(out.toByteArray());
+            assertEquals(file.getFileName().toString(), figlio(fileSdIBase, "NomeFile"));
+            assertArrayEquals(contenuto, Base64.getDecoder().decode(figlio(fileSdIBase, "File")));
+        }
+    }
+
+    @Test
+    void daArchivioContieneTuttiIFile() throws Exception {
+        Path primo = Files.writeString(tempDir.resolve("IT01234567890_00001.xml.p7m"), "primo");
+        Path secondo = Files.writeString(tempDir.resolve("IT01234567890_00002.xml.p7m"), "secondo");
+
+        HttpEntity entity = EnvelopeFileSdIBase.daArchivio("IT01234567890_00003.zip", List.of(primo, secondo));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        assertEquals(-1, entity.getContentLength());
+        byte[] zip = Base64.getDecoder().decode(figlio(leggiFileSdIBase(out.toByteArray()), "File"));
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("IT01234567890_00001.xml.p7m", entry.getName());
+            assertEquals("primo", new String(in.readAllBytes()));
+            entry = in.getNextEntry();
+            assertEquals("IT01234567890_00002.xml.p7m", entry.getName());
+            assertEquals("secondo", new String(in.readAllBytes()));
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    private SOAPElement leggiFileSdIBase(byte[] envelope) throws Exception {
+        SOAPMessage message = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL)
+                .createMessage(null, new ByteArrayInputStream(envelope));
+        SOAPElement fileSdIBase = (SOAPElement) message.getSOAPBody().getChildElements().next();
+        assertEquals("fileSdIBase", fileSdIBase.getLocalName());
+        return fileSdIBase;
+    }
+
+    private String figlio(SOAPElement padre, String nome) {
+        Iterator<?> it = padre.getChildElements();
+        while (it.hasNext()) {
+            if (it.next() instanceof SOAPElement element && nome.equals(element.getLocalName())) {
+                return element.getTextContent();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package it.fatturazione.service.sdi;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LettoreMultipartRelatedTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void leggeLaRichiestaMtomScrittaDaEnvelopeFileSdIBase() throws Exception {
+        // Contenuto binario che include sequenze simili al delimitatore
+        byte[] contenuto = new byte[200_000];
+        new Random(7).nextBytes(contenuto);
+        byte[] quasiDelimitatore = "\r\n--uuid:".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(quasiDelimitatore, 0, contenuto, 1000, quasiDelimitatore.length);
+        Path file = Files.write(tempDir.resolve("IT01234567890_00001.xml.p7m"), contenuto);
+
+        HttpEntity entity = EnvelopeFileSdIBase.mtomDaFile(file.getFileName().toString(), file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertEquals(entity.getContentLength(), out.size());
+
+        String contentType = entity.getContentType();
+        assertTrue(contentType.startsWith("multipart/related"));
+        LettoreMultipartRelated lettore = new LettoreMultipartRelated(new ByteArrayInputStream(out.toByteArray()),
+                LettoreMultipartRelated.parametro(contentType, "boundary"));
+
+        LettoreMultipartRelated.Parte envelope = lettore.prossima();
+        assertEquals(LettoreMultipartRelated.normalizzaContentId(
+                LettoreMultipartRelated.parametro(contentType, "start")), envelope.contentId());
+        String xml = new String(envelope.contenuto().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<tra:NomeFile>IT01234567890_00001.xml.p7m</tra:NomeFile>"));
+        assertTrue(xml.contains("href=\"cid:" + "file@fatturazione.it\""));
+
+        LettoreMultipartRelated.Parte allegato = lettore.prossima();
+        assertEquals("file@fatturazione.it", allegato.contentId());
+        assertEquals("application/octet-stream", allegato.contentType());
+        assertArrayEquals(contenuto, allegato.contenuto().readAllBytes());
+        assertNull(lettore.prossima());
+    }
+
+    @Test
+    void ignoraPreamboloEPartiNonLette() throws Exception {
+        String corpo = "preambolo\r\n"
+                + "--b1\r\nContent-ID: <root>\r\n\r\n<root/>\r\n"
+                + "--b1\r\nContent-ID: <a%40b>\r\n\r\nprimo\r\n"
+                + "--b1\r\nContent-ID: <c>\r\n\r\nsecondo\r\n"
+                + "--b1--\r\n";
+        LettoreMultipartRelated lettore = new LettoreMultipartRelated(
+                new ByteArrayInputStream(corpo.getBytes(StandardCharsets.US_ASCII)), "b1");
+
+        assertEquals("root", lettore.prossima().contentId());
+        assertEquals("a@b", lettore.prossima().contentId());
+        LettoreMultipartRelated.Parte ultima = lettore.prossima();
+        assertEquals("secondo", new String(ultima.contenuto().readAllBytes(), StandardCharsets.US_ASCII));
+        assertNull(lettore.prossima());
+    }
+}
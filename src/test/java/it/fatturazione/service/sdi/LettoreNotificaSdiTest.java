@@ -0,0 +1,71 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.entity.NotificaSdi;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LettoreNotificaSdiTest {
+
+    private static final String NS = "xmlns:types=\"http://www.fatturapa.gov.it/sdi/messaggi/v1.0\" versione=\"1.0\"";
+
+    @Test
+    void testNotificaScartoConListaErrori() throws Exception {
+        LettoreNotificaSdi.ContenutoNotifica contenuto = leggi("<types:NotificaScarto " + NS + ">"
+                + "<IdentificativoSdI>111</IdentificativoSdI><NomeFile>IT01234567890_00001.xml.p7m</NomeFile>"
+                + "<Hash>abc</Hash><DataOraRicezione>2026-01-15T10:30:00.000+01:00</DataOraRicezione>"
+                + "<ListaErrori>"
+                + "<Errore><Codice>00200</Codice><Descrizione>File non conforme al formato</Descrizione></Errore>"
+                + "<Errore><Codice>00305</Codice><Descrizione>IdFiscaleIVA del cessionario non valido</Descrizione>"
+                + "<Suggerimento>Verificare la partita IVA</Suggerimento></Errore>"
+                + "</ListaErrori><MessageId>9001</MessageId></types:NotificaScarto>");
+
+        assertEquals("111", contenuto.identificativoSdi());
+        assertEquals("IT01234567890_00001.xml.p7m", contenuto.nomeFile());
+        assertEquals("9001", contenuto.messageId());
+        assertEquals(OffsetDateTime.parse("2026-01-15T10:30:00.000+01:00")
+                .atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(), contenuto.dataOraRicezione());
+        assertEquals(List.of(
+                new LettoreNotificaSdi.Errore("00200", "File non conforme al formato", null),
+                new LettoreNotificaSdi.Errore("00305", "IdFiscaleIVA del cessionario non valido",
+                        "Verificare la partita IVA")), contenuto.errori());
+        assertNull(contenuto.descrizione());
+        assertEquals("File scartato da SDI: 00200 - File non conforme al formato; "
+                        + "00305 - IdFiscaleIVA del cessionario non valido",
+                contenuto.messaggio(NotificaSdi.TipoNotifica.NOTIFICA_SCARTO));
+    }
+
+    @Test
+    void testNotificaEsitoERicevutaConsegna() throws Exception {
+        LettoreNotificaSdi.ContenutoNotifica esito = leggi("<types:NotificaEsito " + NS + ">"
+                + "<IdentificativoSdI>111</IdentificativoSdI><RiferimentoFattura><NumeroFattura>1</NumeroFattura>"
+                + "</RiferimentoFattura><EsitoCommittente><IdentificativoSdI>111</IdentificativoSdI>"
+                + "<Esito>EC02</Esito><Descrizione>Importo errato</Descrizione></EsitoCommittente>"
+                + "<MessageId>9002</MessageId></types:NotificaEsito>");
+        assertEquals("EC02", esito.esito());
+        assertEquals("Fattura rifiutata dal committente (EC02): Importo errato",
+                esito.messaggio(NotificaSdi.TipoNotifica.NOTIFICA_ESITO));
+
+        // La Descrizione del destinatario non è la descrizione della notifica
+        LettoreNotificaSdi.ContenutoNotifica ricevuta = leggi("<types:RicevutaConsegna " + NS + ">"
+                + "<IdentificativoSdI>111</IdentificativoSdI><DataOraRicezione>2026-01-15T10:30:00</DataOraRicezione>"
+                + "<DataOraConsegna>2026-01-15T10:35:00</DataOraConsegna>"
+                + "<Destinatario><Codice>ABC1234</Codice><Descrizione>Cliente Test</Descrizione></Destinatario>"
+                + "<MessageId>9003</MessageId></types:RicevutaConsegna>");
+        assertEquals(LocalDateTime.of(2026, 1, 15, 10, 35), ricevuta.dataOraConsegna());
+        assertNull(ricevuta.descrizione());
+        assertTrue(ricevuta.errori().isEmpty());
+        assertNull(ricevuta.esito());
+    }
+
+    private static LettoreNotificaSdi.ContenutoNotifica leggi(String xml) throws Exception {
+        return LettoreNotificaSdi.leggi(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
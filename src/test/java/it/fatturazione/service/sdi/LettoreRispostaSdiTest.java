@@ -0,0 +1,70 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LettoreRispostaSdiTest {
+
+    private static final String APERTURA = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>";
+    private static final String CHIUSURA = "</soapenv:Body></soapenv:Envelope>";
+
+    @Test
+    void leggeIdentificativoSdi() throws Exception {
+        String risposta = APERTURA
+                + "<ns2:RispostaSdIRiceviFile xmlns:ns2=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0/types\">"
+                + "<IdentificativoSdI> 123456789 </IdentificativoSdI>"
+                + "<DataOraRicezione>2026-01-31T10:00:00.000+01:00</DataOraRicezione>"
+                + "</ns2:RispostaSdIRiceviFile>" + CHIUSURA;
+
+        assertEquals("123456789", LettoreRispostaSdi.leggiIdentificativoSdi(stream(risposta)));
+    }
+
+    @Test
+    void faultDiventaSdiException() {
+        String risposta = APERTURA + "<soapenv:Fault><faultcode>soapenv:Server</faultcode>"
+                + "<faultstring>Servizio non disponibile</faultstring></soapenv:Fault>" + CHIUSURA;
+
+        SdiException e = assertThrows(SdiException.class,
+                () -> LettoreRispostaSdi.leggiIdentificativoSdi(stream(risposta)));
+        assertEquals("Errore SDI: Servizio non disponibile", e.getMessage());
+    }
+
+    @Test
+    void decodificaIlFileInlineABlocchi() throws Exception {
+        byte[] contenuto = new byte[150_001];
+        new Random(3).nextBytes(contenuto);
+        // Base64 MIME con interruzioni di riga, come prodotto da alcuni server
+        String fileBase64 = Base64.getMimeEncoder().encodeToString(contenuto);
+        String risposta = APERTURA + "<ns2:rispostaRiceviNotifica xmlns:ns2=\"urn:test\">"
+                + "<NomeFile>IT01234567890_00001_RC_001.xml</NomeFile><File>" + fileBase64 + "</File>"
+                + "</ns2:rispostaRiceviNotifica>" + CHIUSURA;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertNull(LettoreRispostaSdi.leggiFile(stream(risposta), out));
+        assertArrayEquals(contenuto, out.toByteArray());
+    }
+
+    @Test
+    void restituisceIlRiferimentoXop() throws Exception {
+        String risposta = APERTURA + "<ns2:rispostaRiceviNotifica xmlns:ns2=\"urn:test\"><File>"
+                + "<xop:Include xmlns:xop=\"http://www.w3.org/2004/08/xop/include\" href=\"cid:notifica%40sdi\"/>"
+                + "</File></ns2:rispostaRiceviNotifica>" + CHIUSURA;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals("notifica@sdi", LettoreRispostaSdi.leggiFile(stream(risposta), out));
+        assertEquals(0, out.size());
+    }
+
+    private InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,106 @@
+package it.fatturazione.service.sdi;
+
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.exception.SdiNonDisponibileException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LimitatoreSdiTest {
+
+    private LimitatoreSdi limitatore;
+
+    @BeforeEach
+    void setUp() {
+        limitatore = new LimitatoreSdi();
+        ReflectionTestUtils.setField(limitatore, "limiteIniziale", 2);
+        ReflectionTestUtils.setField(limitatore, "limiteMinimo", 1);
+        ReflectionTestUtils.setField(limitatore, "limiteMassimo", 10);
+        ReflectionTestUtils.setField(limitatore, "latenzaObiettivo", 50L);
+        ReflectionTestUtils.setField(limitatore, "fattoreRiduzione", 0.5);
+        ReflectionTestUtils.setField(limitatore, "erroriPerApertura", 3);
+        ReflectionTestUtils.setField(limitatore, "apertura", 100L);
+        limitatore.init();
+    }
+
+    @Test
+    void testRifiutaOltreIlLimiteECresceConRisposteVeloci() {
+        CompletableFuture<String> prima = new CompletableFuture<>();
+        CompletableFuture<String> seconda = new CompletableFuture<>();
+        CompletableFuture<String> r1 = limitatore.esegui(() -> prima);
+        CompletableFuture<String> r2 = limitatore.esegui(() -> seconda);
+        CompletableFuture<String> r3 = limitatore.esegui(() -> CompletableFuture.completedFuture("no"));
+
+        CompletionException e = assertThrows(CompletionException.class, r3::join);
+        assertInstanceOf(SdiNonDisponibileException.class, e.getCause());
+        assertEquals(2, limitatore.metriche().get("inVolo"));
+
+        prima.complete("ok");
+        seconda.complete("ok");
+        assertEquals("ok", r1.join());
+        assertEquals("ok", r2.join());
+        assertEquals(0, limitatore.metriche().get("inVolo"));
+        assertEquals(1L, limitatore.metriche().get("rifiutate"));
+
+        // Due risposte veloci a limite pieno: +1/limite ciascuna
+        for (int i = 0; i < 4; i++) {
+            CompletableFuture<String> a = new CompletableFuture<>();
+            CompletableFuture<String> b = new CompletableFuture<>();
+            limitatore.esegui(() -> a);
+            limitatore.esegui(() -> b);
+            a.complete("ok");
+            b.complete("ok");
+        }
+        assertTrue(limitatore.limite() > 2);
+    }
+
+    @Test
+    void testRisposteLenteRiduconoIlLimite() throws Exception {
+        ReflectionTestUtils.setField(limitatore, "limiteIniziale", 8);
+        limitatore.init();
+
+        limitatore.esegui(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                Thread.sleep(80);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "lenta";
+        })).join();
+
+        assertEquals(4, limitatore.limite());
+    }
+
+    @Test
+    void testCircuitoSiApreEDopoLaProvaSiRichiude() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<String> r = limitatore.esegui(() -> CompletableFuture.failedFuture(
+                    new SdiException("Errore durante l'invio", new ConnectException("Connection refused"))));
+            assertThrows(CompletionException.class, r::join);
+        }
+        assertEquals(LimitatoreSdi.StatoCircuito.APERTO, limitatore.stato());
+
+        boolean[] chiamata = {false};
+        CompletableFuture<String> rifiutata = limitatore.esegui(() -> {
+            chiamata[0] = true;
+            return CompletableFuture.completedFuture("ok");
+        });
+        assertInstanceOf(SdiNonDisponibileException.class, assertThrows(CompletionException.class, rifiutata::join).getCause());
+        assertFalse(chiamata[0]);
+
+        Thread.sleep(150);
+        CompletableFuture<String> prova = new CompletableFuture<>();
+        CompletableFuture<String> r = limitatore.esegui(() -> prova);
+        assertEquals(LimitatoreSdi.StatoCircuito.SEMIAPERTO, limitatore.stato());
+        // Un fault SOAP è comunque una risposta: il circuito si richiude
+        prova.completeExceptionally(new SdiException("Errore SDI: file non valido"));
+        assertThrows(CompletionException.class, r::join);
+        assertEquals(LimitatoreSdi.StatoCircuito.CHIUSO, limitatore.stato());
+    }
+}
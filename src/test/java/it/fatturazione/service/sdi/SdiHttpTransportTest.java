@@ -0,0 +1,131 @@
+package it.fatturazione.service.sdi;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SdiHttpTransportTest {
+
+    private HttpServer server;
+    private SdiHttpTransport transport;
+    private ExecutorService serverExecutor;
+    private final Set<Integer> porteClient = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ricevi_file", exchange -> {
+            porteClient.add(exchange.getRemoteAddress().getPort());
+            byte[] corpo = exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, corpo.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(corpo);
+            }
+        });
+        server.createContext("/lento", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] corpo = exchange.getRequestURI().getQuery().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, corpo.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(corpo);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(20);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        transport = new SdiHttpTransport();
+        ReflectionTestUtils.setField(transport, "timeout", 5000);
+        ReflectionTestUtils.setField(transport, "maxConnessioni", 4);
+        ReflectionTestUtils.setField(transport, "maxConnessioniPerRoute", 2);
+        ReflectionTestUtils.setField(transport, "attesaConnessione", 1000L);
+        ReflectionTestUtils.setField(transport, "connessioniInattive", 30000L);
+        ReflectionTestUtils.setField(transport, "truststorePath", "");
+        ReflectionTestUtils.setField(transport, "keystorePath", "");
+        ReflectionTestUtils.setField(transport, "threadIo", 1);
+        ReflectionTestUtils.setField(transport, "threadElaborazione", 1);
+        ReflectionTestUtils.setField(transport, "attesaConnessioneAsync", 10000L);
+        transport.init();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        transport.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void testRichiesteSuccessiveRiusanoLaConnessione() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ricevi_file";
+        for (int i = 0; i < 5; i++) {
+            String risposta = transport.post(url, new StringEntity("<richiesta" + i + "/>",
+                    ContentType.create("text/xml", StandardCharsets.UTF_8)),
+                    response -> EntityUtils.toString(response.getEntity()));
+            assertEquals("<richiesta" + i + "/>", risposta);
+        }
+
+        assertEquals(1, porteClient.size());
+        assertEquals(5L, transport.metriche().get("richieste"));
+        assertEquals(0, transport.metriche().get("connessioniInUso"));
+        assertEquals(1, transport.metriche().get("connessioniDisponibili"));
+    }
+
+    @Test
+    void testRichiesteAsincroneConcorrentiSuPochiThread() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/lento?";
+        Set<String> threadCompletamento = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<String>> risposte = new ArrayList<>();
+
+        long inizio = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            risposte.add(transport.postAsync(url + i, AsyncEntityProducers.create("<richiesta/>"))
+                    .thenApply(risposta -> {
+                        threadCompletamento.add(Thread.currentThread().getName());
+                        try (risposta; InputStream in = risposta.apriCorpo()) {
+                            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(String.valueOf(i), risposte.get(i).get(10, TimeUnit.SECONDS));
+        }
+        long durataMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio);
+
+        // 20 richieste da 300 ms con 2 connessioni per route: 10 turni, non 20 thread bloccati
+        assertTrue(durataMs < 20 * 300, "Durata " + durataMs + " ms");
+        assertEquals(1, threadCompletamento.size());
+        assertEquals(0, transport.metriche().get("async.richiesteInVolo"));
+    }
+}
@@ -0,0 +1,122 @@
+package it.fatturazione.service.sdi.simulatore;
+
+import it.fatturazione.entity.NotificaSdi;
+import it.fatturazione.exception.SdiException;
+import it.fatturazione.service.FatturaService;
+import it.fatturazione.service.sdi.EnvelopeFileSdIBase;
+import it.fatturazione.service.sdi.LettoreRispostaSdi;
+import it.fatturazione.service.sdi.SdiHttpTransport;
+import org.apache.hc.core5.http.HttpEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class SimulatoreSdiTest {
+
+    @Mock
+    private FatturaService fatturaService;
+
+    @Mock
+    private SdiHttpTransport sdiHttpTransport;
+
+    @TempDir
+    Path tempDir;
+
+    private SimulatoreSdi simulatore;
+
+    @BeforeEach
+    void setUp() {
+        simulatore = new SimulatoreSdi(fatturaService, sdiHttpTransport);
+        ReflectionTestUtils.setField(simulatore, "latenza", 0L);
+        ReflectionTestUtils.setField(simulatore, "jitter", 0L);
+        ReflectionTestUtils.setField(simulatore, "tassoErroreHttp", 0.0);
+        ReflectionTestUtils.setField(simulatore, "tassoFault", 0.0);
+        ReflectionTestUtils.setField(simulatore, "script", "RC,NE:EC02");
+        ReflectionTestUtils.setField(simulatore, "ritardoNotifiche", 10L);
+        ReflectionTestUtils.setField(simulatore, "threadNotifiche", 1);
+        simulatore.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        simulatore.shutdown();
+    }
+
+    @Test
+    void testFileAccettatoGeneraLeNotificheDelloScript() throws Exception {
+        Path file = Files.write(tempDir.resolve("IT01234567890_00001.xml.p7m"), new byte[1000]);
+
+        // Stesse richieste prodotte dal client, anche in MTOM
+        for (HttpEntity richiesta : new HttpEntity[]{
+                EnvelopeFileSdIBase.daFile(file.getFileName().toString(), file),
+                EnvelopeFileSdIBase.mtomDaFile(file.getFileName().toString(), file)}) {
+            ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+            richiesta.writeTo(corpo);
+            SimulatoreSdi.Risposta risposta = simulatore.riceviFile(richiesta.getContentType(),
+                    new ByteArrayInputStream(corpo.toByteArray()));
+            assertEquals(200, risposta.codice());
+            assertNotNull(LettoreRispostaSdi.leggiIdentificativoSdi(new ByteArrayInputStream(risposta.corpo())));
+        }
+
+        // Due file per due notifiche ciascuno, nell'ordine dello script
+        ArgumentCaptor<String> identificativi = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<String> nomiFile = ArgumentCaptor.forClass(String.class);
+        verify(fatturaService, timeout(2000).times(2)).processaNotifica(identificativi.capture(), nomiFile.capture(),
+                eq(NotificaSdi.TipoNotifica.RICEVUTA_CONSEGNA), eq("Fattura consegnata al destinatario"));
+        verify(fatturaService, timeout(2000).times(2)).processaNotifica(anyString(), anyString(),
+                eq(NotificaSdi.TipoNotifica.NOTIFICA_ESITO), eq("Fattura rifiutata dal committente (EC02)"));
+        assertEquals("IT01234567890_00001_RC_001.xml", nomiFile.getValue());
+    }
+
+    @Test
+    void testNotificaScaricabileFinoAllaConsegna() throws Exception {
+        // Consegna pianificata lontano: la notifica resta scaricabile
+        ReflectionTestUtils.setField(simulatore, "ritardoNotifiche", 60000L);
+        String envelope = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+                + "<tra:fileSdIBase xmlns:tra=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0\">"
+                + "<tra:NomeFile>IT01234567890_00002.xml.p7m</tra:NomeFile><tra:File>AAAA</tra:File>"
+                + "</tra:fileSdIBase></soapenv:Body></soapenv:Envelope>";
+        SimulatoreSdi.Risposta invio = simulatore.riceviFile("text/xml",
+                new ByteArrayInputStream(envelope.getBytes(StandardCharsets.UTF_8)));
+        String identificativoSdi = LettoreRispostaSdi.leggiIdentificativoSdi(new ByteArrayInputStream(invio.corpo()));
+
+        String richiesta = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+                + "<not:riceviNotifica xmlns:not=\"http://www.fatturapa.gov.it/sdi/ws/trasmissione/v1.0\">"
+                + "<not:IdentificativoSdI>" + identificativoSdi + "</not:IdentificativoSdI>"
+                + "<not:NomeFile>IT01234567890_00002_NE_002.xml</not:NomeFile>"
+                + "</not:riceviNotifica></soapenv:Body></soapenv:Envelope>";
+        SimulatoreSdi.Risposta notifica = simulatore.riceviNotifica("text/xml",
+                new ByteArrayInputStream(richiesta.getBytes(StandardCharsets.UTF_8)));
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        assertNull(LettoreRispostaSdi.leggiFile(new ByteArrayInputStream(notifica.corpo()), file));
+        String xml = file.toString(StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<types:NotificaEsito"));
+        assertTrue(xml.contains("<Esito>EC02</Esito>"));
+        assertTrue(xml.contains("<NomeFile>IT01234567890_00002.xml.p7m</NomeFile>"));
+
+        // Notifica sconosciuta: fault SOAP
+        SimulatoreSdi.Risposta sconosciuta = simulatore.riceviNotifica("text/xml", new ByteArrayInputStream(
+                richiesta.replace("_NE_002", "_DT_009").getBytes(StandardCharsets.UTF_8)));
+        assertEquals(500, sconosciuta.codice());
+        assertThrows(SdiException.class, () -> LettoreRispostaSdi.leggiIdentificativoSdi(
+                new ByteArrayInputStream(sconosciuta.corpo())));
+    }
+}